@@ -41,6 +41,7 @@ public interface Constants {
 	String PROP_BBOX = "bbox";
 	String PROP_WKB = "wkb";
 	String PROP_WKT = "wkt";
+	String PROP_TWKB = "twkb";
 	
 	String[] RESERVED_PROPS = new String[] { 
 			PROP_LAYER, 
@@ -51,7 +52,8 @@ public interface Constants {
 			PROP_TYPE, 
 			PROP_BBOX, 
 			PROP_WKB, 
-			PROP_WKT 
+			PROP_WKT, 
+			PROP_TWKB 
 	};
 	
 	
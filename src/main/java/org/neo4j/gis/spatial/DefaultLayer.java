@@ -26,8 +26,6 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.geotools.factory.FactoryRegistryException;
 import org.geotools.referencing.ReferencingFactoryFinder;
@@ -40,7 +38,6 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.ReturnableEvaluator;
 import org.neo4j.graphdb.StopEvaluator;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.Traverser;
 import org.neo4j.graphdb.Traverser.Order;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -84,6 +81,15 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
 		return new SpatialDatabaseRecordImpl(this, geomNode, geometry);
 	}
 
+	/**
+	 * Add the geometries encoded in the given Nodes to the index at once. On
+	 * an empty layer this builds a well packed index much faster than adding
+	 * them one by one.
+	 */
+	public void addAll(Iterable<Node> geomNodes) {
+		index.bulkInsert(geomNodes);
+	}
+
 	public GeometryFactory getGeometryFactory() {
 		return geometryFactory;
 	}
@@ -456,37 +462,44 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
 	 */
 	public Iterator<SpatialDatabaseRecord> execute(Search search)
 			throws SpatialDatabaseException {
-		//TODO: replace with iterator
 		List<SpatialDatabaseRecord> records = Collections.synchronizedList(search.getResults());
 		search.setLayer(this);
 		
-		// TODO: THIS IS INDEX CODE SHOULD BE REPLACED WHEN INDEX IS CLEAN AND WORK AS EXPECTED
 		Node indexNode = this
 				.getLayerNode()
 				.getSingleRelationship(SpatialRelationshipTypes.RTREE_ROOT,
 						Direction.OUTGOING).getEndNode();
-	
-		Traverser traverser = indexNode.traverse(Order.BREADTH_FIRST,
-				StopEvaluator.END_OF_GRAPH,
-				ReturnableEvaluator.ALL,
-				SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING
-				);
-		// END THIS IS INDEX CODE SHOULD BE REPLACED WHEN INDEX IS CLEAN AND WORK AS EXPECTED
 		
 		RestrictionMap restrictionMap = search.getRestrictions();
-		ExecutorService executor = Executors.newFixedThreadPool(search
-			.getThreadPoolSize());
-		
-		for (Node node : traverser) {
-			Runnable worker = new GeoprocessingRunnable(this, node, records,
-				search, restrictionMap);
-			executor.execute(worker);
-		}
-		executor.shutdown();
-		while (!executor.isTerminated()) {
 		
+		// the index is split into subtrees, which are processed on the shared
+		// thread pool, skipping every subtree outside of the search envelope
+		spatialDatabase.getGeoprocessingExecutor().execute(this, indexNode,
+				records, search, restrictionMap);
+
+		// parallel workers may overshoot the limit by a few records
+		if (search.getLimit() >= 0) {
+			synchronized (records) {
+				while (records.size() > search.getLimit()) {
+					records.remove(records.size() - 1);
+				}
+			}
 		}
 		return records.iterator();
 	}
 
+	/**
+	 * @see Layer#executeLazily(Search)
+	 */
+	public Iterator<SpatialDatabaseRecord> executeLazily(Search search)
+			throws SpatialDatabaseException {
+		search.setLayer(this);
+		Node indexNode = this
+				.getLayerNode()
+				.getSingleRelationship(SpatialRelationshipTypes.RTREE_ROOT,
+						Direction.OUTGOING).getEndNode();
+		return new SearchResultIterator(this, indexNode, search,
+				search.getRestrictions());
+	}
+
 }
\ No newline at end of file
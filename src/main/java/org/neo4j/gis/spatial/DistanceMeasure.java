@@ -0,0 +1,51 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * The distance used by the nearest neighbour search of the RTreeIndex. Index
+ * nodes are ordered by a lower bound of the distance of everything inside
+ * their bounding box, so the bound must never be larger than the distance of
+ * any geometry in the box.
+ * 
+ * @see RTreeIndex#getNearestNeighbours(DistanceMeasure, double)
+ */
+public interface DistanceMeasure {
+
+	/**
+	 * @param bbox a bounding box as {minx, miny, maxx, maxy}
+	 * @return a lower bound of the distance of all geometries inside the box
+	 */
+	double getMinDistance(double[] bbox);
+
+	/**
+	 * @return true if the lower bound of this bounding box is already the
+	 *         distance of the geometry it was taken from, so the geometry does
+	 *         not need to be decoded to measure it
+	 */
+	boolean isExact(double[] bbox);
+
+	/**
+	 * @return the distance of the geometry
+	 */
+	double getDistance(Geometry geometry);
+}
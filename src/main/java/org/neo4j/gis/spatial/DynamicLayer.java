@@ -21,6 +21,7 @@ package org.neo4j.gis.spatial;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -34,6 +35,7 @@ import org.json.simple.JSONValue;
 import org.neo4j.gis.spatial.RTreeIndex.RecordCounter;
 import org.neo4j.gis.spatial.geotools.data.Neo4jFeatureBuilder;
 import org.neo4j.gis.spatial.operation.Search;
+import org.neo4j.gis.spatial.operation.restriction.RestrictionMap;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.DynamicRelationshipType;
 import org.neo4j.graphdb.GraphDatabaseService;
@@ -118,6 +120,14 @@ public class DynamicLayer extends EditableLayerImpl {
 			index.executeSearch(search);
 		}
 
+		/**
+		 * Test a geometry node against the query of the dynamic layer. The
+		 * wrapper itself has no query and accepts every node.
+		 */
+		protected boolean queryLeafNode(Node geomNode) {
+			return true;
+		}
+
 	}
 
 	/**
@@ -164,7 +174,7 @@ public class DynamicLayer extends EditableLayerImpl {
             return true;
         }
 
-        private boolean queryLeafNode(Node indexNode) {
+        protected boolean queryLeafNode(Node indexNode) {
             SpatialDatabaseRecordImpl dbRecord = 
                 new SpatialDatabaseRecordImpl(DynamicLayer.this, indexNode); 
             SimpleFeature feature = builder.buildFeature(dbRecord);
@@ -208,7 +218,11 @@ public class DynamicLayer extends EditableLayerImpl {
 	 * 
 	 */
 	public class DynamicIndexReader extends SpatialIndexReaderWrapper {
+		private static final int STEP_RESULTS_SIZE = 10000;
 		private JSONObject query;
+		// the results of each step by the node stepped to, for nodes shared by
+		// many geometries, like the shared tags nodes of OSM, otherwise null
+		private IdentityHashMap<JSONObject, LinkedHashMap<Long, Boolean>> stepResults;
 
 		private class DynamicRecordCounter extends RecordCounter {
 			public boolean needsToVisit(Envelope indexNodeEnvelope) {
@@ -225,6 +239,9 @@ public class DynamicLayer extends EditableLayerImpl {
 		public DynamicIndexReader(SpatialTreeIndex index, String query) {
 			super(index);
 			this.query = (JSONObject)JSONValue.parse(query);
+			if (hasSharedNodes()) {
+				stepResults = new IdentityHashMap<JSONObject, LinkedHashMap<Long, Boolean>>();
+			}
 		}
 
 		private boolean queryIndexNode(Envelope indexNodeEnvelope) {
@@ -244,7 +261,7 @@ public class DynamicLayer extends EditableLayerImpl {
 		 * @return true if the node matches the query string, or the query
 		 *         string is empty
 		 */
-		private boolean queryLeafNode(Node geomNode) {
+		protected boolean queryLeafNode(Node geomNode) {
 			// TODO: Extend support for more complex queries
 			JSONObject properties = (JSONObject)query.get("properties");
 			JSONObject step = (JSONObject)query.get("step");
@@ -258,8 +275,25 @@ public class DynamicLayer extends EditableLayerImpl {
 				        .valueOf(step.get("direction").toString()));
 				if (rel != null) {
 					Node node = rel.getOtherNode(source);
-					step = (JSONObject) step.get("step");
-					return queryNodeProperties(node, properties) && stepAndQuery(node, step);
+					if (stepResults == null) {
+						return queryNodeProperties(node, properties) && stepAndQuery(node, (JSONObject) step.get("step"));
+					}
+					LinkedHashMap<Long, Boolean> results = stepResults.get(step);
+					if (results == null) {
+						results = new LinkedHashMap<Long, Boolean>(1024, 0.75f, true);
+						stepResults.put(step, results);
+					}
+					Boolean result = results.get(node.getId());
+					if (result == null) {
+						result = queryNodeProperties(node, properties) && stepAndQuery(node, (JSONObject) step.get("step"));
+						results.put(node.getId(), result);
+						if (results.size() > STEP_RESULTS_SIZE) {
+							Iterator<Boolean> eldest = results.values().iterator();
+							eldest.next();
+							eldest.remove();
+						}
+					}
+					return result;
 				} else {
 					return false;
 				}
@@ -444,6 +478,32 @@ public class DynamicLayer extends EditableLayerImpl {
 			return null;
 		}
 
+		public Iterator<SpatialDatabaseRecord> executeLazily(Search select) {
+			final SpatialIndexReaderWrapper reader = (SpatialIndexReaderWrapper) getIndex();
+			final RestrictionMap restrictions = select.getRestrictions();
+			// the query of the config is applied like a restriction, so the
+			// limit of the search only counts geometries of this layer
+			RestrictionMap filter = new RestrictionMap() {
+				private static final long serialVersionUID = 1L;
+
+				public boolean determineNode(Node node) {
+					return restrictions.determineNode(node) && reader.queryLeafNode(node);
+				}
+			};
+			select.setLayer(this);
+			Node indexNode = getLayerNode().getSingleRelationship(SpatialRelationshipTypes.RTREE_ROOT, Direction.OUTGOING).getEndNode();
+			return new SearchResultIterator(this, indexNode, select, filter);
+		}
+
+	}
+
+	/**
+	 * Whether many geometries of this layer share the nodes that dynamic
+	 * layer queries step to, so the result of each step is worth keeping by
+	 * the node stepped to.
+	 */
+	protected boolean hasSharedNodes() {
+		return false;
 	}
 
 	private synchronized Map<String, Layer> getLayerMap() {
@@ -78,6 +78,25 @@ public class EditableLayerImpl extends DefaultLayer implements EditableLayer {
 		}
 	}
 
+	/**
+	 * Add a geometry to this layer, including properties, without adding it to
+	 * the index. Importers use this for many geometries and index them all at
+	 * the end with {@link #addAll(Iterable)}.
+	 * 
+	 * @return the new geometry node
+	 */
+	public Node addWithoutIndex(Geometry geometry, String[] fieldsName,
+			Object[] fields) {
+		Transaction tx = getDatabase().beginTx();
+		try {
+			Node geomNode = addGeomNode(geometry, fieldsName, fields);
+			tx.success();
+			return geomNode;
+		} finally {
+			tx.finish();
+		}
+	}
+
 	/**
 	 * Should be overwride by a conrecte layer.
 	 */
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.IOException;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ByteArrayInStream;
+import com.vividsolutions.jts.io.ByteOrderValues;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.io.WKTReader;
+import com.vividsolutions.jts.io.WKTWriter;
+
+/**
+ * WKB and WKT readers and writers kept per thread, so the encoders and
+ * operations that read or write many geometries do not construct new ones
+ * for each geometry. The JTS readers and writers are not thread safe, so
+ * each thread has its own, and the readers are made again only when the
+ * geometry factory changes.
+ */
+public class GeometryCodecs {
+
+	private static final ThreadLocal<GeometryCodecs> codecs = new ThreadLocal<GeometryCodecs>() {
+		@Override
+		protected GeometryCodecs initialValue() {
+			return new GeometryCodecs();
+		}
+	};
+
+	private final ByteArrayInStream wkbIn = new ByteArrayInStream(new byte[0]);
+	private WKBReader wkbReader;
+	private GeometryFactory wkbFactory;
+	private WKTReader wktReader;
+	private GeometryFactory wktFactory;
+	private WKBWriter wkbWriter;
+	private WKBWriter littleEndianWKBWriter;
+	private WKTWriter wktWriter;
+
+	private GeometryCodecs() {
+	}
+
+	/**
+	 * Read the geometry straight from the WKB, without copying it.
+	 */
+	public static Geometry readWKB(byte[] wkb, GeometryFactory geometryFactory) {
+		GeometryCodecs codecs = GeometryCodecs.codecs.get();
+		if (codecs.wkbReader == null || codecs.wkbFactory != geometryFactory) {
+			codecs.wkbReader = geometryFactory == null ? new WKBReader() : new WKBReader(geometryFactory);
+			codecs.wkbFactory = geometryFactory;
+		}
+		codecs.wkbIn.setBytes(wkb);
+		try {
+			return codecs.wkbReader.read(codecs.wkbIn);
+		} catch (IOException e) {
+			throw new SpatialDatabaseException(e.getMessage(), e);
+		} catch (ParseException e) {
+			throw new SpatialDatabaseException(e.getMessage(), e);
+		} finally {
+			codecs.wkbIn.setBytes(null);
+		}
+	}
+
+	/**
+	 * Write the geometry as two dimensional big endian WKB, as by a default
+	 * WKBWriter.
+	 */
+	public static byte[] writeWKB(Geometry geometry) {
+		GeometryCodecs codecs = GeometryCodecs.codecs.get();
+		if (codecs.wkbWriter == null) {
+			codecs.wkbWriter = new WKBWriter();
+		}
+		return codecs.wkbWriter.write(geometry);
+	}
+
+	/**
+	 * Write the geometry as two dimensional little endian WKB.
+	 */
+	public static byte[] writeLittleEndianWKB(Geometry geometry) {
+		GeometryCodecs codecs = GeometryCodecs.codecs.get();
+		if (codecs.littleEndianWKBWriter == null) {
+			codecs.littleEndianWKBWriter = new WKBWriter(2, ByteOrderValues.LITTLE_ENDIAN);
+		}
+		return codecs.littleEndianWKBWriter.write(geometry);
+	}
+
+	public static Geometry readWKT(String wkt, GeometryFactory geometryFactory) {
+		GeometryCodecs codecs = GeometryCodecs.codecs.get();
+		if (codecs.wktReader == null || codecs.wktFactory != geometryFactory) {
+			codecs.wktReader = geometryFactory == null ? new WKTReader() : new WKTReader(geometryFactory);
+			codecs.wktFactory = geometryFactory;
+		}
+		try {
+			return codecs.wktReader.read(wkt);
+		} catch (ParseException e) {
+			throw new SpatialDatabaseException(e.getMessage(), e);
+		}
+	}
+
+	public static String writeWKT(Geometry geometry) {
+		GeometryCodecs codecs = GeometryCodecs.codecs.get();
+		if (codecs.wktWriter == null) {
+			codecs.wktWriter = new WKTWriter();
+		}
+		return codecs.wktWriter.write(geometry);
+	}
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.neo4j.gis.spatial.operation.SpatialQuery;
+import org.neo4j.gis.spatial.operation.restriction.RestrictionMap;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * The <code>GeoprocessingExecutor</code> runs the spatial type operations of
+ * all layers of a {@link SpatialDatabaseService} on one shared, fixed size
+ * thread pool. A search is split into independent RTree subtrees, which are
+ * processed by {@link GeoprocessingRunnable}s, and the calling thread blocks
+ * until all of them are done.
+ *
+ * @author Andreas Wilhelm
+ */
+public class GeoprocessingExecutor {
+
+	private final int nThreads;
+	private ExecutorService executor;
+
+	/**
+	 * Create an executor which will use at most the given number of threads.
+	 * The threads are created on the first parallel search.
+	 *
+	 * @param nThreads
+	 *            the size of the shared thread pool.
+	 */
+	public GeoprocessingExecutor(int nThreads) {
+		if (nThreads < 1) {
+			throw new IllegalArgumentException(
+					"The thread pool needs at least one thread: " + nThreads);
+		}
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * @return the size of the shared thread pool.
+	 */
+	public int getThreadPoolSize() {
+		return nThreads;
+	}
+
+	/**
+	 * Execute the spatial type operation on every geometry below the given
+	 * index node. The index tree is split into at most
+	 * {@link SpatialQuery#getThreadPoolSize()} groups of subtrees which are
+	 * processed in parallel. This method returns when all of them are done.
+	 *
+	 * @param layer
+	 *            the layer which execute the operation.
+	 * @param indexRoot
+	 *            the root of the RTree index.
+	 * @param records
+	 *            the thread safe list for the results.
+	 * @param query
+	 *            the spatial type operation.
+	 * @param restrictionMap
+	 *            the restrictions of the operation.
+	 */
+	public void execute(Layer layer, Node indexRoot,
+			List<SpatialDatabaseRecord> records, SpatialQuery query,
+			RestrictionMap restrictionMap) {
+		int parallelism = Math.min(query.getThreadPoolSize(), nThreads);
+		List<Node> subtrees = splitIndex(indexRoot, query, parallelism);
+
+		if (parallelism <= 1 || subtrees.size() <= 1) {
+			// nothing to share, avoid the hand over to the pool
+			new GeoprocessingRunnable(layer, subtrees, records, query,
+					restrictionMap).run();
+			return;
+		}
+
+		// distribute the subtrees round robin on the workers
+		List<List<Node>> groups = new ArrayList<List<Node>>();
+		for (int i = 0; i < Math.min(parallelism, subtrees.size()); i++) {
+			groups.add(new ArrayList<Node>());
+		}
+		for (int i = 0; i < subtrees.size(); i++) {
+			groups.get(i % groups.size()).add(subtrees.get(i));
+		}
+
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		ExecutorService executor = getExecutor();
+		for (List<Node> group : groups) {
+			futures.add(executor.submit(new GeoprocessingRunnable(layer, group,
+					records, query, restrictionMap)));
+		}
+
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			throw new SpatialDatabaseException(
+					"Interrupted while waiting for the geoprocessing", e);
+		} catch (ExecutionException e) {
+			cancel(futures);
+			throw new SpatialDatabaseException(
+					"Geoprocessing failed: " + e.getCause(), e.getCause());
+		}
+	}
+
+	/**
+	 * Stop the threads of the pool. Searches started after this call will
+	 * create a new pool.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(nThreads,
+					new GeoprocessingThreadFactory());
+		}
+		return executor;
+	}
+
+	private void cancel(List<Future<?>> futures) {
+		for (Future<?> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Expand the index tree breadth first, skipping subtrees the query does
+	 * not need, until there are enough independent subtrees to keep the
+	 * given number of threads busy or only leaves are left.
+	 */
+	private List<Node> splitIndex(Node indexRoot, SpatialQuery query,
+			int parallelism) {
+		LinkedList<Node> subtrees = new LinkedList<Node>();
+		subtrees.add(indexRoot);
+		// a few subtrees per thread balance different subtree sizes
+		int wanted = parallelism * 4;
+		boolean expanded = true;
+		while (expanded && subtrees.size() < wanted) {
+			expanded = false;
+			int levelSize = subtrees.size();
+			for (int i = 0; i < levelSize; i++) {
+				Node indexNode = subtrees.removeFirst();
+				if (!query.needsToVisit(GeoprocessingRunnable
+						.getIndexNodeEnvelope(indexNode))) {
+					continue;
+				}
+				if (indexNode.hasRelationship(
+						SpatialRelationshipTypes.RTREE_CHILD,
+						Direction.OUTGOING)) {
+					for (Relationship rel : indexNode.getRelationships(
+							SpatialRelationshipTypes.RTREE_CHILD,
+							Direction.OUTGOING)) {
+						subtrees.addLast(rel.getEndNode());
+					}
+					expanded = true;
+				} else {
+					// leaves can not be split further
+					subtrees.addLast(indexNode);
+				}
+			}
+		}
+		return subtrees;
+	}
+
+	/**
+	 * Daemon threads, so a forgotten shutdown does not keep the JVM alive.
+	 */
+	private static class GeoprocessingThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger poolNumber = new AtomicInteger(1);
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+		private final String prefix = "geoprocessing-"
+				+ poolNumber.getAndIncrement() + "-";
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, prefix
+					+ threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
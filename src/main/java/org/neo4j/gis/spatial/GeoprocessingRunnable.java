@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.neo4j.gis.spatial.operation.SpatialQuery;
@@ -28,66 +29,95 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 /**
- * The <code>GeoprocessingRunnable</code> is a class to provide a
+ * The <code>GeoprocessingRunnable</code> walks one or more RTree subtrees
+ * and executes a spatial type operation on every geometry node it finds.
  * 
  * @author Andreas Wilhelm
  * 
  */
 public class GeoprocessingRunnable implements Runnable {
 
-	private Node node;
+	private List<Node> nodes;
 	private List<SpatialDatabaseRecord> records;
 	private SpatialQuery query;
 	private Layer layer;
 	private RestrictionMap reMap;
 
 	/**
-	 * The
+	 * Create a runnable which executes the query on all geometries below the
+	 * given index node.
 	 * 
 	 * @param layer
-	 *            the
+	 *            the layer which execute the query.
 	 * @param node
+	 *            the index node to start with.
 	 * @param results
+	 *            the list for the result records.
 	 * @param query
+	 *            the spatial type operation.
 	 * @param restrictionMap
+	 *            the restrictions of the operation.
 	 */
 	public GeoprocessingRunnable(Layer layer, Node node,
 			List<SpatialDatabaseRecord> results, SpatialQuery query,
 			RestrictionMap restrictionMap) {
-		this.node = node;
+		this(layer, Collections.singletonList(node), results, query,
+				restrictionMap);
+	}
+
+	/**
+	 * Create a runnable which executes the query on all geometries below the
+	 * given index nodes, one subtree after the other.
+	 * 
+	 * @param layer
+	 *            the layer which execute the query.
+	 * @param nodes
+	 *            the index nodes of the subtrees.
+	 * @param results
+	 *            the list for the result records.
+	 * @param query
+	 *            the spatial type operation.
+	 * @param restrictionMap
+	 *            the restrictions of the operation.
+	 */
+	public GeoprocessingRunnable(Layer layer, List<Node> nodes,
+			List<SpatialDatabaseRecord> results, SpatialQuery query,
+			RestrictionMap restrictionMap) {
+		this.nodes = nodes;
 		this.records = results;
 		this.query = query;
 		this.layer = layer;
 		this.reMap = restrictionMap;
 	}
-	
-	
-	public GeoprocessingRunnable(Layer layer, List<Node> node, SpatialQuery query) {
-		
-	}
-	
-	
-	
 
 	public void run() {
-
-		determineNode(this.node);
-
+		for (Node node : nodes) {
+			if (Thread.currentThread().isInterrupted() || limitReached()) {
+				return;
+			}
+			determineNode(node);
+		}
 	}
 
 	/**
 	 * Determine if node is a leaf which mean it has a R_TREE_REFERENCE OUTGOING
 	 * relation. If it is a leaf the geoprocessing function will be execute and
-	 * the result will be added.
+	 * the result will be added. Subtrees whose bounding box is not needed by
+	 * the query are skipped.
 	 * 
 	 * @param node
 	 *            the node to determine if it is a leaf or not.
 	 */
 	private void determineNode(Node node) {
 
+		if (!query.needsToVisit(getIndexNodeEnvelope(node))) {
+			return;
+		}
+
 		if (node.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD,
 				Direction.OUTGOING)) {
 			// Node is not a leaf
@@ -111,6 +141,9 @@ public class GeoprocessingRunnable implements Runnable {
 			for (Relationship rel : node.getRelationships(
 					SpatialRelationshipTypes.RTREE_REFERENCE,
 					Direction.OUTGOING)) {
+				if (limitReached()) {
+					return;
+				}
 				geoprocessing(rel.getEndNode());
 			}
 
@@ -119,6 +152,30 @@ public class GeoprocessingRunnable implements Runnable {
 		}
 	}
 
+	/**
+	 * @return true if the query has a limit and enough records are found.
+	 */
+	private boolean limitReached() {
+		return query.getLimit() >= 0 && records.size() >= query.getLimit();
+	}
+
+	/**
+	 * Read the bounding box of an index node.
+	 * 
+	 * @param indexNode
+	 *            the index node.
+	 * @return the {@link Envelope} of the index node or null if the node has
+	 *         no bounding box yet.
+	 */
+	static Envelope getIndexNodeEnvelope(Node indexNode) {
+		if (!indexNode.hasProperty(Constants.PROP_BBOX)) {
+			return null;
+		}
+		double[] bbox = (double[]) indexNode.getProperty(Constants.PROP_BBOX);
+		// Envelope parameters: xmin, xmax, ymin, ymax
+		return new Envelope(bbox[0], bbox[2], bbox[1], bbox[3]);
+	}
+
 	/**
 	 * Call the spatial type function to execute the geoprocessing.
 	 * 
@@ -126,7 +183,7 @@ public class GeoprocessingRunnable implements Runnable {
 	 *            the node which represent the {@link Geometry} in the graph.
 	 */
 	private void geoprocessing(Node geomNode) {
-		if (reMap.determineNode(node)) {
+		if (reMap.determineNode(geomNode)) {
 			query.onIndexReference(null, geomNode, layer, records);
 		}
 	}
@@ -164,6 +164,20 @@ public interface Layer {
 	 * @throws SpatialDatabaseException 
 	 */
 	Iterator<SpatialDatabaseRecord> execute(Search search) throws SpatialDatabaseException;
+
+	/**
+	 * Execute a spatial type search query on the layer while the returned
+	 * iterator is consumed. The index is only read as far as needed for the
+	 * next record, so stopping early or setting a limit on the search avoids
+	 * visiting the rest of the layer. The results are not added to
+	 * {@link Search#getResults()}. Queries that aggregate over all geometries,
+	 * like ST_Closest, must use {@link #execute(Search)}.
+	 * 
+	 * @param search the search query.
+	 * @return Returns an iterator over the search results.
+	 * @throws SpatialDatabaseException 
+	 */
+	Iterator<SpatialDatabaseRecord> executeLazily(Search search) throws SpatialDatabaseException;
 	
 
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * The great-circle distance in km to a reference point, for layers of points
+ * with Longitude / Latitude coordinates in degrees. Distances are calculated
+ * with the haversine formula, which unlike the spherical law of cosines stays
+ * accurate for points close to each other.
+ * 
+ * The lower bound for a bounding box is the distance to the nearest point of
+ * the box on the sphere, so the RTreeIndex can prune whole index nodes with it.
+ */
+public class OrthodromicDistance implements DistanceMeasure {
+	//TODO some srid has different earthRadiusInKm
+	public static final double EARTH_RADIUS_IN_KM = 6371;
+
+	private final Coordinate reference;
+	private final double referenceLat;
+	private final double cosReferenceLat;
+	private final double sinReferenceLat;
+
+	public OrthodromicDistance(Coordinate reference) {
+		this.reference = reference;
+		this.referenceLat = Math.toRadians(reference.y);
+		this.cosReferenceLat = Math.cos(referenceLat);
+		this.sinReferenceLat = Math.sin(referenceLat);
+	}
+
+	public Coordinate getReference() {
+		return reference;
+	}
+
+	public double getMinDistance(double[] bbox) {
+		double minLon = bbox[0], minLat = bbox[1], maxLon = bbox[2], maxLat = bbox[3];
+		if (reference.x >= minLon && reference.x <= maxLon) {
+			// the nearest point lies on the meridian of the reference
+			return Math.toRadians(Math.abs(reference.y - clamp(reference.y, minLat, maxLat))) * EARTH_RADIUS_IN_KM;
+		}
+
+		// otherwise it lies on the nearer of the two meridians bounding the box
+		double toMinLon = getLongitudeDifference(reference.x, minLon);
+		double toMaxLon = getLongitudeDifference(reference.x, maxLon);
+		double edgeLon = toMinLon <= toMaxLon ? minLon : maxLon;
+		double cosDeltaLon = Math.cos(Math.toRadians(Math.min(toMinLon, toMaxLon)));
+		if (cosDeltaLon < 0) {
+			// more than 90 degrees away the distance along the meridian has no
+			// minimum inside the box, only at one of its corners
+			return Math.min(getDistance(minLat, edgeLon), getDistance(maxLat, edgeLon));
+		}
+		// latitude of the point of the meridian nearest to the reference
+		double nearestLat = Math.toDegrees(Math.atan2(sinReferenceLat, cosReferenceLat * cosDeltaLon));
+		return getDistance(clamp(nearestLat, minLat, maxLat), edgeLon);
+	}
+
+	public boolean isExact(double[] bbox) {
+		return bbox[0] == bbox[2] && bbox[1] == bbox[3];
+	}
+
+	/**
+	 * @return the distance to the first coordinate of the geometry, which for
+	 *         the points this measure is meant for is the point itself
+	 */
+	public double getDistance(Geometry geometry) {
+		Coordinate point = geometry.getCoordinate();
+		return getDistance(point.y, point.x);
+	}
+
+	private double getDistance(double lat, double lon) {
+		double sinLat = Math.sin((Math.toRadians(lat) - referenceLat) / 2);
+		double sinLon = Math.sin(Math.toRadians(lon - reference.x) / 2);
+		double a = sinLat * sinLat + cosReferenceLat * Math.cos(Math.toRadians(lat)) * sinLon * sinLon;
+		return 2 * Math.asin(Math.min(1, Math.sqrt(a))) * EARTH_RADIUS_IN_KM;
+	}
+
+	/**
+	 * The haversine distance in km between two Longitude / Latitude
+	 * coordinates in degrees.
+	 */
+	public static double calculateDistance(Coordinate reference, Coordinate point) {
+		return new OrthodromicDistance(reference).getDistance(point.y, point.x);
+	}
+
+	private static double getLongitudeDifference(double lon1, double lon2) {
+		double difference = Math.abs(lon1 - lon2) % 360;
+		return difference > 180 ? 360 - difference : difference;
+	}
+
+	private static double clamp(double value, double min, double max) {
+		return value < min ? min : (value > max ? max : value);
+	}
+}
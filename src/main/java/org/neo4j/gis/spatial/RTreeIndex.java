@@ -20,8 +20,15 @@
 package org.neo4j.gis.spatial;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import org.neo4j.gis.spatial.query.SearchAll;
@@ -36,6 +43,8 @@ import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.Traverser.Order;
 
 import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
 
 /**
  * The RTreeIndex is the first and still standard index for Neo4j Spatial. It
@@ -78,7 +87,12 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 		
 		if (countChildren(parent, SpatialRelationshipTypes.RTREE_REFERENCE) == maxNodeReferences) {
 			insertInLeaf(parent, geomNode);
-			splitAndAdjustPathBoundingBox(parent);
+			if (RSTAR_SPLIT.equals(splitStrategy) && !reinserting && getIndexNodeParent(parent) != null) {
+				// R*-tree: the first overflow of an insert is handled by reinserting entries
+				reinsert(parent);
+			} else {
+				splitAndAdjustPathBoundingBox(parent);
+			}
 		} else {
 			if (insertInLeaf(parent, geomNode)) {
 				// bbox enlargement needed
@@ -87,6 +101,66 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 		}
 	}
 	
+	/**
+	 * Add many geometry nodes at once. If the index is empty the tree is built
+	 * bottom-up with Sort-Tile-Recursive packing: the geometries are sorted
+	 * into vertical slices by the x of their envelope center, each slice is
+	 * sorted by y and cut into full leaves, and the same is repeated with the
+	 * new index nodes until they fit below the root. This is much faster than
+	 * adding the nodes one by one and creates a tree with full, hardly
+	 * overlapping nodes. If the index already contains geometries the nodes
+	 * are simply added one by one.
+	 * 
+	 * The work is committed in several transactions.
+	 * 
+	 * @param geomNodes the geometry nodes to index
+	 */
+	public void bulkInsert(Iterable<Node> geomNodes) {
+		if (!isEmpty()) {
+			// packing only works on an empty tree
+			Transaction tx = database.beginTx();
+			try {
+				int count = 0;
+				for (Node geomNode : geomNodes) {
+					add(geomNode);
+					if (++count % BULK_COMMIT_INTERVAL == 0) {
+						tx.success();
+						tx.finish();
+						tx = database.beginTx();
+					}
+				}
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+			return;
+		}
+
+		List<BulkEntry> entries = new ArrayList<BulkEntry>();
+		for (Node geomNode : geomNodes) {
+			entries.add(new BulkEntry(geomNode.getId(), getLeafNodeBBox(geomNode)));
+		}
+		if (entries.isEmpty()) return;
+		
+		RelationshipType type = SpatialRelationshipTypes.RTREE_REFERENCE;
+		while (entries.size() > maxNodeReferences) {
+			entries = packLevel(entries, type);
+			type = SpatialRelationshipTypes.RTREE_CHILD;
+		}
+
+		// the top level fits into the existing root
+		Transaction tx = database.beginTx();
+		try {
+			Node root = getIndexRoot();
+			for (BulkEntry entry : entries) {
+				addChild(root, type, database.getNodeById(entry.nodeId));
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
 	public void remove(long geomNodeId, boolean deleteGeomNode) {
 		Node geomNode = database.getNodeById(geomNodeId);
 		
@@ -95,6 +169,8 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 		
 		// remove the entry 
 		geomNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).delete();
+		childRemoved(indexNode);
+		invalidate(indexNode);
 		if (deleteGeomNode) deleteNode(geomNode);
 		
 		// reorganize the tree if needed
@@ -116,11 +192,15 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 				orphan.getGeomNode().getSingleRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).delete();
 			}
 			
+			// the orphans came from many leaves, simply forget all cached nodes
+			clearNodeCache();
+			// the parent must be read before the subtree is detached from it
+			Node parentOfDeletedSubtree = getIndexNodeParent(lastParentNodeToDelete);
 			deleteRecursivelyEmptySubtree(lastParentNodeToDelete);
 
 			// adjust tree
-			adjustParentBoundingBox(getIndexNodeParent(lastParentNodeToDelete), SpatialRelationshipTypes.RTREE_CHILD);
-			adjustPathBoundingBox(getIndexNodeParent(lastParentNodeToDelete));
+			adjustParentBoundingBox(parentOfDeletedSubtree, SpatialRelationshipTypes.RTREE_CHILD);
+			adjustPathBoundingBox(parentOfDeletedSubtree);
 			
 			// add orphaned geomNodes
 			for (SpatialDatabaseRecord orphan : orphanedGeometryNodes) {
@@ -155,6 +235,7 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 			monitor.done();
 		}
 
+		clearNodeCache();
 		Transaction tx = database.beginTx();
 		try {
 			// delete index root relationship
@@ -225,9 +306,117 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 		visit(search, getIndexRoot());
 	}
 	
+	/**
+	 * Iterate over the geometries of this index ordered by their distance to
+	 * the given geometry, nearest first. The tree is walked best-first: a
+	 * priority queue holds index nodes by the distance to their bounding box,
+	 * and geometries first by the distance to their envelope and then by their
+	 * real distance. A geometry is returned when its real distance is the
+	 * smallest in the queue, so only the parts of the tree needed for the
+	 * returned geometries are read.
+	 * 
+	 * The result of each record is its distance as a Double.
+	 * 
+	 * @param other the geometry to measure the distance to
+	 * @return the geometries of the index, nearest first
+	 */
+	public Iterator<SpatialDatabaseRecord> getNearestNeighbours(Geometry other) {
+		return getNearestNeighbours(new PlanarDistance(other), Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Iterate over the geometries of this index ordered by the given distance,
+	 * nearest first. Index nodes and geometries whose lower bound is larger
+	 * than maxDistance are never queued, so a small maxDistance only reads the
+	 * part of the tree around the reference.
+	 * 
+	 * @see #getNearestNeighbours(Geometry)
+	 * @param measure the distance to order the geometries by
+	 * @param maxDistance the largest distance to return
+	 * @return the geometries within maxDistance, nearest first
+	 */
+	public Iterator<SpatialDatabaseRecord> getNearestNeighbours(DistanceMeasure measure, double maxDistance) {
+		return new NearestNeighbourIterator(measure, maxDistance);
+	}
+
+	/**
+	 * Find the k geometries nearest to the given geometry.
+	 * 
+	 * @see #getNearestNeighbours(Geometry)
+	 * @return at most k records, nearest first
+	 */
+	public List<SpatialDatabaseRecord> searchNearest(Geometry other, int k) {
+		return searchNearest(new PlanarDistance(other), Double.POSITIVE_INFINITY, k);
+	}
+
+	/**
+	 * Find the k geometries nearest by the given distance, but not farther
+	 * away than maxDistance.
+	 * 
+	 * @see #getNearestNeighbours(DistanceMeasure, double)
+	 * @param k the number of geometries to find, or a negative value to find all
+	 *            within maxDistance
+	 * @return at most k records, nearest first
+	 */
+	public List<SpatialDatabaseRecord> searchNearest(DistanceMeasure measure, double maxDistance, int k) {
+		List<SpatialDatabaseRecord> results = new ArrayList<SpatialDatabaseRecord>();
+		Iterator<SpatialDatabaseRecord> nearest = getNearestNeighbours(measure, maxDistance);
+		while ((k < 0 || results.size() < k) && nearest.hasNext()) {
+			results.add(nearest.next());
+		}
+		return results;
+	}
+	
 	public void warmUp() {
 		visit(new WarmUpVisitor(), getIndexRoot());
 	}
+
+	/**
+	 * Keep the bounding boxes and child ids of up to maxNodes index nodes in
+	 * memory, so searches and inserts do not need to load them from the
+	 * database again. The upper levels of the tree are read by every operation
+	 * and stay in the cache. Entries are invalidated whenever this index
+	 * changes an index node. Changes made by other RTreeIndex instances on the
+	 * same layer, or rolled back transactions, are not seen: call
+	 * clearNodeCache() in that case.
+	 * 
+	 * @param maxNodes the maximum number of cached index nodes, 0 disables the cache
+	 */
+	public void setNodeCacheSize(int maxNodes) {
+		nodeCache = maxNodes > 0 ? new IndexNodeCache(maxNodes) : null;
+	}
+
+	public void clearNodeCache() {
+		if (nodeCache != null) nodeCache.clear();
+	}
+
+	/**
+	 * Choose how index nodes are split and where new geometries are inserted.
+	 * The strategy is stored in the index metadata, so it is kept for the
+	 * layer, and can be changed at any time. It affects later inserts only.
+	 * 
+	 * @param strategy QUADRATIC_SPLIT for Guttman's quadratic split (the
+	 *            default), RSTAR_SPLIT for the R*-tree choose-subtree, split
+	 *            and forced reinsert, which create less overlapping nodes
+	 */
+	public void setSplitStrategy(String strategy) {
+		if (!QUADRATIC_SPLIT.equals(strategy) && !RSTAR_SPLIT.equals(strategy)) {
+			throw new IllegalArgumentException("Unknown RTree split strategy: " + strategy);
+		}
+		
+		Transaction tx = database.beginTx();
+		try {
+			getMetadataNode().setProperty("splitStrategy", strategy);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		this.splitStrategy = strategy;
+	}
+
+	public String getSplitStrategy() {
+		return splitStrategy;
+	}
 	
 	
 	// Private methods
@@ -239,6 +428,29 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 	private Envelope getLeafNodeEnvelope(Node geomNode) {
 		return layer.getGeometryEncoder().decodeEnvelope(geomNode);
 	}
+
+	private double[] getLeafNodeBBox(Node geomNode) {
+		return envelopeToBBox(getLeafNodeEnvelope(geomNode));
+	}
+
+	/**
+	 * The bounding box of an index node as stored, or null if it has none
+	 * yet. The array must not be modified.
+	 */
+	private double[] getIndexNodeBBox(Node indexNode) {
+		if (nodeCache != null) return getCachedIndexNode(indexNode).bbox;
+		if (!indexNode.hasProperty(PROP_BBOX)) return null;
+		return (double[]) indexNode.getProperty(PROP_BBOX);
+	}
+
+	/**
+	 * The bounding box of a child of an index node: a geometry node for
+	 * RTREE_REFERENCE, an index node for RTREE_CHILD.
+	 */
+	private double[] getChildBBox(Node child, RelationshipType type) {
+		if (type == SpatialRelationshipTypes.RTREE_REFERENCE) return getLeafNodeBBox(child);
+		else return getIndexNodeBBox(child);
+	}
 	
 	/**
 	 * The index nodes do NOT belong to the domain model, and as such need to
@@ -247,6 +459,10 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 	 */
 	private Envelope getIndexNodeEnvelope(Node indexNode) {
 		if(indexNode ==null) indexNode = getIndexRoot();
+		if (nodeCache != null) {
+			CachedIndexNode cached = getCachedIndexNode(indexNode);
+			if (cached.bbox != null) return bboxToEnvelope(cached.bbox);
+		}
 		if (!indexNode.hasProperty(PROP_BBOX)) {
 			System.err.println("Layer '" + layer.getName() + "' node[" + indexNode + "] has no bounding box property '" + PROP_BBOX + "'");
 			return null;
@@ -255,6 +471,10 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 	}
 	
 	public void visit(SpatialIndexVisitor visitor, Node indexNode) {
+		if (nodeCache != null) {
+			visitCached(visitor, getCachedIndexNode(indexNode));
+			return;
+		}
 		if (!visitor.needsToVisit(getIndexNodeEnvelope(indexNode))) return;
 		
 		if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
@@ -272,6 +492,20 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 		}
 	}
 	
+	private void visitCached(SpatialIndexVisitor visitor, CachedIndexNode indexNode) {
+		if (!visitor.needsToVisit(indexNode.bbox == null ? null : bboxToEnvelope(indexNode.bbox))) return;
+
+		if (indexNode.leaf) {
+			for (long geomNodeId : indexNode.children) {
+				visitor.onIndexReference(database.getNodeById(geomNodeId));
+			}
+		} else {
+			for (long childId : indexNode.children) {
+				visitCached(visitor, getCachedIndexNode(childId));
+			}
+		}
+	}
+
 	private void visitInTx(SpatialIndexVisitor visitor, Long indexNodeId) {
         Node indexNode = database.getNodeById(indexNodeId);
         if(!visitor.needsToVisit(getIndexNodeEnvelope(indexNode))) return;
@@ -312,6 +546,8 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 			
 			maxNodeReferences = (Integer) metadataNode.getProperty("maxNodeReferences");
 			minNodeReferences = (Integer) metadataNode.getProperty("minNodeReferences");
+			// indexes created before the strategy could be chosen use the quadratic split
+			splitStrategy = (String) metadataNode.getProperty("splitStrategy", QUADRATIC_SPLIT);
 		} else {
 			// metadata initialization
 			Node metadataNode = database.createNode();
@@ -319,14 +555,20 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 			
 			metadataNode.setProperty("maxNodeReferences", maxNodeReferences);
 			metadataNode.setProperty("minNodeReferences", minNodeReferences);
+			metadataNode.setProperty("splitStrategy", splitStrategy);
 		}
 	}
 
+	private Node getMetadataNode() {
+		return layer.getLayerNode().getSingleRelationship(SpatialRelationshipTypes.RTREE_METADATA, Direction.OUTGOING).getEndNode();
+	}
+
 	private void initIndexRoot() {
 		Node layerNode = layer.getLayerNode();
 		if (!layerNode.hasRelationship(SpatialRelationshipTypes.RTREE_ROOT, Direction.OUTGOING)) {
 			// index initialization
 			Node root = database.createNode();
+			setChildCount(root, 0, true);
 			layerNode.createRelationshipTo(root, SpatialRelationshipTypes.RTREE_ROOT);
 		}
 	}
@@ -336,79 +578,244 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 	}
 	
 	private boolean nodeIsLeaf(Node node) {
-		return !node.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
+		if (nodeCache != null) return getCachedIndexNode(node).leaf;
+		return isLeaf(node);
+	}
+
+	private boolean isLeaf(Node indexNode) {
+		Boolean leaf = (Boolean) indexNode.getProperty(PROP_LEAF, null);
+		if (leaf != null) return leaf;
+		// index nodes written before the flag was stored
+		return !indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
+	}
+
+	/**
+	 * Store the number of children and the kind of an index node, so
+	 * countChildren and nodeIsLeaf don't need to load its relationships.
+	 */
+	private void setChildCount(Node indexNode, int count, boolean leaf) {
+		indexNode.setProperty(PROP_CHILD_COUNT, count);
+		indexNode.setProperty(PROP_LEAF, leaf);
+	}
+
+	/**
+	 * Update the stored child count after a relationship to a child was
+	 * deleted. An index node without children is a leaf again.
+	 */
+	private void childRemoved(Node indexNode) {
+		Integer count = (Integer) indexNode.getProperty(PROP_CHILD_COUNT, null);
+		if (count != null) {
+			indexNode.setProperty(PROP_CHILD_COUNT, count - 1);
+			if (count == 1) indexNode.setProperty(PROP_LEAF, true);
+		}
+	}
+
+	/**
+	 * The child index nodes of a non-leaf index node, from the cache if enabled.
+	 */
+	private List<Node> getIndexNodeChildren(Node parentIndexNode) {
+		List<Node> children = new ArrayList<Node>();
+		if (nodeCache != null) {
+			for (long childId : getCachedIndexNode(parentIndexNode).children) {
+				children.add(database.getNodeById(childId));
+			}
+		} else {
+			for (Relationship relation : parentIndexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				children.add(relation.getEndNode());
+			}
+		}
+		return children;
+	}
+
+	private CachedIndexNode getCachedIndexNode(Node indexNode) {
+		CachedIndexNode cached = nodeCache.get(indexNode.getId());
+		if (cached == null) {
+			cached = loadCachedIndexNode(indexNode);
+		}
+		return cached;
+	}
+
+	private CachedIndexNode getCachedIndexNode(long indexNodeId) {
+		CachedIndexNode cached = nodeCache.get(indexNodeId);
+		if (cached == null) {
+			cached = loadCachedIndexNode(database.getNodeById(indexNodeId));
+		}
+		return cached;
+	}
+
+	private CachedIndexNode loadCachedIndexNode(Node indexNode) {
+		double[] bbox = null;
+		if (indexNode.hasProperty(PROP_BBOX)) {
+			bbox = ((double[]) indexNode.getProperty(PROP_BBOX)).clone();
+		}
+		boolean leaf = isLeaf(indexNode);
+		RelationshipType type = leaf ? SpatialRelationshipTypes.RTREE_REFERENCE : SpatialRelationshipTypes.RTREE_CHILD;
+		List<Long> childIds = new ArrayList<Long>();
+		for (Relationship rel : indexNode.getRelationships(type, Direction.OUTGOING)) {
+			childIds.add(rel.getEndNode().getId());
+		}
+		long[] children = new long[childIds.size()];
+		for (int i = 0; i < children.length; i++) {
+			children[i] = childIds.get(i);
+		}
+		CachedIndexNode cached = new CachedIndexNode(bbox, children, leaf);
+		nodeCache.put(indexNode.getId(), cached);
+		return cached;
+	}
+
+	private void invalidate(Node indexNode) {
+		if (nodeCache != null && indexNode != null) nodeCache.remove(indexNode.getId());
 	}
 	
 	private Node chooseSubTree(Node parentIndexNode, Node geomRootNode) {
-		// children that can contain the new geometry
-		List<Node> indexNodes = new ArrayList<Node>();
+		double[] geomBBox = getLeafNodeBBox(geomRootNode);
+		List<Node> children = getIndexNodeChildren(parentIndexNode);
+		if (RSTAR_SPLIT.equals(splitStrategy) && nodeIsLeaf(children.get(0))) {
+			return chooseLeafWithMinimumOverlap(children, geomBBox);
+		}
 		
-		// pick the child that contains the new geometry bounding box		
-		Iterable<Relationship> relationships = parentIndexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);		
-		for (Relationship relation : relationships) {
-			Node indexNode = relation.getEndNode();
-			if (getIndexNodeEnvelope(indexNode).contains(getLeafNodeEnvelope(geomRootNode))) {
-				indexNodes.add(indexNode);
+		// pick the child that contains the new geometry bounding box,
+		// the one with the smallest area if there are several
+		Node result = null;
+		double smallestArea = Double.POSITIVE_INFINITY;
+		for (Node indexNode : children) {
+			double[] bbox = getIndexNodeBBox(indexNode);
+			if (contains(bbox, geomBBox)) {
+				double area = getArea(bbox);
+				if (result == null || area < smallestArea) {
+					result = indexNode;
+					smallestArea = area;
+				}
 			}
 		}
-
-		if (indexNodes.size() > 1) {
-			return chooseIndexNodeWithSmallestArea(indexNodes);
-		} else if (indexNodes.size() == 1) {
-			return indexNodes.get(0);
-		}
+		if (result != null) return result;
 		
-		// pick the child that needs the minimum enlargement to include the new geometry
+		// pick the child that needs the minimum enlargement to include the new geometry,
+		// the one with the smallest area in case of equality
 		double minimumEnlargement = Double.POSITIVE_INFINITY;
-		relationships = parentIndexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
-		for (Relationship relation : relationships) {
-			Node indexNode = relation.getEndNode();
-			double enlargementNeeded = getAreaEnlargement(indexNode, geomRootNode);
-
-			if (enlargementNeeded < minimumEnlargement) {
-				indexNodes.clear();
-				indexNodes.add(indexNode);
+		for (Node indexNode : children) {
+			double[] bbox = getIndexNodeBBox(indexNode);
+			double area = getArea(bbox);
+			double enlargementNeeded = getArea(bbox, geomBBox) - area;
+			if (enlargementNeeded < minimumEnlargement || (enlargementNeeded == minimumEnlargement && area < smallestArea)) {
+				result = indexNode;
 				minimumEnlargement = enlargementNeeded;
-			} else if (enlargementNeeded == minimumEnlargement) {
-				indexNodes.add(indexNode);				
+				smallestArea = area;
 			}
 		}
 		
-		if (indexNodes.size() > 1) {
-			return chooseIndexNodeWithSmallestArea(indexNodes);
-		} else if (indexNodes.size() == 1) {
-			return indexNodes.get(0);
-		} else {
+		if (result == null) {
 			// this shouldn't happen
 			throw new SpatialDatabaseException("No IndexNode found for new geometry");
 		}
+		return result;
 	}
 
-    private double getAreaEnlargement(Node indexNode, Node geomRootNode) {
-    	Envelope before = getIndexNodeEnvelope(indexNode);
-    	
-    	Envelope after = getLeafNodeEnvelope(geomRootNode);
-    	after.expandToInclude(before);
-    	
-    	return getArea(after) - getArea(before);
-    }
-	
-	private Node chooseIndexNodeWithSmallestArea(List<Node> indexNodes) {
-		Node result = null;
-		double smallestArea = -1;
+	/**
+	 * R*-tree choose-subtree for the level above the leaves: pick the leaf
+	 * whose overlap with its siblings grows least by including the new
+	 * geometry, then the one needing the least enlargement, then the smallest.
+	 */
+	private Node chooseLeafWithMinimumOverlap(List<Node> leaves, double[] geomBBox) {
+		int size = leaves.size();
+		double[][] bboxes = new double[size][];
+		for (int i = 0; i < size; i++) {
+			bboxes[i] = getIndexNodeBBox(leaves.get(i));
+		}
+		
+		int best = -1;
+		double bestOverlap = Double.POSITIVE_INFINITY;
+		double bestEnlargement = Double.POSITIVE_INFINITY;
+		double bestArea = Double.POSITIVE_INFINITY;
+		double[] enlarged = new double[4];
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(bboxes[i], 0, enlarged, 0, 4);
+			expandToInclude(enlarged, geomBBox);
+			
+			double overlapEnlargement = 0;
+			for (int j = 0; j < size; j++) {
+				if (j != i) overlapEnlargement += getOverlap(enlarged, bboxes[j]) - getOverlap(bboxes[i], bboxes[j]);
+			}
+			double area = getArea(bboxes[i]);
+			double enlargement = getArea(enlarged) - area;
+			
+			if (overlapEnlargement < bestOverlap
+					|| (overlapEnlargement == bestOverlap && (enlargement < bestEnlargement
+					|| (enlargement == bestEnlargement && area < bestArea)))) {
+				best = i;
+				bestOverlap = overlapEnlargement;
+				bestEnlargement = enlargement;
+				bestArea = area;
+			}
+		}
+		return leaves.get(best);
+	}
 
-		for (Node indexNode : indexNodes) {
-			double area = getArea(indexNode);
-			if (result == null || area < smallestArea) {
-				result = indexNode;
-				smallestArea = area;
+	/**
+	 * R*-tree forced reinsert: remove the entries of an overflowing leaf which
+	 * are farthest from its center and insert them again, so they can move to
+	 * better fitting leaves instead of splitting this one.
+	 */
+	private void reinsert(Node leaf) {
+		List<Node> entries = new ArrayList<Node>();
+		List<Double> distances = new ArrayList<Double>();
+		double[] leafBBox = getIndexNodeBBox(leaf);
+		double centerX = (leafBBox[0] + leafBBox[2]) / 2;
+		double centerY = (leafBBox[1] + leafBBox[3]) / 2;
+		for (Relationship rel : leaf.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+			Node entry = rel.getEndNode();
+			double[] bbox = getLeafNodeBBox(entry);
+			double dx = (bbox[0] + bbox[2]) / 2 - centerX;
+			double dy = (bbox[1] + bbox[3]) / 2 - centerY;
+			entries.add(entry);
+			distances.add(dx * dx + dy * dy);
+		}
+		
+		// the farthest entries first
+		Integer[] order = new Integer[entries.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		final List<Double> entryDistances = distances;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return Double.compare(entryDistances.get(i2), entryDistances.get(i1));
 			}
+		});
+		
+		int reinsertCount = Math.max(1, (int) (order.length * RSTAR_REINSERT_FACTOR));
+		List<Node> removed = new ArrayList<Node>();
+		for (int i = 0; i < reinsertCount; i++) {
+			Node entry = entries.get(order[i]);
+			entry.getSingleRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).delete();
+			childRemoved(leaf);
+			removed.add(entry);
 		}
+		invalidate(leaf);
 		
-		return result;
+		// shrink the bounding boxes up to the root
+		Node indexNode = leaf;
+		adjustParentBoundingBox(indexNode, SpatialRelationshipTypes.RTREE_REFERENCE);
+		while ((indexNode = getIndexNodeParent(indexNode)) != null) {
+			adjustParentBoundingBox(indexNode, SpatialRelationshipTypes.RTREE_CHILD);
+		}
+		
+		// close reinsert: the nearest of the removed entries first
+		reinserting = true;
+		try {
+			for (int i = removed.size() - 1; i >= 0; i--) {
+				add(removed.get(i));
+			}
+		} finally {
+			reinserting = false;
+		}
 	}
 
 	private int countChildren(Node indexNode, RelationshipType relationshipType) {
+		Integer count = (Integer) indexNode.getProperty(PROP_CHILD_COUNT, null);
+		if (count != null) return count;
+		
+		// index nodes written before the count was stored
 		int counter = 0;
 		Iterator<Relationship> iterator = indexNode.getRelationships(relationshipType, Direction.OUTGOING).iterator();
 		while (iterator.hasNext()) {
@@ -427,7 +834,7 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 
 	private void splitAndAdjustPathBoundingBox(Node indexNode) {
 		// create a new node and distribute the entries
-		Node newIndexNode = quadraticSplit(indexNode);
+		Node newIndexNode = split(indexNode);
 		Node parent = getIndexNodeParent(indexNode);
 		if (parent == null) {
 			// if indexNode is the root
@@ -445,76 +852,113 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 		}
 	}
 
-	private Node quadraticSplit(Node indexNode) {
-		if (nodeIsLeaf(indexNode)) return quadraticSplit(indexNode, SpatialRelationshipTypes.RTREE_REFERENCE);
-		else return quadraticSplit(indexNode, SpatialRelationshipTypes.RTREE_CHILD);
-	}
-
-	private Node quadraticSplit(Node indexNode, RelationshipType relationshipType) {
- 		List<Node> entries = new ArrayList<Node>();
+	private Node split(Node indexNode) {
+		RelationshipType relationshipType = nodeIsLeaf(indexNode) ? SpatialRelationshipTypes.RTREE_REFERENCE : SpatialRelationshipTypes.RTREE_CHILD;
+		
+		// decode all bounding boxes once, the split algorithms only use these arrays
+		List<Node> entries = new ArrayList<Node>();
+		List<double[]> entryBBoxes = new ArrayList<double[]>();
 		
 		Iterable<Relationship> relationships = indexNode.getRelationships(relationshipType, Direction.OUTGOING);
 		for (Relationship relationship : relationships) {
-			entries.add(relationship.getEndNode());
+			Node entry = relationship.getEndNode();
+			entries.add(entry);
+			entryBBoxes.add(getChildBBox(entry, relationshipType));
 			relationship.delete();
 		}
+		setChildCount(indexNode, 0, relationshipType == SpatialRelationshipTypes.RTREE_REFERENCE);
+		double[][] bboxes = entryBBoxes.toArray(new double[entries.size()][]);
+		
+		List<Integer> group1 = new ArrayList<Integer>();
+		List<Integer> group2 = new ArrayList<Integer>();
+		if (RSTAR_SPLIT.equals(splitStrategy)) {
+			rStarSplit(bboxes, group1, group2);
+		} else {
+			quadraticSplit(bboxes, group1, group2);
+		}
+		
+		// reset bounding box and add new children
+		indexNode.removeProperty(PROP_BBOX);
+		invalidate(indexNode);
+		for (int e : group1) {
+			addChild(indexNode, relationshipType, entries.get(e), bboxes[e]);
+		}
+
+		// create new node from split
+		Node newIndexNode = database.createNode();
+		for (int e : group2) {
+			addChild(newIndexNode, relationshipType, entries.get(e), bboxes[e]);
+		}
+		
+		return newIndexNode;
+	}
+
+	/**
+	 * Guttman's quadratic split: distribute the entries with the given
+	 * bounding boxes on two groups.
+	 */
+	private void quadraticSplit(double[][] bboxes, List<Integer> group1, List<Integer> group2) {
+		int size = bboxes.length;
+		double[] areas = new double[size];
+		for (int i = 0; i < size; i++) {
+			areas[i] = getArea(bboxes[i]);
+		}
 
 		// pick two seed entries such that the dead space is maximal
-		Node seed1 = null;
-		Node seed2 = null;
+		int seed1 = -1;
+		int seed2 = -1;
 		double worst = Double.NEGATIVE_INFINITY;
-		for (Node e : entries) {
-			Envelope eEnvelope = getLeafNodeEnvelope(e);
-			for (Node e1 : entries) {
-				Envelope e1Envelope = getLeafNodeEnvelope(e1);
-				double deadSpace = getArea(createEnvelope(eEnvelope, e1Envelope)) - getArea(eEnvelope) - getArea(e1Envelope);
+		for (int i = 0; i < size; i++) {
+			for (int j = i + 1; j < size; j++) {
+				double deadSpace = getArea(bboxes[i], bboxes[j]) - areas[i] - areas[j];
 				if (deadSpace > worst) {
 					worst = deadSpace;
-					seed1 = e;
-					seed2 = e1;
+					seed1 = i;
+					seed2 = j;
 				}
 			}
 		}
 		
-		List<Node> group1 = new ArrayList<Node>();
 		group1.add(seed1);
-		Envelope group1envelope = getLeafNodeEnvelope(seed1);
+		double[] group1bbox = bboxes[seed1].clone();
 		
-		List<Node> group2 = new ArrayList<Node>();
 		group2.add(seed2);
-		Envelope group2envelope = getLeafNodeEnvelope(seed2);
+		double[] group2bbox = bboxes[seed2].clone();
 		
-		entries.remove(seed1);
-		entries.remove(seed2);
-		while (entries.size() > 0) {
+		List<Integer> remaining = new ArrayList<Integer>();
+		for (int i = 0; i < size; i++) {
+			if (i != seed1 && i != seed2) remaining.add(i);
+		}
+		while (remaining.size() > 0) {
 			// compute the cost of inserting each entry
-			List<Node> bestGroup = null;
-			Envelope bestGroupEnvelope = null;
-			Node bestEntry = null;
+			double group1area = getArea(group1bbox);
+			double group2area = getArea(group2bbox);
+			List<Integer> bestGroup = null;
+			double[] bestGroupBBox = null;
+			int bestEntry = -1;
 			double expansionMin = Double.POSITIVE_INFINITY;
-			for (Node e : entries) {
-				Envelope nodeEnvelope = getLeafNodeEnvelope(e);
-				double expansion1 = getArea(createEnvelope(nodeEnvelope, group1envelope)) - getArea(group1envelope);
-				double expansion2 = getArea(createEnvelope(nodeEnvelope, group2envelope)) - getArea(group2envelope);
+			for (int e : remaining) {
+				double expansion1 = getArea(bboxes[e], group1bbox) - group1area;
+				double expansion2 = getArea(bboxes[e], group2bbox) - group2area;
 						
 				if (expansion1 < expansion2 && expansion1 < expansionMin) {
 					bestGroup = group1;
-					bestGroupEnvelope = group1envelope;
+					bestGroupBBox = group1bbox;
 					bestEntry = e;
 					expansionMin = expansion1;
 				} else if (expansion2 < expansion1 && expansion2 < expansionMin) {
 					bestGroup = group2;
-					bestGroupEnvelope = group2envelope;					
+					bestGroupBBox = group2bbox;
 					bestEntry = e;
 					expansionMin = expansion2;					
 				} else if (expansion1 == expansion2 && expansion1 < expansionMin) {
 					// in case of equality choose the group with the smallest area
-					if (getArea(group1envelope) < getArea(group2envelope)) {
+					if (group1area < group2area) {
 						bestGroup = group1;
-						bestGroupEnvelope = group1envelope; 
+						bestGroupBBox = group1bbox;
 					} else {
 						bestGroup = group2;
-						bestGroupEnvelope = group2envelope; 
+						bestGroupBBox = group2bbox;
 					}
 					bestEntry = e;
 					expansionMin = expansion1;					
@@ -523,38 +967,164 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 			
 			// insert the best candidate entry in the best group
 			bestGroup.add(bestEntry);
-			bestGroupEnvelope.expandToInclude(getLeafNodeEnvelope(bestEntry));
+			expandToInclude(bestGroupBBox, bboxes[bestEntry]);
 
-			entries.remove(bestEntry);
+			remaining.remove(Integer.valueOf(bestEntry));
 			
 			// each group must contain at least minNodeReferences entries.
 			// if the group size added to the number of remaining entries is equal to minNodeReferences
 			// just add them to the group
 			
-			if (group1.size() + entries.size() == minNodeReferences) {
-				group1.addAll(entries);
-				entries.clear();
+			if (group1.size() + remaining.size() == minNodeReferences) {
+				group1.addAll(remaining);
+				remaining.clear();
 			}
 			
-			if (group2.size() + entries.size() == minNodeReferences) {
-				group2.addAll(entries);
-				entries.clear();
+			if (group2.size() + remaining.size() == minNodeReferences) {
+				group2.addAll(remaining);
+				remaining.clear();
 			}
 		}
+	}
+
+	/**
+	 * R*-tree split: choose the axis where the distributions of the entries,
+	 * sorted by lower and by upper bound, have the smallest total margin, then
+	 * the distribution on that axis with the least overlap, then least area.
+	 */
+	private void rStarSplit(double[][] bboxes, List<Integer> group1, List<Integer> group2) {
+		int size = bboxes.length;
+		int minFill = Math.max(1, Math.min(minNodeReferences, (int) (size * RSTAR_MIN_FILL)));
 		
-		// reset bounding box and add new children
-		indexNode.removeProperty(PROP_BBOX);
-		for (Node node : group1) {
-			addChild(indexNode, relationshipType, node);
+		Integer[][] bestAxisOrders = null;
+		double bestMargin = Double.POSITIVE_INFINITY;
+		for (int axis = 0; axis < 2; axis++) {
+			// sorted by lower and by upper bound on this axis
+			Integer[][] orders = new Integer[][] { sortedEntries(bboxes, axis), sortedEntries(bboxes, axis + 2) };
+			double margin = 0;
+			for (Integer[] order : orders) {
+				double[][] lower = groupBBoxes(bboxes, order, true);
+				double[][] upper = groupBBoxes(bboxes, order, false);
+				for (int k = minFill; k <= size - minFill; k++) {
+					margin += getMargin(lower[k - 1]) + getMargin(upper[k]);
+				}
+			}
+			if (margin < bestMargin) {
+				bestMargin = margin;
+				bestAxisOrders = orders;
+			}
 		}
+		
+		Integer[] bestOrder = null;
+		int bestSplit = -1;
+		double bestOverlap = Double.POSITIVE_INFINITY;
+		double bestArea = Double.POSITIVE_INFINITY;
+		for (Integer[] order : bestAxisOrders) {
+			double[][] lower = groupBBoxes(bboxes, order, true);
+			double[][] upper = groupBBoxes(bboxes, order, false);
+			for (int k = minFill; k <= size - minFill; k++) {
+				double overlap = getOverlap(lower[k - 1], upper[k]);
+				double area = getArea(lower[k - 1]) + getArea(upper[k]);
+				if (overlap < bestOverlap || (overlap == bestOverlap && area < bestArea)) {
+					bestOrder = order;
+					bestSplit = k;
+					bestOverlap = overlap;
+					bestArea = area;
+				}
+			}
+		}
+		
+		for (int i = 0; i < size; i++) {
+			if (i < bestSplit) group1.add(bestOrder[i]);
+			else group2.add(bestOrder[i]);
+		}
+	}
 
-		// create new node from split
-		Node newIndexNode = database.createNode();
-		for (Node node: group2) {
-			addChild(newIndexNode, relationshipType, node);
+	/**
+	 * @return the indexes of the entries sorted by the given bbox value
+	 */
+	private static Integer[] sortedEntries(final double[][] bboxes, final int index) {
+		Integer[] order = new Integer[bboxes.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		// ties are ordered by the opposite bound
+		final int other = (index + 2) % 4;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				int result = Double.compare(bboxes[i1][index], bboxes[i2][index]);
+				return result != 0 ? result : Double.compare(bboxes[i1][other], bboxes[i2][other]);
+			}
+		});
+		return order;
+	}
+
+	/**
+	 * @return for each position in order, the bounding box of all entries up
+	 *         to it (fromStart) or from it to the end
+	 */
+	private static double[][] groupBBoxes(double[][] bboxes, Integer[] order, boolean fromStart) {
+		int size = order.length;
+		double[][] result = new double[size][];
+		double[] current = null;
+		for (int n = 0; n < size; n++) {
+			int i = fromStart ? n : size - 1 - n;
+			double[] bbox = bboxes[order[i]];
+			if (current == null) {
+				current = bbox.clone();
+			} else {
+				current = current.clone();
+				expandToInclude(current, bbox);
+			}
+			result[i] = current;
 		}
+		return result;
+	}
+
+	/**
+	 * Pack one level of the tree with Sort-Tile-Recursive: create full index
+	 * nodes for the given entries, one transaction per slice.
+	 * 
+	 * @return the entries for the new index nodes
+	 */
+	private List<BulkEntry> packLevel(List<BulkEntry> entries, RelationshipType type) {
+		int nodeCount = (entries.size() + maxNodeReferences - 1) / maxNodeReferences;
+		int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+		int sliceSize = ((nodeCount + sliceCount - 1) / sliceCount) * maxNodeReferences;
 		
-		return newIndexNode;
+		Collections.sort(entries, new BulkEntryComparator(0));
+		List<BulkEntry> packed = new ArrayList<BulkEntry>(nodeCount);
+		for (int start = 0; start < entries.size(); start += sliceSize) {
+			List<BulkEntry> slice = entries.subList(start, Math.min(start + sliceSize, entries.size()));
+			Collections.sort(slice, new BulkEntryComparator(1));
+			
+			Transaction tx = database.beginTx();
+			try {
+				for (int i = 0; i < slice.size(); i += maxNodeReferences) {
+					packed.add(createPackedIndexNode(slice.subList(i, Math.min(i + maxNodeReferences, slice.size())), type));
+				}
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		}
+		return packed;
+	}
+
+	private BulkEntry createPackedIndexNode(List<BulkEntry> children, RelationshipType type) {
+		Node indexNode = database.createNode();
+		double[] bbox = null;
+		for (BulkEntry child : children) {
+			indexNode.createRelationshipTo(database.getNodeById(child.nodeId), type);
+			if (bbox == null) {
+				bbox = child.bbox.clone();
+			} else {
+				expandToInclude(bbox, child.bbox);
+			}
+		}
+		indexNode.setProperty(PROP_BBOX, bbox);
+		setChildCount(indexNode, children.size(), type == SpatialRelationshipTypes.RTREE_REFERENCE);
+		return new BulkEntry(indexNode.getId(), bbox);
 	}
 
 	private void createNewRoot(Node oldRoot, Node newIndexNode) {
@@ -577,13 +1147,14 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
     }
 
 	private boolean addChild(Node parent, RelationshipType type, Node newChild) {
-	    double[] childBBox = null;
-	    if(type == SpatialRelationshipTypes.RTREE_REFERENCE) {
-	        childBBox = envelopeToBBox(this.layer.getGeometryEncoder().decodeEnvelope(newChild));
-	    } else {
-	        childBBox = (double[]) newChild.getProperty(PROP_BBOX);
-	    }
+		return addChild(parent, type, newChild, getChildBBox(newChild, type));
+	}
+
+	private boolean addChild(Node parent, RelationshipType type, Node newChild, double[] childBBox) {
+		int count = countChildren(parent, type);
 		parent.createRelationshipTo(newChild, type);
+		setChildCount(parent, count + 1, type == SpatialRelationshipTypes.RTREE_REFERENCE);
+		invalidate(parent);
 		return adjustParentBoundingBox(parent, childBBox);
 	}
 	
@@ -602,16 +1173,20 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 	 * @param indexNode
 	 */
 	private void adjustParentBoundingBox(Node indexNode, RelationshipType relationshipType) {
-	    //make a default null bounding box
-		Envelope bbox = new Envelope();
+		double[] bbox = null;
 		
 		Iterator<Relationship> iterator = indexNode.getRelationships(relationshipType, Direction.OUTGOING).iterator();
 		while (iterator.hasNext()) {
-			Node childNode = iterator.next().getEndNode();
-			if (bbox == null) bbox = getLeafNodeEnvelope(childNode);
-			else bbox.expandToInclude(getLeafNodeEnvelope(childNode));
+			double[] childBBox = getChildBBox(iterator.next().getEndNode(), relationshipType);
+			if (bbox == null) bbox = childBBox.clone();
+			else expandToInclude(bbox, childBBox);
 		}
-		indexNode.setProperty(PROP_BBOX, new double[] { bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY() });
+		if (bbox == null) {
+			// no children left: the same as an empty JTS Envelope
+			bbox = new double[] { 0, 0, -1, -1 };
+		}
+		indexNode.setProperty(PROP_BBOX, bbox);
+		invalidate(indexNode);
 	}
 		
 	/**
@@ -623,6 +1198,7 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 	private boolean adjustParentBoundingBox(Node parent, double[] childBBox) {
 		if (!parent.hasProperty(PROP_BBOX)) {
 			parent.setProperty(PROP_BBOX, new double[] { childBBox[0], childBBox[1], childBBox[2], childBBox[3] });
+			invalidate(parent);
 			return true;
 		}
 		
@@ -635,6 +1211,7 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 		
 		if (valueChanged) {
 			parent.setProperty(PROP_BBOX, parentBBox);
+			invalidate(parent);
 		}
 		
 		return valueChanged;
@@ -664,12 +1241,48 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 		else return relationship.getStartNode();
 	}	
 	
-	private double getArea(Node node) {
-		return getArea(getLeafNodeEnvelope(node));
+	private static double getArea(double[] bbox) {
+		return (bbox[2] - bbox[0]) * (bbox[3] - bbox[1]);
+	}
+
+	/**
+	 * The area of the bounding box encompassing both bounding boxes, without
+	 * creating it.
+	 */
+	private static double getArea(double[] bbox, double[] bbox1) {
+		return (Math.max(bbox[2], bbox1[2]) - Math.min(bbox[0], bbox1[0]))
+				* (Math.max(bbox[3], bbox1[3]) - Math.min(bbox[1], bbox1[1]));
+	}
+
+	private static double getMargin(double[] bbox) {
+		return (bbox[2] - bbox[0]) + (bbox[3] - bbox[1]);
+	}
+
+	private static double getOverlap(double[] bbox, double[] other) {
+		double width = Math.min(bbox[2], other[2]) - Math.max(bbox[0], other[0]);
+		double height = Math.min(bbox[3], other[3]) - Math.max(bbox[1], other[1]);
+		if (width <= 0 || height <= 0) return 0;
+		return width * height;
+	}
+
+	/**
+	 * The distance between two bounding boxes, 0 if they intersect.
+	 */
+	private static double getDistance(double[] bbox, double[] other) {
+		double dx = Math.max(0, Math.max(bbox[0] - other[2], other[0] - bbox[2]));
+		double dy = Math.max(0, Math.max(bbox[1] - other[3], other[1] - bbox[3]));
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	private static boolean contains(double[] bbox, double[] other) {
+		return bbox[0] <= other[0] && bbox[1] <= other[1] && bbox[2] >= other[2] && bbox[3] >= other[3];
 	}
 
-	private double getArea(Envelope e) {
-		return e.getWidth() * e.getHeight();
+	private static void expandToInclude(double[] bbox, double[] other) {
+		if (other[0] < bbox[0]) bbox[0] = other[0];
+		if (other[1] < bbox[1]) bbox[1] = other[1];
+		if (other[2] > bbox[2]) bbox[2] = other[2];
+		if (other[3] > bbox[3]) bbox[3] = other[3];
 	}
 
 	private Node findIndexNodeToDeleteNearestToRoot(Node indexNode) {
@@ -691,8 +1304,12 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 		Relationship relationshipWithFather = indexNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.INCOMING);
 		// the following check is needed because rootNode doesn't have this relationship
 		if (relationshipWithFather != null) {
+			Node father = relationshipWithFather.getStartNode();
+			invalidate(father);
 			relationshipWithFather.delete();
+			childRemoved(father);
 		}
+		invalidate(indexNode);
 		indexNode.delete();
 	}
 	
@@ -726,15 +1343,6 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 		node.delete();
 	}	
 	
-    /**
-     * Create a bounding box encompassing the two bounding boxes passed in.
-     */	
-	private static Envelope createEnvelope(Envelope e, Envelope e1) {
-		Envelope result = new Envelope(e);
-		result.expandToInclude(e1);
-		return result;
-	}
-
 	
 	// Attributes
 	
@@ -742,6 +1350,24 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 	private Layer layer;
 	private int maxNodeReferences;
 	private int minNodeReferences;
+	private IndexNodeCache nodeCache;
+	private String splitStrategy = QUADRATIC_SPLIT;
+	// true while the entries of a forced reinsert are added
+	private boolean reinserting = false;
+
+	// index node properties
+	private static final String PROP_CHILD_COUNT = "childCount";
+	private static final String PROP_LEAF = "leaf";
+
+	public static final String QUADRATIC_SPLIT = "quadratic";
+	public static final String RSTAR_SPLIT = "rstar";
+	
+	// fraction of the entries of an overflowing leaf which are reinserted
+	private static final double RSTAR_REINSERT_FACTOR = 0.3;
+	// minimum fraction of the entries in each node of an R*-tree split
+	private static final double RSTAR_MIN_FILL = 0.4;
+
+	private static final int BULK_COMMIT_INTERVAL = 10000;
 
 	
 	// Private classes
@@ -757,6 +1383,199 @@ public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constan
 		private int count = 0;
 	}
 
+	/**
+	 * A node to be packed by bulkInsert, with its bounding box.
+	 */
+	private static class BulkEntry {
+		final long nodeId;
+		final double[] bbox;
+
+		BulkEntry(long nodeId, double[] bbox) {
+			this.nodeId = nodeId;
+			this.bbox = bbox;
+		}
+	}
+
+	/**
+	 * Orders BulkEntries by the center of their bounding box, on the x axis
+	 * for dimension 0 and on the y axis for dimension 1.
+	 */
+	private static class BulkEntryComparator implements Comparator<BulkEntry> {
+		private final int dimension;
+
+		BulkEntryComparator(int dimension) {
+			this.dimension = dimension;
+		}
+
+		public int compare(BulkEntry e1, BulkEntry e2) {
+			double c1 = e1.bbox[dimension] + e1.bbox[dimension + 2];
+			double c2 = e2.bbox[dimension] + e2.bbox[dimension + 2];
+			return Double.compare(c1, c2);
+		}
+	}
+
+	/**
+	 * The in-memory copy of an index node: its bounding box (null if the node
+	 * has none yet) and the ids of either its child index nodes or, for a leaf,
+	 * of its geometry nodes.
+	 */
+	private static class CachedIndexNode {
+		final double[] bbox;
+		final long[] children;
+		final boolean leaf;
+
+		CachedIndexNode(double[] bbox, long[] children, boolean leaf) {
+			this.bbox = bbox;
+			this.children = children;
+			this.leaf = leaf;
+		}
+	}
+
+	/**
+	 * Least recently used map of cached index nodes, safe for concurrent searches.
+	 */
+	private static class IndexNodeCache {
+		private final Map<Long, CachedIndexNode> nodes;
+
+		IndexNodeCache(final int maxNodes) {
+			this.nodes = new LinkedHashMap<Long, CachedIndexNode>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(Map.Entry<Long, CachedIndexNode> eldest) {
+					return size() > maxNodes;
+				}
+			};
+		}
+
+		synchronized CachedIndexNode get(long indexNodeId) {
+			return nodes.get(indexNodeId);
+		}
+
+		synchronized void put(long indexNodeId, CachedIndexNode cached) {
+			nodes.put(indexNodeId, cached);
+		}
+
+		synchronized void remove(long indexNodeId) {
+			nodes.remove(indexNodeId);
+		}
+
+		synchronized void clear() {
+			nodes.clear();
+		}
+	}
+
+	/**
+	 * An entry in the queue of the best-first nearest neighbour search: an
+	 * index node, or a geometry node either with a lower bound of its distance
+	 * or, if measured is set, with its real distance.
+	 */
+	private static class NearestEntry implements Comparable<NearestEntry> {
+		final Node node;
+		final boolean indexNode;
+		final double distance;
+		final boolean measured;
+		final Geometry geometry;
+
+		NearestEntry(Node node, boolean indexNode, double distance, boolean measured, Geometry geometry) {
+			this.node = node;
+			this.indexNode = indexNode;
+			this.distance = distance;
+			this.measured = measured;
+			this.geometry = geometry;
+		}
+
+		public int compareTo(NearestEntry other) {
+			int result = Double.compare(distance, other.distance);
+			if (result != 0) return result;
+			// on equal distance a measured geometry can be returned first
+			if (measured && !other.measured) return -1;
+			if (!measured && other.measured) return 1;
+			return 0;
+		}
+	}
+
+	/**
+	 * The planar distance to a geometry, in the units of the layer.
+	 */
+	private static class PlanarDistance implements DistanceMeasure {
+		private final Geometry other;
+		private final double[] otherBBox;
+		private final boolean otherIsPoint;
+
+		PlanarDistance(Geometry other) {
+			Envelope envelope = other.getEnvelopeInternal();
+			this.other = other;
+			this.otherBBox = new double[] { envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY() };
+			this.otherIsPoint = other instanceof Point;
+		}
+
+		public double getMinDistance(double[] bbox) {
+			return RTreeIndex.getDistance(bbox, otherBBox);
+		}
+
+		public boolean isExact(double[] bbox) {
+			return otherIsPoint && bbox[0] == bbox[2] && bbox[1] == bbox[3];
+		}
+
+		public double getDistance(Geometry geometry) {
+			return geometry.distance(other);
+		}
+	}
+
+	private class NearestNeighbourIterator implements Iterator<SpatialDatabaseRecord> {
+		private final DistanceMeasure measure;
+		private final double maxDistance;
+		private final PriorityQueue<NearestEntry> queue = new PriorityQueue<NearestEntry>();
+
+		NearestNeighbourIterator(DistanceMeasure measure, double maxDistance) {
+			this.measure = measure;
+			this.maxDistance = maxDistance;
+			if (!isEmpty()) {
+				queue.add(new NearestEntry(getIndexRoot(), true, 0, false, null));
+			}
+		}
+
+		public boolean hasNext() {
+			// expand entries until a geometry with its real distance is first
+			while (!queue.isEmpty() && !queue.peek().measured) {
+				NearestEntry entry = queue.poll();
+				if (!entry.indexNode) {
+					Geometry geometry = layer.getGeometryEncoder().decodeGeometry(entry.node);
+					offer(new NearestEntry(entry.node, false, measure.getDistance(geometry), true, geometry));
+				} else if (nodeIsLeaf(entry.node)) {
+					for (Relationship rel : entry.node.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+						Node geomNode = rel.getEndNode();
+						double[] bbox = getLeafNodeBBox(geomNode);
+						offer(new NearestEntry(geomNode, false, measure.getMinDistance(bbox), measure.isExact(bbox), null));
+					}
+				} else {
+					for (Node child : getIndexNodeChildren(entry.node)) {
+						offer(new NearestEntry(child, true, measure.getMinDistance(getIndexNodeBBox(child)), false, null));
+					}
+				}
+			}
+			return !queue.isEmpty();
+		}
+
+		private void offer(NearestEntry entry) {
+			if (entry.distance <= maxDistance) {
+				queue.add(entry);
+			}
+		}
+
+		public SpatialDatabaseRecord next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			NearestEntry entry = queue.poll();
+			SpatialDatabaseRecord record = new SpatialDatabaseRecordImpl(layer, entry.node, entry.geometry);
+			record.setResult(entry.distance);
+			return record;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("Nearest neighbours can not be removed");
+		}
+	}
+
 	class WarmUpVisitor implements SpatialIndexVisitor {
 		
 		public boolean needsToVisit(Envelope indexNodeEnvelope) { return true; }	
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import org.neo4j.gis.spatial.operation.SpatialQuery;
+import org.neo4j.gis.spatial.operation.restriction.RestrictionMap;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * The <code>SearchResultIterator</code> walks the RTree index of a layer
+ * depth first while it is consumed. The spatial type operation is only
+ * executed on the geometries of the leaf which is currently read, so a caller
+ * which stops early, or a query with a limit, never touches the rest of the
+ * index.
+ *
+ * Operations which aggregate over all geometries, like ST_Closest or
+ * ST_Collect, rewrite the result list and need {@link Layer#execute} instead.
+ *
+ * @author Andreas Wilhelm
+ */
+public class SearchResultIterator implements Iterator<SpatialDatabaseRecord> {
+
+	private final Layer layer;
+	private final SpatialQuery query;
+	private final RestrictionMap restrictions;
+	// Index nodes still to visit, the next one is first.
+	private final LinkedList<Node> indexNodes = new LinkedList<Node>();
+	// The geometry references of the leaf which is currently read.
+	private Iterator<Relationship> references;
+	// Results of the current leaf not yet returned.
+	private final LinkedList<SpatialDatabaseRecord> buffer = new LinkedList<SpatialDatabaseRecord>();
+	private int returned = 0;
+
+	/**
+	 * @param layer
+	 *            the layer which execute the query.
+	 * @param indexRoot
+	 *            the root of the RTree index of the layer.
+	 * @param query
+	 *            the spatial type operation.
+	 * @param restrictions
+	 *            the restrictions of the operation.
+	 */
+	public SearchResultIterator(Layer layer, Node indexRoot,
+			SpatialQuery query, RestrictionMap restrictions) {
+		this.layer = layer;
+		this.query = query;
+		this.restrictions = restrictions;
+		this.indexNodes.add(indexRoot);
+	}
+
+	public boolean hasNext() {
+		if (limitReached()) {
+			return false;
+		}
+		fill();
+		return !buffer.isEmpty();
+	}
+
+	public SpatialDatabaseRecord next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		returned++;
+		return buffer.removeFirst();
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException(
+				"Search results can not be removed");
+	}
+
+	private boolean limitReached() {
+		return query.getLimit() >= 0 && returned >= query.getLimit();
+	}
+
+	/**
+	 * Visit geometries until at least one result is buffered or the index is
+	 * exhausted.
+	 */
+	private void fill() {
+		while (buffer.isEmpty()) {
+			if (references != null && references.hasNext()) {
+				Node geomNode = references.next().getEndNode();
+				if (restrictions.determineNode(geomNode)) {
+					query.onIndexReference(null, geomNode, layer, buffer);
+				}
+			} else if (!indexNodes.isEmpty()) {
+				Node indexNode = indexNodes.removeFirst();
+				if (!query.needsToVisit(GeoprocessingRunnable
+						.getIndexNodeEnvelope(indexNode))) {
+					continue;
+				}
+				if (indexNode.hasRelationship(
+						SpatialRelationshipTypes.RTREE_CHILD,
+						Direction.OUTGOING)) {
+					// Node is not a leaf, visit the children next
+					int position = 0;
+					for (Relationship rel : indexNode.getRelationships(
+							SpatialRelationshipTypes.RTREE_CHILD,
+							Direction.OUTGOING)) {
+						indexNodes.add(position++, rel.getEndNode());
+					}
+				} else {
+					references = indexNode.getRelationships(
+							SpatialRelationshipTypes.RTREE_REFERENCE,
+							Direction.OUTGOING).iterator();
+				}
+			} else {
+				return;
+			}
+		}
+	}
+
+}
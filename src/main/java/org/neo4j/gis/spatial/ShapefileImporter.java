@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import org.geotools.data.shapefile.ShpFiles;
 import org.geotools.data.shapefile.dbf.DbaseFileHeader;
@@ -35,6 +36,7 @@ import org.geotools.data.shapefile.shp.ShapefileException;
 import org.geotools.data.shapefile.shp.ShapefileReader;
 import org.geotools.data.shapefile.shp.ShapefileReader.Record;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -170,6 +172,7 @@ public class ShapefileImporter implements Constants {
 					Geometry geometry;
 					Object[] values;
                     ArrayList<Object> fields = new ArrayList<Object>();
+                    List<Node> geomNodes = new ArrayList<Node>();
 					int recordCounter = 0;
 					while (shpReader.hasNext() && dbfReader.hasNext()) {
 						tx = database.beginTx();
@@ -190,7 +193,7 @@ public class ShapefileImporter implements Constants {
 											log("warn | found empty geometry in record " + recordCounter);
 										} else {
 											// TODO check geometry.isValid() ?
-											layer.add(geometry, fieldsName, fields.toArray(values));
+											geomNodes.add(layer.addWithoutIndex(geometry, fieldsName, fields.toArray(values)));
 										}
 									} catch (IllegalArgumentException e) {
 										// org.geotools.data.shapefile.shp.ShapefileReader.Record.shape() can throw this exception
@@ -206,6 +209,10 @@ public class ShapefileImporter implements Constants {
 							tx.finish();
 						}
 					}
+					
+					// index all geometries at once, this packs the tree much better
+					layer.addAll(geomNodes);
+					log("info | indexed geometries: " + geomNodes.size());
 				} finally {
 					monitor.done();
 				}
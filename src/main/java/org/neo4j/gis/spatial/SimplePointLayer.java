@@ -19,15 +19,9 @@
  */
 package org.neo4j.gis.spatial;
 
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
-import org.neo4j.gis.spatial.operation.Search;
-import org.neo4j.gis.spatial.query.geometry.processing.ST_PointsWithinOrthodromicDistance;
-
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
 
 /**
  * TODO: Doc
@@ -37,38 +31,59 @@ import com.vividsolutions.jts.geom.Envelope;
 public class SimplePointLayer extends EditableLayerImpl {
 	public static final int LIMIT_RESULTS = 100;
 
+	/**
+	 * Find the LIMIT_RESULTS points nearest to the given Longitude / Latitude
+	 * coordinate.
+	 * 
+	 * @see #findClosestPointsTo(Coordinate, double, int)
+	 */
 	public List<SpatialDatabaseRecord> findClosestPointsTo(Coordinate point) {
-		int count = getIndex().count();
-		double scale = (double) LIMIT_RESULTS / (double) count;
-		Envelope bbox = getIndex().getLayerBoundingBox();
-		double width = bbox.getWidth() * scale;
-		double height = bbox.getWidth() * scale;
-		Envelope extent = new Envelope(point);
-		extent.expandToInclude(point.x - width / 2.0, point.y - height / 2.0);
-		extent.expandToInclude(point.x + width / 2.0, point.y + height / 2.0);
-		Search distanceQuery = new ST_PointsWithinOrthodromicDistance(point,
-				extent);
-		return findClosestPoints(distanceQuery);
+		return findNearestPoints(point, LIMIT_RESULTS);
+	}
+
+	/**
+	 * Find the points nearest to the given Longitude / Latitude coordinate.
+	 * 
+	 * @see #findClosestPointsTo(Coordinate, double, int)
+	 */
+	public List<SpatialDatabaseRecord> findNearestPoints(Coordinate point,
+			int limit) {
+		return findClosestPointsTo(point, Double.POSITIVE_INFINITY, limit);
 	}
 
+	/**
+	 * Find all points within the given great-circle distance of the given
+	 * Longitude / Latitude coordinate.
+	 * 
+	 * @see #findClosestPointsTo(Coordinate, double, int)
+	 */
 	public List<SpatialDatabaseRecord> findClosestPointsTo(Coordinate point,
 			double distanceInKm) {
-		Search distanceQuery = new ST_PointsWithinOrthodromicDistance(point,
-				distanceInKm);
-		return findClosestPoints(distanceQuery);
+		return findClosestPointsTo(point, distanceInKm, -1);
 	}
 
-	private List<SpatialDatabaseRecord> findClosestPoints(Search distanceQuery) {
-		this.execute(distanceQuery);
-		List<SpatialDatabaseRecord> results = distanceQuery.getResults();
-		Collections.sort(results, new Comparator<SpatialDatabaseRecord>() {
-
-			public int compare(SpatialDatabaseRecord arg0,
-					SpatialDatabaseRecord arg1) {
-				return ((Double) arg0.getUserData()).compareTo((Double) arg1
-						.getUserData());
-			}
-		});
+	/**
+	 * Find the points nearest to the given Longitude / Latitude coordinate,
+	 * within the given great-circle distance. The index is searched best-first
+	 * by the distance on the sphere to the bounding boxes of its nodes, so only
+	 * the nodes which can contain one of the results are read.
+	 * 
+	 * The result and user data of each record is its distance in km as a
+	 * Double.
+	 * 
+	 * @param limit
+	 *            the maximum number of points, or a negative value for all
+	 *            points within distanceInKm
+	 * @return the points, nearest first
+	 */
+	public List<SpatialDatabaseRecord> findClosestPointsTo(Coordinate point,
+			double distanceInKm, int limit) {
+		List<SpatialDatabaseRecord> results = ((RTreeIndex) index)
+				.searchNearest(new OrthodromicDistance(point), distanceInKm,
+						limit);
+		for (SpatialDatabaseRecord record : results) {
+			record.setUserData((Double) record.getResult());
+		}
 		return results;
 	}
 
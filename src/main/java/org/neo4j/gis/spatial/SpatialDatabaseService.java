@@ -55,7 +55,18 @@ public class SpatialDatabaseService implements Constants {
     // Constructor
 	
 	public SpatialDatabaseService(GraphDatabaseService database) {
+		this(database, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param database
+	 * @param geoprocessingThreads
+	 *            maximum number of threads shared by all parallel searches on
+	 *            the layers of this service
+	 */
+	public SpatialDatabaseService(GraphDatabaseService database, int geoprocessingThreads) {
 		this.database = database;
+		this.geoprocessingExecutor = new GeoprocessingExecutor(geoprocessingThreads);
 	}
 
 	
@@ -298,11 +309,28 @@ public class SpatialDatabaseService implements Constants {
 	public GraphDatabaseService getDatabase() {
 		return database;
 	}
+
+	/**
+	 * The executor shared by all layers of this service for parallel
+	 * geoprocessing, see Layer.execute(Search).
+	 */
+	public GeoprocessingExecutor getGeoprocessingExecutor() {
+		return geoprocessingExecutor;
+	}
+
+	/**
+	 * Stop the geoprocessing threads of this service. This should be called
+	 * before the database is shut down.
+	 */
+	public void shutdown() {
+		geoprocessingExecutor.shutdown();
+	}
 	
 	
 	// Attributes
 	
 	private GraphDatabaseService database;
+	private GeoprocessingExecutor geoprocessingExecutor;
 
 	@SuppressWarnings("unchecked")
 	public static int convertGeometryNameToType(String geometryName) {
@@ -33,6 +33,13 @@ public interface SpatialIndexWriter extends SpatialIndexReader {
 	 * @param geomNode the
 	 */
 	void add(Node geomNode);
+
+	/**
+	 * Add many nodes at once, which can be much faster than adding them one
+	 * by one. Transactions are handled by the index.
+	 * @param geomNodes the geometry nodes to index
+	 */
+	void bulkInsert(Iterable<Node> geomNodes);
 	
 	/**
 	 * 
@@ -21,6 +21,7 @@ package org.neo4j.gis.spatial;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.Map;
 
 import org.geotools.geometry.jts.ReferencedEnvelope;
@@ -44,6 +45,9 @@ import com.vividsolutions.jts.linearref.LocationIndexedLine;
  * @author craig
  */
 public class SpatialTopologyUtils {
+	// number of edges returned by findClosestEdges(Point, Layer)
+	private static final int DEFAULT_NEAREST_EDGES = 10;
+
 	/**
 	 * Inner class associating points and resulting geometry records to
 	 * facilitate the result set returned.
@@ -95,11 +99,41 @@ public class SpatialTopologyUtils {
 		}
 	}
 
+	/**
+	 * Find the edges closest to the point. For layers indexed with an
+	 * RTreeIndex these are the nearest edges however far away they are,
+	 * otherwise the edges within 1% of the layer extent.
+	 */
 	public static ArrayList<PointResult> findClosestEdges(Point point,
 			Layer layer) {
+		if (layer.getIndex() instanceof RTreeIndex) {
+			return findNearestEdges(point, layer, DEFAULT_NEAREST_EDGES);
+		}
 		return findClosestEdges(point, layer, 0.0);
 	}
 
+	/**
+	 * Find the k edges (LineStrings) nearest to the point with a best-first
+	 * search of the layer index, without guessing a search window.
+	 * 
+	 * @return at most k results, nearest first
+	 */
+	public static ArrayList<PointResult> findNearestEdges(Point point,
+			Layer layer, int k) {
+		ArrayList<PointResult> results = new ArrayList<PointResult>();
+		Iterator<SpatialDatabaseRecord> nearest = ((RTreeIndex) layer
+				.getIndex()).getNearestNeighbours(point);
+		while (results.size() < k && nearest.hasNext()) {
+			SpatialDatabaseRecord record = nearest.next();
+			Geometry geom = record.getGeometry();
+			if (geom instanceof LineString) {
+				results.add(snapToEdge(point, layer, record, geom));
+			}
+		}
+		Collections.sort(results);
+		return results;
+	}
+
 	public static ArrayList<PointResult> findClosestEdges(Point point,
 			Layer layer, double distance) {
 		ReferencedEnvelope env = new ReferencedEnvelope(layer.getIndex()
@@ -120,18 +154,23 @@ public class SpatialTopologyUtils {
 		for (SpatialDatabaseRecord record : searchQuery.getResults()) {
 			Geometry geom = record.getGeometry();
 			if (geom instanceof LineString) {
-				LocationIndexedLine line = new LocationIndexedLine(geom);
-				LinearLocation here = line.project(point.getCoordinate());
-				Coordinate snap = line.extractPoint(here);
-				double distance = snap.distance(point.getCoordinate());
-				results.add(new PointResult(layer.getGeometryFactory()
-						.createPoint(snap), record, distance));
+				results.add(snapToEdge(point, layer, record, geom));
 			}
 		}
 		Collections.sort(results);
 		return results;
 	}
 
+	private static PointResult snapToEdge(Point point, Layer layer,
+			SpatialDatabaseRecord record, Geometry edge) {
+		LocationIndexedLine line = new LocationIndexedLine(edge);
+		LinearLocation here = line.project(point.getCoordinate());
+		Coordinate snap = line.extractPoint(here);
+		double distance = snap.distance(point.getCoordinate());
+		return new PointResult(layer.getGeometryFactory().createPoint(snap),
+				record, distance);
+	}
+
 	/**
 	 * Adjust the size and position of a ReferencedEnvelope using fractions of
 	 * the current size. For example:
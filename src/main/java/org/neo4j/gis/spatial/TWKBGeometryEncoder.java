@@ -0,0 +1,282 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.ByteArrayOutputStream;
+
+import org.neo4j.gis.spatial.encoders.Configurable;
+import org.neo4j.graphdb.PropertyContainer;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+
+/**
+ * Stores geometries in a compact binary form like TWKB. The coordinates are
+ * rounded to a number of decimal digits, and each one is stored as the
+ * difference to the previous one, in a zig-zag varint of one to a few bytes
+ * instead of the eight of a double. Only x and y are stored. The envelope is
+ * kept in the bbox property as by the other encoders, so decodeEnvelope
+ * does not read the shape.
+ * 
+ * The configuration is the number of decimal digits, 7 by default, which is
+ * about a centimeter in degrees. It is kept in each geometry, so geometries
+ * stored with another precision still decode.
+ */
+public class TWKBGeometryEncoder extends AbstractGeometryEncoder implements Configurable {
+	public static final int DEFAULT_PRECISION = 7;
+	private static final double MAX_SCALED_ORDINATE = Math.pow(2, 62);
+
+	private int precision = DEFAULT_PRECISION;
+
+	// Public methods
+
+	public Geometry decodeGeometry(PropertyContainer container) {
+		return new Reader((byte[]) container.getProperty(PROP_TWKB), layer.getGeometryFactory()).readGeometry();
+	}
+
+	public String getConfiguration() {
+		return Integer.toString(precision);
+	}
+
+	public void setConfiguration(String configuration) {
+		if (configuration != null && configuration.length() > 0) {
+			int precision = Integer.parseInt(configuration);
+			if (precision < 0 || precision > 15) {
+				throw new SpatialDatabaseException("Precision must be from 0 to 15 decimal digits, but was " + precision);
+			}
+			this.precision = precision;
+		}
+	}
+
+	public void encodeGeometry(Geometry geometry, PropertyContainer container) {
+		if (geometry.getClass() == GeometryCollection.class) {
+			// only the collections of one type have a TWKB type
+			throw new SpatialDatabaseException("Cannot encode a " + geometry.getGeometryType() + " as TWKB");
+		}
+		super.encodeGeometry(geometry, container);
+	}
+
+	// Protected methods
+
+	protected void encodeGeometryShape(Geometry geometry, PropertyContainer container) {
+		Writer writer = new Writer();
+		writer.writeGeometry(geometry);
+		container.setProperty(PROP_TWKB, writer.toByteArray());
+	}
+
+	// Private classes
+
+	/**
+	 * Writes the type and precision in the first byte, followed by the
+	 * counts and coordinates of the parts.
+	 */
+	private class Writer {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private final double scale = Math.pow(10, precision);
+		private long lastX = 0;
+		private long lastY = 0;
+
+		private void writeGeometry(Geometry geometry) {
+			int gtype = encodeGeometryType(geometry.getGeometryType());
+			out.write(gtype | precision << 4);
+			switch (gtype) {
+			case GTYPE_POINT:
+				if (geometry.isEmpty()) {
+					throw new SpatialDatabaseException("Cannot encode an empty point");
+				}
+				writeCoordinate(((Point) geometry).getCoordinate());
+				break;
+			case GTYPE_LINESTRING:
+				writeCoordinates(((LineString) geometry).getCoordinateSequence());
+				break;
+			case GTYPE_POLYGON:
+				writePolygon((Polygon) geometry);
+				break;
+			default:
+				writeVarint(geometry.getNumGeometries());
+				for (int i = 0; i < geometry.getNumGeometries(); i++) {
+					Geometry part = geometry.getGeometryN(i);
+					if (gtype == GTYPE_MULTIPOINT) {
+						writeCoordinate(part.getCoordinate());
+					} else if (gtype == GTYPE_MULTILINESTRING) {
+						writeCoordinates(((LineString) part).getCoordinateSequence());
+					} else {
+						writePolygon((Polygon) part);
+					}
+				}
+			}
+		}
+
+		private void writePolygon(Polygon polygon) {
+			if (polygon.isEmpty()) {
+				writeVarint(0);
+				return;
+			}
+			writeVarint(polygon.getNumInteriorRing() + 1);
+			writeCoordinates(polygon.getExteriorRing().getCoordinateSequence());
+			for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+				writeCoordinates(polygon.getInteriorRingN(i).getCoordinateSequence());
+			}
+		}
+
+		private void writeCoordinates(CoordinateSequence coordinates) {
+			writeVarint(coordinates.size());
+			for (int i = 0; i < coordinates.size(); i++) {
+				writeCoordinate(coordinates.getCoordinate(i));
+			}
+		}
+
+		private void writeCoordinate(Coordinate coordinate) {
+			long x = toLong(coordinate.x);
+			long y = toLong(coordinate.y);
+			writeVarint(zigZag(x - lastX));
+			writeVarint(zigZag(y - lastY));
+			lastX = x;
+			lastY = y;
+		}
+
+		/**
+		 * Scale the ordinate to an integer, small enough for the difference
+		 * of two of them to fit in a long as well.
+		 */
+		private long toLong(double ordinate) {
+			double value = ordinate * scale;
+			if (!(Math.abs(value) < MAX_SCALED_ORDINATE)) {
+				throw new SpatialDatabaseException("Cannot encode " + ordinate + " with precision " + precision);
+			}
+			return Math.round(value);
+		}
+
+		private void writeVarint(long value) {
+			while ((value & ~0x7FL) != 0) {
+				out.write((int) (value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.write((int) value);
+		}
+
+		private long zigZag(long value) {
+			return (value << 1) ^ (value >> 63);
+		}
+
+		private byte[] toByteArray() {
+			return out.toByteArray();
+		}
+	}
+
+	private static class Reader {
+		private final byte[] data;
+		private final GeometryFactory geometryFactory;
+		private int pos = 0;
+		private double scale;
+		private long lastX = 0;
+		private long lastY = 0;
+
+		private Reader(byte[] data, GeometryFactory geometryFactory) {
+			this.data = data;
+			this.geometryFactory = geometryFactory;
+		}
+
+		private Geometry readGeometry() {
+			int header = data[pos++] & 0xFF;
+			scale = Math.pow(10, header >> 4);
+			int gtype = header & 0x0F;
+			switch (gtype) {
+			case GTYPE_POINT:
+				return geometryFactory.createPoint(readCoordinate());
+			case GTYPE_LINESTRING:
+				return geometryFactory.createLineString(readCoordinates());
+			case GTYPE_POLYGON:
+				return readPolygon();
+			case GTYPE_MULTIPOINT:
+				Coordinate[] points = new Coordinate[(int) readVarint()];
+				for (int i = 0; i < points.length; i++) {
+					points[i] = readCoordinate();
+				}
+				return geometryFactory.createMultiPoint(points);
+			case GTYPE_MULTILINESTRING:
+				LineString[] lines = new LineString[(int) readVarint()];
+				for (int i = 0; i < lines.length; i++) {
+					lines[i] = geometryFactory.createLineString(readCoordinates());
+				}
+				return geometryFactory.createMultiLineString(lines);
+			case GTYPE_MULTIPOLYGON:
+				Polygon[] polygons = new Polygon[(int) readVarint()];
+				for (int i = 0; i < polygons.length; i++) {
+					polygons[i] = readPolygon();
+				}
+				return geometryFactory.createMultiPolygon(polygons);
+			default:
+				throw new SpatialDatabaseException("Unknown geometry type in TWKB: " + gtype);
+			}
+		}
+
+		private Polygon readPolygon() {
+			int rings = (int) readVarint();
+			if (rings == 0) {
+				return geometryFactory.createPolygon(null, null);
+			}
+			LinearRing shell = geometryFactory.createLinearRing(readCoordinates());
+			LinearRing[] holes = new LinearRing[rings - 1];
+			for (int i = 0; i < holes.length; i++) {
+				holes[i] = geometryFactory.createLinearRing(readCoordinates());
+			}
+			return geometryFactory.createPolygon(shell, holes);
+		}
+
+		private Coordinate[] readCoordinates() {
+			Coordinate[] coordinates = new Coordinate[(int) readVarint()];
+			for (int i = 0; i < coordinates.length; i++) {
+				coordinates[i] = readCoordinate();
+			}
+			return coordinates;
+		}
+
+		private Coordinate readCoordinate() {
+			lastX += unZigZag(readVarint());
+			lastY += unZigZag(readVarint());
+			return new Coordinate(lastX / scale, lastY / scale);
+		}
+
+		private long readVarint() {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[pos++];
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		private long unZigZag(long value) {
+			return (value >>> 1) ^ -(value & 1);
+		}
+	}
+}
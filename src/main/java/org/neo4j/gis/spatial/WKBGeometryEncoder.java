@@ -22,9 +22,6 @@ package org.neo4j.gis.spatial;
 import org.neo4j.graphdb.PropertyContainer;
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.io.ParseException;
-import com.vividsolutions.jts.io.WKBReader;
-import com.vividsolutions.jts.io.WKBWriter;
 
 
 /**
@@ -35,19 +32,13 @@ public class WKBGeometryEncoder extends AbstractGeometryEncoder {
 	// Public methods
 	
 	public Geometry decodeGeometry(PropertyContainer container) {
-		try {
-			WKBReader reader = new WKBReader(layer.getGeometryFactory());
-			return reader.read((byte[]) container.getProperty(PROP_WKB));
-		} catch (ParseException e) {
-			throw new SpatialDatabaseException(e.getMessage(), e);
-		}
+		return GeometryCodecs.readWKB((byte[]) container.getProperty(PROP_WKB), layer.getGeometryFactory());
 	}
 	
 	
 	// Protected methods
 	
 	protected void encodeGeometryShape(Geometry geometry, PropertyContainer container) {
-        WKBWriter writer = new WKBWriter();
-        container.setProperty(PROP_WKB, writer.write(geometry));
+        container.setProperty(PROP_WKB, GeometryCodecs.writeWKB(geometry));
 	}
 }
\ No newline at end of file
@@ -22,9 +22,6 @@ package org.neo4j.gis.spatial;
 import org.neo4j.graphdb.PropertyContainer;
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.io.ParseException;
-import com.vividsolutions.jts.io.WKTReader;
-import com.vividsolutions.jts.io.WKTWriter;
 
 
 /**
@@ -35,19 +32,13 @@ public class WKTGeometryEncoder extends AbstractGeometryEncoder {
 	// Public methods
 	
 	public Geometry decodeGeometry(PropertyContainer container) {
-		try {
-			WKTReader reader = new WKTReader(layer.getGeometryFactory());
-			return reader.read((String) container.getProperty(PROP_WKT));
-		} catch (ParseException e) {
-			throw new SpatialDatabaseException(e.getMessage(), e);
-		}
+		return GeometryCodecs.readWKT((String) container.getProperty(PROP_WKT), layer.getGeometryFactory());
 	}
 	
 	
 	// Protected methods
 	
 	protected void encodeGeometryShape(Geometry geometry, PropertyContainer container) {
-        WKTWriter writer = new WKTWriter();
-        container.setProperty(PROP_WKT, writer.write(geometry));
+        container.setProperty(PROP_WKT, GeometryCodecs.writeWKT(geometry));
 	}
 }
\ No newline at end of file
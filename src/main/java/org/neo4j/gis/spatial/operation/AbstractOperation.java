@@ -55,6 +55,10 @@ public abstract class AbstractOperation {
 	private CoordinateReferenceSystem crs = null;
 	// Contains the delete restrictions.
 	protected RestrictionMap restrictions;
+	// The envelope to restrict the visited index nodes, null for the whole layer.
+	private Envelope searchEnvelope = null;
+	// The maximum number of records to return, negative for no limit.
+	private int limit = -1;
 	//
 	private int threadPoolSize = 8;
 	//
@@ -125,6 +129,47 @@ public abstract class AbstractOperation {
 
 	}
 
+	/**
+	 * @see SpatialQuery#getSearchEnvelope()
+	 */
+	public Envelope getSearchEnvelope() {
+		return searchEnvelope;
+	}
+
+	/**
+	 * Sets the envelope which contains every geometry this operation could
+	 * return. Spatial type operations with a spatial predicate should set it,
+	 * so that the layer does not need to visit the whole index.
+	 * 
+	 * @param searchEnvelope
+	 *            The search envelope or null to visit the whole layer.
+	 */
+	protected void setSearchEnvelope(Envelope searchEnvelope) {
+		this.searchEnvelope = searchEnvelope;
+	}
+
+	/**
+	 * @see SpatialQuery#needsToVisit(Envelope)
+	 */
+	public boolean needsToVisit(Envelope indexNodeEnvelope) {
+		return searchEnvelope == null || indexNodeEnvelope == null
+				|| searchEnvelope.intersects(indexNodeEnvelope);
+	}
+
+	/**
+	 * @see SpatialQuery#getLimit()
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @see SpatialQuery#setLimit(int)
+	 */
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
 	/**
 	 * @see SpatialQuery#getThreadPoolSize()
 	 */
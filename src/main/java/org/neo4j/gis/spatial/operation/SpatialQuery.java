@@ -26,6 +26,8 @@ import org.neo4j.gis.spatial.RTreeIndex;
 import org.neo4j.gis.spatial.SpatialDatabaseRecord;
 import org.neo4j.graphdb.Node;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  * This <code>SpatialQuery</code> interface provides the base APIs to
  * execute spatial type operations.
@@ -68,6 +70,45 @@ public interface SpatialQuery {
 	public abstract SpatialDatabaseRecord onIndexReference(OperationType type, Node node,
 			Layer layer, List<SpatialDatabaseRecord> records);
 	
+	/**
+	 * Gets the envelope which contains every geometry this spatial type
+	 * operation could be interested in. The layer uses it to skip index
+	 * subtrees which cannot contain a result.
+	 * 
+	 * @return Returns the search envelope or null if the whole layer has to
+	 *         be visited.
+	 */
+	public abstract Envelope getSearchEnvelope();
+
+	/**
+	 * Determine if the subtree of an index node with the given envelope has to
+	 * be visited by this spatial type operation.
+	 * 
+	 * @param indexNodeEnvelope
+	 *            The {@link Envelope} of the index node.
+	 * @return Returns false if no geometry of the subtree can be a result.
+	 */
+	public abstract boolean needsToVisit(Envelope indexNodeEnvelope);
+
+	/**
+	 * Sets the maximum number of records the spatial type operation should
+	 * return. The layer stops visiting the index as soon as enough records are
+	 * found.
+	 * 
+	 * @param limit
+	 *            The maximum number of records or a negative value for no
+	 *            limit.
+	 */
+	public abstract void setLimit(int limit);
+
+	/**
+	 * Gets the maximum number of records the spatial type operation should
+	 * return.
+	 * 
+	 * @return Returns the limit or a negative value if there is no limit.
+	 */
+	public abstract int getLimit();
+
 	/**
 	 * 
 	 * @param nThreads
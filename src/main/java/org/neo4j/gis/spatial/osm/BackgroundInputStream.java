@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads another stream on a separate thread, ahead of the reader of this
+ * stream, through a bounded buffer of chunks. Used to decompress OSM files
+ * while they are parsed.
+ */
+class BackgroundInputStream extends InputStream {
+	public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+	public static final int DEFAULT_CHUNKS = 32;
+
+	private static final byte[] END = new byte[0];
+
+	private final InputStream source;
+	private final BlockingQueue<byte[]> chunks;
+	private final Thread thread;
+	private volatile Throwable error;
+	private byte[] chunk;
+	private int position;
+	private int limit;
+	private boolean ended = false;
+
+	BackgroundInputStream(InputStream source) {
+		this(source, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS);
+	}
+
+	BackgroundInputStream(InputStream source, final int chunkSize, int chunks) {
+		this.source = source;
+		this.chunks = new ArrayBlockingQueue<byte[]>(chunks);
+		this.thread = new Thread("OSM input") {
+			public void run() {
+				try {
+					while (!isInterrupted()) {
+						byte[] buffer = new byte[chunkSize];
+						int length = fill(buffer);
+						if (length > 0) {
+							put(length == buffer.length ? buffer : copyOf(buffer, length));
+						}
+						if (length < buffer.length) {
+							break;
+						}
+					}
+				} catch (InterruptedException e) {
+					// closed by the reader
+					return;
+				} catch (Throwable e) {
+					error = e;
+				}
+				try {
+					put(END);
+				} catch (InterruptedException e) {
+					// closed by the reader
+				}
+			}
+		};
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	private int fill(byte[] buffer) throws IOException {
+		int length = 0;
+		while (length < buffer.length) {
+			int n = source.read(buffer, length, buffer.length - length);
+			if (n < 0) {
+				break;
+			}
+			length += n;
+		}
+		return length;
+	}
+
+	private static byte[] copyOf(byte[] buffer, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(buffer, 0, copy, 0, length);
+		return copy;
+	}
+
+	private void put(byte[] buffer) throws InterruptedException {
+		chunks.put(buffer);
+	}
+
+	/**
+	 * Make the next chunk current, returning false at the end of the stream.
+	 */
+	private boolean nextChunk() throws IOException {
+		while (!ended && position >= limit) {
+			try {
+				chunk = chunks.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading");
+			}
+			if (chunk == END) {
+				ended = true;
+				if (error != null) {
+					if (error instanceof IOException) {
+						throw (IOException) error;
+					}
+					IOException exception = new IOException("Error reading input: " + error);
+					exception.initCause(error);
+					throw exception;
+				}
+			}
+			position = 0;
+			limit = chunk.length;
+		}
+		return !ended;
+	}
+
+	public int read() throws IOException {
+		if (!nextChunk()) {
+			return -1;
+		}
+		return chunk[position++] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextChunk()) {
+			return -1;
+		}
+		int n = Math.min(len, limit - position);
+		System.arraycopy(chunk, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	public int available() {
+		return limit - position;
+	}
+
+	public void close() throws IOException {
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		source.close();
+	}
+}
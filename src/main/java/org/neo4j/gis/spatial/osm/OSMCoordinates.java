@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import org.neo4j.gis.spatial.SpatialDatabaseException;
+
+/**
+ * Keeps the locations of the imported OSM nodes by the id of the graph node
+ * created for them, so ways and relations can be assembled without reading
+ * the node properties again. Locations are stored in the fixed point format
+ * of OSM, 1e-7 degrees in an int, which represents the 7 decimals of the OSM
+ * XML exactly.
+ * 
+ * Graph node ids are handed out densely, so the locations are kept in
+ * segments of consecutive ids that are only allocated when used. Segments
+ * live in direct buffers up to the spill size, and beyond it in a
+ * memory-mapped temporary file.
+ */
+class OSMCoordinates {
+	public static final long DEFAULT_SPILL_BYTES = 256L << 20;
+
+	private static final int SEGMENT_BITS = 20;
+	private static final int SEGMENT_IDS = 1 << SEGMENT_BITS;
+	private static final int SEGMENT_BYTES = SEGMENT_IDS * 8;
+	private static final double SCALE = 1e7;
+	// added to stored latitudes, so that 0 marks a missing location
+	private static final int LAT_OFFSET = 1000000000;
+
+	private final long spillBytes;
+	private IntBuffer[] segments = new IntBuffer[16];
+	private long allocatedBytes = 0;
+	private File file;
+	private RandomAccessFile raf;
+
+	OSMCoordinates() {
+		this(DEFAULT_SPILL_BYTES);
+	}
+
+	OSMCoordinates(long spillBytes) {
+		this.spillBytes = spillBytes;
+	}
+
+	void put(long id, double lon, double lat) {
+		IntBuffer segment = getSegment(id, true);
+		int position = (int) (id & (SEGMENT_IDS - 1)) * 2;
+		segment.put(position, (int) Math.round(lon * SCALE));
+		segment.put(position + 1, (int) Math.round(lat * SCALE) + LAT_OFFSET);
+	}
+
+	/**
+	 * @return the location as {lon, lat}, or null if none is stored for the id
+	 */
+	double[] get(long id) {
+		double[] location = new double[2];
+		return get(id, location) ? location : null;
+	}
+
+	/**
+	 * Read the location into the given array as {lon, lat}.
+	 * 
+	 * @return false if no location is stored for the id
+	 */
+	boolean get(long id, double[] location) {
+		IntBuffer segment = getSegment(id, false);
+		if (segment == null) {
+			return false;
+		}
+		int position = (int) (id & (SEGMENT_IDS - 1)) * 2;
+		int lat = segment.get(position + 1);
+		if (lat == 0) {
+			return false;
+		}
+		location[0] = segment.get(position) / SCALE;
+		location[1] = (lat - LAT_OFFSET) / SCALE;
+		return true;
+	}
+
+	/**
+	 * Release the stored locations, after which nothing can be stored or read.
+	 */
+	void close() {
+		segments = new IntBuffer[0];
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			raf = null;
+			file.delete();
+			file = null;
+		}
+	}
+
+	private IntBuffer getSegment(long id, boolean create) {
+		if (id < 0) {
+			throw new IllegalArgumentException("Invalid node id: " + id);
+		}
+		long index = id >>> SEGMENT_BITS;
+		if (index >= segments.length) {
+			if (!create) {
+				return null;
+			}
+			IntBuffer[] grown = new IntBuffer[(int) Math.max(index + 1, segments.length * 2)];
+			System.arraycopy(segments, 0, grown, 0, segments.length);
+			segments = grown;
+		}
+		IntBuffer segment = segments[(int) index];
+		if (segment == null && create) {
+			segment = allocate(index).order(ByteOrder.nativeOrder()).asIntBuffer();
+			segments[(int) index] = segment;
+		}
+		return segment;
+	}
+
+	private ByteBuffer allocate(long index) {
+		allocatedBytes += SEGMENT_BYTES;
+		if (allocatedBytes <= spillBytes) {
+			return ByteBuffer.allocateDirect(SEGMENT_BYTES);
+		}
+		try {
+			if (raf == null) {
+				file = File.createTempFile("osm-coordinates-", ".bin");
+				file.deleteOnExit();
+				raf = new RandomAccessFile(file, "rw");
+			}
+			// segments are mapped at the offset of their ids, leaving a sparse file
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, index * SEGMENT_BYTES, SEGMENT_BYTES);
+		} catch (IOException e) {
+			throw new SpatialDatabaseException("Failed to map coordinate file: " + e.getMessage(), e);
+		}
+	}
+}
@@ -21,6 +21,7 @@ package org.neo4j.gis.spatial.osm;
 
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 import org.neo4j.gis.spatial.GeometryEncoder;
 import org.neo4j.gis.spatial.Layer;
@@ -109,6 +110,10 @@ public class OSMDataset implements SpatialDataset, Iterable<OSMDataset.Way>, Ite
 	}
 
 	public Iterable<Node> getWayNodes(Node way) {
+		List<Node> compactNodes = OSMGeometryEncoder.getCompactWayNodes(way);
+		if (compactNodes != null) {
+			return compactNodes;
+		}
 		return way.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.OUTGOING).getEndNode()
 				.traverse(Order.DEPTH_FIRST, StopEvaluator.END_OF_GRAPH, new ReturnableEvaluator() {
 
@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Keeps the geometries decoded by the OSMGeometryEncoder by the id of their
+ * geometry node, so that ways and relations drawn again and again are not
+ * assembled from the graph every time. There is one cache per database,
+ * shared by all OSM layers and encoders on it.
+ * 
+ * The cache is bounded by an estimate of the memory of the geometries, and
+ * the least recently used geometries are evicted first. The geometries are
+ * also only softly referenced, so the garbage collector can reclaim them
+ * under memory pressure. Changes made through the OSMLayer and the
+ * OSMImporter invalidate the geometries they affect.
+ */
+public class OSMGeometryCache {
+	public static final long DEFAULT_MAX_BYTES = 32L << 20;
+
+	// rough sizes of a Coordinate with its reference, and of a geometry
+	private static final int BYTES_PER_VERTEX = 48;
+	private static final int BYTES_PER_GEOMETRY = 128;
+
+	private static final Map<GraphDatabaseService, OSMGeometryCache> caches = new WeakHashMap<GraphDatabaseService, OSMGeometryCache>();
+
+	private static class Entry {
+		private final SoftReference<Geometry> geometry;
+		private final long bytes;
+
+		private Entry(Geometry geometry, long bytes) {
+			this.geometry = new SoftReference<Geometry>(geometry);
+			this.bytes = bytes;
+		}
+	}
+
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(1024, 0.75f, true);
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long deletedTags = 0;
+
+	public static OSMGeometryCache forDatabase(GraphDatabaseService database) {
+		synchronized (caches) {
+			OSMGeometryCache cache = caches.get(database);
+			if (cache == null) {
+				cache = new OSMGeometryCache();
+				caches.put(database, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * @return the cached geometry, or null if it is not cached. The caller
+	 *         must not modify it.
+	 */
+	public synchronized Geometry get(long geomNodeId) {
+		Entry entry = entries.get(geomNodeId);
+		Geometry geometry = entry == null ? null : entry.geometry.get();
+		if (geometry == null) {
+			if (entry != null) {
+				// reclaimed by the garbage collector
+				remove(geomNodeId);
+			}
+			misses++;
+		} else {
+			hits++;
+		}
+		return geometry;
+	}
+
+	public synchronized void put(long geomNodeId, Geometry geometry) {
+		long size = BYTES_PER_GEOMETRY + (long) geometry.getNumPoints() * BYTES_PER_VERTEX;
+		remove(geomNodeId);
+		if (size > maxBytes) {
+			return;
+		}
+		entries.put(geomNodeId, new Entry(geometry, size));
+		bytes += size;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			bytes -= eldest.next().bytes;
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Forget the geometry of the given node, after it has changed.
+	 */
+	public synchronized void invalidate(long geomNodeId) {
+		remove(geomNodeId);
+	}
+
+	/**
+	 * Note that tags nodes were deleted, so the encoders forget the tags they
+	 * keep by node id, which can be reused by new nodes.
+	 */
+	public synchronized void invalidateTags() {
+		deletedTags++;
+	}
+
+	/**
+	 * @return the number of times tags nodes were deleted
+	 */
+	public synchronized long getDeletedTags() {
+		return deletedTags;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	private void remove(long geomNodeId) {
+		Entry entry = entries.remove(geomNodeId);
+		if (entry != null) {
+			bytes -= entry.bytes;
+		}
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return the estimated memory of the cached geometries
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public String toString() {
+		return "OSMGeometryCache[" + size() + " geometries, " + getBytes() + " bytes, " + getHits() + " hits, "
+				+ getMisses() + " misses]";
+	}
+}
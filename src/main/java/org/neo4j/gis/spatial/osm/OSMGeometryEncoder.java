@@ -21,12 +21,19 @@ package org.neo4j.gis.spatial.osm;
 
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.neo4j.gis.spatial.AbstractGeometryEncoder;
+import org.neo4j.gis.spatial.GeometryCodecs;
 import org.neo4j.gis.spatial.SpatialDatabaseException;
 import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.SpatialRelationshipTypes;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -53,6 +60,11 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	private DateFormat dateTimeFormatter;
 	private int vertices;
 	private int vertexMistmaches = 0;
+	private OSMGeometryCache cache;
+	private static final int SHARED_TAGS_CACHE_SIZE = 10000;
+	private Boolean sharedTags = null;
+	private final LinkedHashMap<Long, PropertyContainer> sharedTagsProperties = new LinkedHashMap<Long, PropertyContainer>(1024, 0.75f, true);
+	private long deletedTags = 0;
 
 	/**
 	 * This class allows for OSM to avoid having empty tags nodes when there are no properties on a geometry.
@@ -91,6 +103,54 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	    }
     }
 
+	/**
+	 * A read only copy of the properties of a shared tags node.
+	 */
+	private static final class TagsProperties implements PropertyContainer {
+		private final Map<String, Object> properties;
+
+		private TagsProperties(Node tagsNode) {
+			HashMap<String, Object> properties = new HashMap<String, Object>();
+			for (String key : tagsNode.getPropertyKeys()) {
+				properties.put(key, tagsNode.getProperty(key));
+			}
+			this.properties = Collections.unmodifiableMap(properties);
+		}
+
+		public GraphDatabaseService getGraphDatabase() {
+			return null;
+		}
+
+		public Object getProperty(String key) {
+			return properties.get(key);
+		}
+
+		public Object getProperty(String key, Object defaultValue) {
+			Object value = properties.get(key);
+			return value == null ? defaultValue : value;
+		}
+
+		public Iterable<String> getPropertyKeys() {
+			return properties.keySet();
+		}
+
+		public Iterable<Object> getPropertyValues() {
+			return properties.values();
+		}
+
+		public boolean hasProperty(String key) {
+			return properties.containsKey(key);
+		}
+
+		public Object removeProperty(String key) {
+			throw new UnsupportedOperationException("Shared tags are read only");
+		}
+
+		public void setProperty(String key, Object value) {
+			throw new UnsupportedOperationException("Shared tags are read only");
+		}
+	}
+
 	public static class OSMGraphException extends SpatialDatabaseException {
         private static final long serialVersionUID = -6892234738075001044L;
 
@@ -151,6 +211,10 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
     }
 
     public Iterable<Node> getPointNodesFromWayNode(Node wayNode) {
+        List<Node> compactNodes = getCompactWayNodes(wayNode);
+        if (compactNodes != null) {
+            return compactNodes;
+        }
         final Node firstNode = wayNode.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.OUTGOING).getEndNode();
         final NodeProxyIterator iterator = new NodeProxyIterator(firstNode);
         return new Iterable<Node>(){
@@ -160,10 +224,58 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
             }};
     }
 
+	/**
+	 * The point nodes of a way imported with compact geometries, from the node
+	 * ids kept on its geometry node, or null if the way has a chain of proxy
+	 * nodes.
+	 */
+	public static List<Node> getCompactWayNodes(Node wayNode) {
+		Relationship geomRel = wayNode.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+		if (geomRel == null || !geomRel.getEndNode().hasProperty("way_nodes")) {
+			return null;
+		}
+		long[] ids = (long[]) geomRel.getEndNode().getProperty("way_nodes");
+		GraphDatabaseService db = wayNode.getGraphDatabase();
+		ArrayList<Node> nodes = new ArrayList<Node>(ids.length);
+		for (long id : ids) {
+			nodes.add(db.getNodeById(id));
+		}
+		return nodes;
+	}
+
+	/**
+	 * Decode the geometry, or copy it from the OSMGeometryCache of the
+	 * database if it was decoded before.
+	 */
     public Geometry decodeGeometry(PropertyContainer container) {
         Node geomNode = testIsNode(container);
+        if (cache == null) {
+            cache = OSMGeometryCache.forDatabase(geomNode.getGraphDatabase());
+        }
+        Geometry geometry = cache.get(geomNode.getId());
+        if (geometry == null) {
+            geometry = decodeGeometryFromNode(geomNode);
+            if (geometry == null) {
+                return null;
+            }
+            cache.put(geomNode.getId(), geometry);
+        }
+        // the cached geometry is shared, so callers get their own copy
+        return (Geometry) geometry.clone();
+    }
+
+    private Geometry decodeGeometryFromNode(Node geomNode) {
         try {
             GeometryFactory geomFactory = layer.getGeometryFactory();
+            if (geomNode.hasProperty("wkb")) {
+                // a relation assembled by storeRelationGeometry
+                return GeometryCodecs.readWKB((byte[]) geomNode.getProperty("wkb"), geomFactory);
+            }
+            if (geomNode.hasProperty("coordinates")) {
+                // a way with compact geometry, decoded without leaving the geometry node
+                return decodeGeometryFromCoordinates((double[]) geomNode.getProperty("coordinates"),
+                        (Integer) geomNode.getProperty(PROP_TYPE), geomFactory);
+            }
             Node osmNode = getOSMNodeFromGeometryNode(geomNode);
             if(osmNode.hasProperty("node_osm_id")){
             	return geomFactory.createPoint(new Coordinate((Double)osmNode.getProperty("lon", 0.0),(Double)osmNode.getProperty("lat", 0.0)));
@@ -180,6 +292,75 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
         }
     }
 
+	/**
+	 * Assemble the polygons of a relation with outer members from its member
+	 * ways, and store them as WKB on the geometry node of the relation, so
+	 * they are decoded from there instead of from the members. Members with
+	 * the role "inner" are holes, and all other member ways are outer rings.
+	 * The type, bounding box and vertices of the geometry node are updated to
+	 * match.
+	 * 
+	 * @return false if the relation has no polygon geometry, and nothing was
+	 *         stored
+	 */
+	public boolean storeRelationGeometry(Node relation) {
+		Relationship geomRel = relation.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+		if (geomRel == null) {
+			return false;
+		}
+		Node geomNode = geomRel.getEndNode();
+		int gtype = (Integer) geomNode.getProperty(PROP_TYPE);
+		if (gtype != GTYPE_POLYGON && gtype != GTYPE_MULTIPOLYGON) {
+			return false;
+		}
+		GeometryFactory geomFactory = layer == null ? new GeometryFactory() : layer.getGeometryFactory();
+		OSMMultipolygonBuilder builder = new OSMMultipolygonBuilder(geomFactory);
+		for (Relationship rel : relation.getRelationships(OSMRelation.MEMBER, Direction.OUTGOING)) {
+			Node member = rel.getEndNode();
+			if (!member.hasProperty("way_osm_id")) {
+				continue;
+			}
+			Coordinate[] coordinates = getWayCoordinates(member);
+			if (coordinates.length < 2) {
+				continue;
+			}
+			if ("inner".equals(rel.getProperty("role", null))) {
+				builder.addInner(geomFactory.createLineString(coordinates));
+			} else {
+				builder.addOuter(geomFactory.createLineString(coordinates));
+			}
+		}
+		Geometry geometry = builder.build();
+		OSMGeometryCache.forDatabase(geomNode.getGraphDatabase()).invalidate(geomNode.getId());
+		if (geometry == null) {
+			if (geomNode.hasProperty("wkb")) {
+				geomNode.removeProperty("wkb");
+			}
+			return false;
+		}
+		Envelope bbox = geometry.getEnvelopeInternal();
+		geomNode.setProperty("wkb", GeometryCodecs.writeWKB(geometry));
+		geomNode.setProperty(PROP_TYPE, SpatialDatabaseService.convertJtsClassToGeometryType(geometry.getClass()));
+		geomNode.setProperty("vertices", geometry.getNumPoints());
+		geomNode.setProperty("bbox", new double[] { bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(), bbox.getMaxY() });
+		return true;
+	}
+
+	private Coordinate[] getWayCoordinates(Node wayNode) {
+		Relationship geomRel = wayNode.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+		if (geomRel == null) {
+			return new Coordinate[0];
+		}
+		if (geomRel.getEndNode().hasProperty("coordinates")) {
+			return unpackCoordinates((double[]) geomRel.getEndNode().getProperty("coordinates"));
+		}
+		ArrayList<Coordinate> coordinates = new ArrayList<Coordinate>();
+		for (Node node : getPointNodesFromWayNode(wayNode)) {
+			coordinates.add(new Coordinate((Double) node.getProperty("lon"), (Double) node.getProperty("lat")));
+		}
+		return coordinates.toArray(new Coordinate[coordinates.size()]);
+	}
+
 	private Geometry decodeGeometryFromRelation(Node osmNode, int gtype, GeometryFactory geomFactory) {
 	    switch (gtype) {
 	    case GTYPE_POLYGON:
@@ -290,6 +471,11 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	}
 
 	private Geometry decodeGeometryFromWay(Node wayNode, int gtype, int vertices, GeometryFactory geomFactory) {
+		Relationship geomRel = wayNode.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+		if (geomRel != null && geomRel.getEndNode().hasProperty("coordinates")) {
+			return decodeGeometryFromCoordinates((double[]) geomRel.getEndNode().getProperty("coordinates"), gtype,
+					geomFactory);
+		}
 	    ArrayList<Coordinate> coordinates = new ArrayList<Coordinate>();
 	    boolean overrun = false;
 	    for (Node node : getPointNodesFromWayNode(wayNode)) {
@@ -332,6 +518,38 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	    }
     }
 
+	/**
+	 * Decode a way from the packed lon/lat pairs stored on the geometry node
+	 * by an import with compact ways.
+	 */
+	private Geometry decodeGeometryFromCoordinates(double[] packed, int gtype, GeometryFactory geomFactory) {
+		Coordinate[] coordinates = unpackCoordinates(packed);
+		decodedCount++;
+		switch (coordinates.length) {
+		case 0:
+			return null;
+		case 1:
+			return geomFactory.createPoint(coordinates[0]);
+		default:
+			switch (gtype) {
+			case GTYPE_LINESTRING:
+				return geomFactory.createLineString(coordinates);
+			case GTYPE_POLYGON:
+				return geomFactory.createPolygon(geomFactory.createLinearRing(coordinates), new LinearRing[0]);
+			default:
+				return geomFactory.createMultiPoint(coordinates);
+			}
+		}
+	}
+
+	private static Coordinate[] unpackCoordinates(double[] packed) {
+		Coordinate[] coordinates = new Coordinate[packed.length / 2];
+		for (int i = 0; i < coordinates.length; i++) {
+			coordinates[i] = new Coordinate(packed[2 * i], packed[2 * i + 1]);
+		}
+		return coordinates;
+	}
+
 	@Override
 	/**
 	 * For OSM data we can build basic geometry shapes as sub-graphs.
@@ -349,6 +567,7 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	protected void encodeGeometryShape(Geometry geometry, PropertyContainer container) {
 
 		Node geomNode = testIsNode(container);
+		OSMGeometryCache.forDatabase(geomNode.getGraphDatabase()).invalidate(geomNode.getId());
 		vertices = 0;
 		int gtype = SpatialDatabaseService.convertJtsClassToGeometryType(geometry.getClass());
 		switch (gtype) {
@@ -443,8 +662,9 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 		if (geomNode != lastGeom) {
 			lastGeom = geomNode;
 			try {
-				lastProp = geomNode.getSingleRelationship(OSMRelation.GEOM, Direction.INCOMING).getStartNode().getSingleRelationship(
+				Node tagsNode = geomNode.getSingleRelationship(OSMRelation.GEOM, Direction.INCOMING).getStartNode().getSingleRelationship(
 				        OSMRelation.TAGS, Direction.OUTGOING).getEndNode();
+				lastProp = isSharedTags() ? getSharedTags(tagsNode) : tagsNode;
 			} catch (NullPointerException e) {
 				if (missingTags++ < 10) {
 					System.err.println("Geometry has no related tags node: " + geomNode);
@@ -457,6 +677,57 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 		return lastProp;
 	}
 
+	/**
+	 * Whether the dataset of the layer was imported with shared tags nodes.
+	 * This is only known once the layer is connected to its dataset.
+	 */
+	private boolean isSharedTags() {
+		if (sharedTags == null) {
+			if (layer == null) {
+				return false;
+			}
+			for (Relationship rel : layer.getLayerNode().getRelationships(SpatialRelationshipTypes.LAYERS, Direction.INCOMING)) {
+				sharedTags = rel.getStartNode().hasProperty("shared_tags");
+			}
+			if (sharedTags == null) {
+				return false;
+			}
+		}
+		return sharedTags;
+	}
+
+	/**
+	 * The properties of a shared tags node, read once for all the
+	 * geometries with the same tags. The properties of a shared tags node
+	 * are not changed, a change of tags moves the way to another tags node,
+	 * but tags nodes left unused are deleted and their ids reused, so all
+	 * kept properties are forgotten once the OSMImporter deleted any.
+	 */
+	private PropertyContainer getSharedTags(Node tagsNode) {
+		// the geoprocessing workers share one encoder, and even a get
+		// reorders the access ordered map
+		synchronized (sharedTagsProperties) {
+			if (cache == null) {
+				cache = OSMGeometryCache.forDatabase(tagsNode.getGraphDatabase());
+			}
+			if (cache.getDeletedTags() != deletedTags) {
+				deletedTags = cache.getDeletedTags();
+				sharedTagsProperties.clear();
+			}
+			PropertyContainer properties = sharedTagsProperties.get(tagsNode.getId());
+			if (properties == null) {
+				properties = new TagsProperties(tagsNode);
+				sharedTagsProperties.put(tagsNode.getId(), properties);
+				if (sharedTagsProperties.size() > SHARED_TAGS_CACHE_SIZE) {
+					Iterator<PropertyContainer> eldest = sharedTagsProperties.values().iterator();
+					eldest.next();
+					eldest.remove();
+				}
+			}
+			return properties;
+		}
+	}
+
 	/**
 	 * This method wraps the hasProperty(String) method on the geometry node.
 	 * This means the default way of storing attributes is simply as properties
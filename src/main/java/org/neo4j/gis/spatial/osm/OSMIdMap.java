@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import org.neo4j.gis.spatial.SpatialDatabaseException;
+
+/**
+ * Maps OSM ids to the ids of the nodes created for them by the batch importer,
+ * without a Lucene lookup for every way node, relation member, changeset and
+ * user. This is an open-addressing hash table of primitive longs kept outside
+ * of the Java heap: small tables live in direct buffers, and once a table
+ * grows beyond the spill size it is kept in memory-mapped temporary files.
+ * 
+ * Each map also remembers the Lucene index and key it stands in for, so the
+ * index entries can be written once at the end of the import.
+ */
+class OSMIdMap {
+	/**
+	 * Tables larger than this are moved from direct memory to memory-mapped
+	 * files.
+	 */
+	public static final long DEFAULT_SPILL_BYTES = 256L << 20;
+
+	// slots per buffer, one buffer can not be larger than 2GB
+	private static final int SEGMENT_BITS = 24;
+	private static final int SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+	private static final int INITIAL_SLOTS = 1 << 12;
+
+	private final String indexName;
+	private final String indexKey;
+	private final long spillBytes;
+
+	// key 0 marks an empty slot, so that new buffers need no initialization
+	private LongBuffer[] segments;
+	private File[] files;
+	private long slots;
+	private long size = 0;
+	private boolean hasZeroKey = false;
+	private long zeroValue;
+
+	OSMIdMap(String indexName, String indexKey) {
+		this(indexName, indexKey, DEFAULT_SPILL_BYTES);
+	}
+
+	OSMIdMap(String indexName, String indexKey, long spillBytes) {
+		this.indexName = indexName;
+		this.indexKey = indexKey;
+		this.spillBytes = spillBytes;
+		allocate(INITIAL_SLOTS);
+	}
+
+	String getIndexName() {
+		return indexName;
+	}
+
+	String getIndexKey() {
+		return indexKey;
+	}
+
+	long size() {
+		return size;
+	}
+
+	/**
+	 * @return the node id stored for the OSM id, or -1 if there is none
+	 */
+	long get(long key) {
+		if (key == 0) {
+			return hasZeroKey ? zeroValue : -1;
+		}
+		for (long slot = firstSlot(key);; slot = (slot + 1) & (slots - 1)) {
+			long current = getKey(slot);
+			if (current == key) {
+				return getValue(slot);
+			} else if (current == 0) {
+				return -1;
+			}
+		}
+	}
+
+	void put(long key, long value) {
+		if (key == 0) {
+			if (!hasZeroKey) size++;
+			hasZeroKey = true;
+			zeroValue = value;
+			return;
+		}
+		if (insert(key, value)) {
+			size++;
+			if (size > slots / 2) {
+				resize(slots * 2);
+			}
+		}
+	}
+
+	interface Visitor {
+		void visit(long key, long value);
+	}
+
+	void visit(Visitor visitor) {
+		if (hasZeroKey) {
+			visitor.visit(0, zeroValue);
+		}
+		for (long slot = 0; slot < slots; slot++) {
+			long key = getKey(slot);
+			if (key != 0) {
+				visitor.visit(key, getValue(slot));
+			}
+		}
+	}
+
+	/**
+	 * Release the table, after which the map can not be used any more.
+	 */
+	void close() {
+		segments = null;
+		deleteFiles(files);
+		files = null;
+	}
+
+	private boolean insert(long key, long value) {
+		for (long slot = firstSlot(key);; slot = (slot + 1) & (slots - 1)) {
+			long current = getKey(slot);
+			if (current == 0 || current == key) {
+				setValue(slot, value);
+				if (current == 0) {
+					setKey(slot, key);
+					return true;
+				}
+				return false;
+			}
+		}
+	}
+
+	private void resize(long newSlots) {
+		LongBuffer[] oldSegments = segments;
+		File[] oldFiles = files;
+		long oldSlots = slots;
+		allocate(newSlots);
+		for (long slot = 0; slot < oldSlots; slot++) {
+			LongBuffer segment = oldSegments[(int) (slot >>> SEGMENT_BITS)];
+			int position = (int) (slot & (SEGMENT_SLOTS - 1)) * 2;
+			long key = segment.get(position);
+			if (key != 0) {
+				insert(key, segment.get(position + 1));
+			}
+		}
+		deleteFiles(oldFiles);
+	}
+
+	private void allocate(long newSlots) {
+		int segmentSlots = (int) Math.min(newSlots, SEGMENT_SLOTS);
+		int count = (int) (newSlots / segmentSlots);
+		boolean mapped = newSlots * 16 > spillBytes;
+		LongBuffer[] newSegments = new LongBuffer[count];
+		File[] newFiles = mapped ? new File[count] : null;
+		for (int i = 0; i < count; i++) {
+			long bytes = segmentSlots * 16L;
+			ByteBuffer buffer;
+			if (mapped) {
+				newFiles[i] = createFile();
+				buffer = mapFile(newFiles[i], bytes);
+			} else {
+				buffer = ByteBuffer.allocateDirect((int) bytes);
+			}
+			newSegments[i] = buffer.order(ByteOrder.nativeOrder()).asLongBuffer();
+		}
+		segments = newSegments;
+		files = newFiles;
+		slots = newSlots;
+	}
+
+	private File createFile() {
+		try {
+			File file = File.createTempFile("osm-" + indexKey + "-", ".ids");
+			file.deleteOnExit();
+			return file;
+		} catch (IOException e) {
+			throw new SpatialDatabaseException("Failed to create id map file: " + e.getMessage(), e);
+		}
+	}
+
+	private static ByteBuffer mapFile(File file, long bytes) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(bytes);
+				// the mapping stays valid after the channel is closed
+				return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new SpatialDatabaseException("Failed to map id map file " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static void deleteFiles(File[] files) {
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	private long firstSlot(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (hash ^ (hash >>> 32)) & (slots - 1);
+	}
+
+	private long getKey(long slot) {
+		return segments[(int) (slot >>> SEGMENT_BITS)].get((int) (slot & (SEGMENT_SLOTS - 1)) * 2);
+	}
+
+	private long getValue(long slot) {
+		return segments[(int) (slot >>> SEGMENT_BITS)].get((int) (slot & (SEGMENT_SLOTS - 1)) * 2 + 1);
+	}
+
+	private void setKey(long slot, long key) {
+		segments[(int) (slot >>> SEGMENT_BITS)].put((int) (slot & (SEGMENT_SLOTS - 1)) * 2, key);
+	}
+
+	private void setValue(long slot, long value) {
+		segments[(int) (slot >>> SEGMENT_BITS)].put((int) (slot & (SEGMENT_SLOTS - 1)) * 2 + 1, value);
+	}
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.neo4j.gis.spatial.osm.OSMImporter.OSMRecord;
+import org.neo4j.gis.spatial.osm.OSMImporter.OSMRecordSink;
+import org.neo4j.gis.spatial.osm.OSMImporter.OSMRecordSource;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * Selects the part of an OSM file to import, by the tags of the nodes, ways
+ * and relations and by an area. Elements that are not selected are dropped
+ * before anything is written, instead of being imported and hidden later with
+ * dynamic layers.
+ * <ul>
+ * <li>A tag rule is a map of tags an element must all have. A null or empty
+ * value matches any value of the tag. An element is selected by the tags when
+ * it matches any rule for its type. Without any tag rules, all elements are
+ * selected by the tags, but once there is a rule for one type, the types
+ * without rules select nothing on their own.</li>
+ * <li>With an area, nodes must be inside it, ways must have at least one node
+ * inside it, and relations must have at least one selected member.</li>
+ * <li>The nodes of selected ways are always imported, also outside the area,
+ * so the ways keep their whole geometry.</li>
+ * </ul>
+ * Finding the nodes of the selected ways takes an extra pass over the file
+ * before the import.
+ */
+public class OSMImportFilter {
+	private final List<Map<String, String>> nodeRules = new ArrayList<Map<String, String>>();
+	private final List<Map<String, String>> wayRules = new ArrayList<Map<String, String>>();
+	private final List<Map<String, String>> relationRules = new ArrayList<Map<String, String>>();
+	private Envelope envelope;
+	private PreparedGeometry area;
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+
+	public void addNodeTags(Map<String, String> tags) {
+		nodeRules.add(tags);
+	}
+
+	public void addWayTags(Map<String, String> tags) {
+		wayRules.add(tags);
+	}
+
+	public void addRelationTags(Map<String, String> tags) {
+		relationRules.add(tags);
+	}
+
+	public void setArea(Envelope envelope) {
+		this.envelope = envelope;
+		this.area = null;
+	}
+
+	/**
+	 * Only import the data in the given area, in the same coordinates as the
+	 * OSM data.
+	 */
+	public void setArea(Geometry area) {
+		this.envelope = area.getEnvelopeInternal();
+		this.area = area.isRectangle() ? null : PreparedGeometryFactory.prepare(area);
+	}
+
+	boolean isEmpty() {
+		return envelope == null && nodeRules.isEmpty() && wayRules.isEmpty() && relationRules.isEmpty();
+	}
+
+	boolean acceptsTags(int type, Map<String, Object> tags) {
+		List<Map<String, String>> rules = type == OSMRecord.NODE ? nodeRules : type == OSMRecord.WAY ? wayRules
+				: relationRules;
+		if (rules.isEmpty()) {
+			return nodeRules.isEmpty() && wayRules.isEmpty() && relationRules.isEmpty();
+		}
+		for (Map<String, String> rule : rules) {
+			if (matches(rule, tags)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(Map<String, String> rule, Map<String, Object> tags) {
+		for (Map.Entry<String, String> entry : rule.entrySet()) {
+			Object value = tags.get(entry.getKey());
+			if (value == null) {
+				return false;
+			}
+			String expected = entry.getValue();
+			if (expected != null && expected.length() > 0 && !expected.equals(value.toString())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	boolean contains(double lon, double lat) {
+		if (envelope == null) {
+			return true;
+		} else if (!envelope.contains(lon, lat)) {
+			return false;
+		} else {
+			return area == null || area.contains(geometryFactory.createPoint(new Coordinate(lon, lat)));
+		}
+	}
+
+	/**
+	 * Read the source once to find the ways to import and their nodes. The
+	 * selection then filters a second source reading the same file.
+	 */
+	Selection scan(OSMRecordSource scan) throws IOException, XMLStreamException {
+		Selection selection = new Selection();
+		boolean scanned = false;
+		try {
+			scan.read(selection.scanner());
+			scanned = true;
+		} finally {
+			scan.close();
+			if (!scanned) {
+				selection.close();
+			}
+		}
+		return selection;
+	}
+
+	private static long osmId(Object id) {
+		return Long.parseLong(id.toString());
+	}
+
+	/**
+	 * The ids of the selected elements of one import, kept outside the Java
+	 * heap.
+	 */
+	class Selection {
+		private final OSMIdMap nodesInArea = new OSMIdMap(null, null);
+		private final OSMIdMap nodes = new OSMIdMap(null, null);
+		private final OSMIdMap ways = new OSMIdMap(null, null);
+		private final OSMIdMap relations = new OSMIdMap(null, null);
+		private long read = 0;
+		private long selected = 0;
+
+		private OSMRecordSink scanner() {
+			return new OSMRecordSink() {
+				public void add(OSMRecord record) {
+					if (record.type == OSMRecord.NODE) {
+						if (envelope != null
+								&& contains((Double) record.properties.get("lon"), (Double) record.properties.get("lat"))) {
+							nodesInArea.put(osmId(record.properties.get("node_osm_id")), 1);
+						}
+					} else if (record.type == OSMRecord.WAY && acceptsTags(OSMRecord.WAY, record.tags)
+							&& (envelope == null || hasNodeInArea(record.wayNodes))) {
+						ways.put(osmId(record.properties.get("way_osm_id")), 1);
+						for (long node : record.wayNodes) {
+							nodes.put(node, 1);
+						}
+					}
+				}
+			};
+		}
+
+		private boolean hasNodeInArea(long[] wayNodes) {
+			for (long node : wayNodes) {
+				if (nodesInArea.get(node) >= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean accept(OSMRecord record) {
+			switch (record.type) {
+			case OSMRecord.NODE:
+				long node = osmId(record.properties.get("node_osm_id"));
+				if (nodes.get(node) >= 0) {
+					return true;
+				} else if (acceptsTags(OSMRecord.NODE, record.tags)
+						&& contains((Double) record.properties.get("lon"), (Double) record.properties.get("lat"))) {
+					nodes.put(node, 1);
+					return true;
+				}
+				return false;
+			case OSMRecord.WAY:
+				return ways.get(osmId(record.properties.get("way_osm_id"))) >= 0;
+			case OSMRecord.RELATION:
+				if (acceptsTags(OSMRecord.RELATION, record.tags) && (envelope == null || hasSelectedMember(record))) {
+					relations.put(osmId(record.properties.get("relation_osm_id")), 1);
+					return true;
+				}
+				return false;
+			default:
+				return true;
+			}
+		}
+
+		private boolean hasSelectedMember(OSMRecord record) {
+			for (Map<String, Object> member : record.members) {
+				Object type = member.get("type");
+				Object ref = member.get("ref");
+				if (ref == null) {
+					continue;
+				}
+				OSMIdMap selected = "node".equals(type) ? nodes : "way".equals(type) ? ways : "relation".equals(type)
+						? relations : null;
+				if (selected != null && selected.get(osmId(ref)) >= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		OSMRecordSource filter(final OSMRecordSource source) {
+			return new OSMRecordSource() {
+				public void read(final OSMRecordSink sink) throws IOException, XMLStreamException {
+					source.read(new OSMRecordSink() {
+						public void add(OSMRecord record) {
+							read++;
+							if (accept(record)) {
+								selected++;
+								sink.add(record);
+							}
+						}
+					});
+				}
+
+				public void close() throws IOException, XMLStreamException {
+					try {
+						source.close();
+					} finally {
+						Selection.this.close();
+					}
+				}
+			};
+		}
+
+		long getRead() {
+			return read;
+		}
+
+		long getSelected() {
+			return selected;
+		}
+
+		private void close() {
+			nodesInArea.close();
+			nodes.close();
+			ways.close();
+			relations.close();
+		}
+	}
+}
@@ -21,27 +21,45 @@ package org.neo4j.gis.spatial.osm;
 
 import static java.util.Arrays.asList;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.geotools.referencing.datum.DefaultEllipsoid;
 import org.neo4j.gis.spatial.Constants;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialDatabaseException;
 import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.SpatialIndexWriter;
+import org.neo4j.gis.spatial.SpatialRelationshipTypes;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -72,11 +90,24 @@ public class OSMImporter implements Constants {
     public static String INDEX_NAME_USER = "user";
     public static String INDEX_NAME_NODE = "node";
     public static String INDEX_NAME_WAY = "node";
+    public static String INDEX_NAME_TAGS = "tags";
 
     protected boolean nodesProcessingFinished = false;
     private String layerName;
     private StatsManager stats = new StatsManager();
     private long osm_dataset = -1;
+    private boolean useIdMaps = false;
+    private boolean usePipeline = false;
+    private boolean resume = false;
+    private OSMImportFilter filter = null;
+    private boolean compactWays = false;
+    private boolean sharedTags = false;
+    private static final int SHARED_TAGS_CACHE_SIZE = 100000;
+    private static final List<String> CHECKPOINT_PROPERTIES = Arrays.asList("checkpoint_file", "checkpoint_records",
+            "checkpoint_type", "checkpoint_osm_id", "checkpoint_prev_way", "checkpoint_prev_relation",
+            "checkpoint_failed");
+    private volatile CountingInputStream input = null;
+    private volatile long inputLength = -1;
     
 	private static class TagStats {
 		private String name;
@@ -185,6 +216,93 @@ public class OSMImporter implements Constants {
         this.layerName = layerName;
     }
 
+	/**
+	 * When importing with the BatchInserter, keep the mapping from OSM ids of
+	 * nodes, ways, relations, changesets and users to the ids of the created
+	 * nodes in primitive maps outside the Java heap, instead of looking them
+	 * up in the Lucene indexes. The index entries are then only written at the
+	 * end of the import. This makes the import of ways and relations much
+	 * faster, but changesets and users of earlier imports into the same
+	 * database are not reused.
+	 */
+	public void setUseIdMaps(boolean useIdMaps) {
+		this.useIdMaps = useIdMaps;
+	}
+
+	/**
+	 * Parse the OSM XML on a separate thread, while the nodes, ways and
+	 * relations read from it are written to the database on the calling
+	 * thread. The parser is at most a few thousand records ahead of the
+	 * writer.
+	 */
+	public void setUsePipeline(boolean usePipeline) {
+		this.usePipeline = usePipeline;
+	}
+
+	/**
+	 * Resume an import of the same file that failed part way through, for
+	 * example on a truncated download. While importing, the OSM dataset node
+	 * keeps a checkpoint of the last committed record, and on resume the
+	 * records up to that checkpoint are read again but not written. The
+	 * checkpoint is removed when the import completes. The BatchInserter
+	 * with id maps does not write checkpoints.
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * Store the locations and node ids of each way in arrays on its geometry
+	 * node, instead of a chain of proxy nodes with NODE and NEXT
+	 * relationships. This saves most of the nodes and relationships of the
+	 * ways, and their geometries are decoded without leaving the geometry
+	 * node. The nodes then do not know the ways they belong to, so changes
+	 * can not be applied to such a dataset.
+	 */
+	public void setCompactWays(boolean compactWays) {
+		this.compactWays = compactWays;
+	}
+
+	/**
+	 * Share one tags node between all nodes, ways and relations with the
+	 * same tags, instead of creating a tags node for each of them. Common tag
+	 * sets like highway=residential are then stored once, and reached with
+	 * the same TAGS relationship, so the encoder and the dynamic layers read
+	 * them as before. The tags nodes are found by their tag set in the
+	 * "tags" index.
+	 */
+	public void setSharedTags(boolean sharedTags) {
+		this.sharedTags = sharedTags;
+	}
+
+	/**
+	 * Only import the nodes, ways and relations selected by the filter. This
+	 * reads the file twice, once to select the ways and their nodes, and once
+	 * to import them.
+	 */
+	public void setFilter(OSMImportFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * The number of bytes read so far from the file of the current, or last,
+	 * import. For compressed files these are compressed bytes, so together
+	 * with getInputLength() this gives the progress of the import, and can be
+	 * called from another thread while importing.
+	 */
+	public long getInputBytesRead() {
+		CountingInputStream input = this.input;
+		return input == null ? 0 : input.getCount();
+	}
+
+	/**
+	 * The length in bytes of the file of the current, or last, import, or -1
+	 * if no import was started.
+	 */
+	public long getInputLength() {
+		return inputLength;
+	}
+
 	public void reIndex(GraphDatabaseService database) {
 		reIndex(database, 10000, true, false);
 	}
@@ -211,19 +329,28 @@ public class OSMImporter implements Constants {
         Traverser traverser = database.getNodeById(osm_dataset).traverse(Order.DEPTH_FIRST, StopEvaluator.END_OF_GRAPH,
                 ReturnableEvaluator.ALL_BUT_START_NODE, OSMRelation.WAYS, Direction.OUTGOING, OSMRelation.NEXT,
                 Direction.OUTGOING);
+        // the geometries are collected and indexed at once at the end
+        List<Node> geomNodes = new ArrayList<Node>();
         Transaction tx = database.beginTx();
         int count = 0;
         try {
             layer.setExtraPropertyNames(stats.getTagStats("all").getTags());
             for (Node way : traverser) {
                 incrLogContext();
-				stats.addGeomStats(layer.addWay(way, true));
+				stats.addGeomStats(layer.addWay(way, true, geomNodes));
 				if(includePoints) {
-					Node first = way.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.OUTGOING).getEndNode();
-					for (Node proxy : first.traverse(Order.DEPTH_FIRST, StopEvaluator.END_OF_GRAPH, ReturnableEvaluator.ALL,
-							OSMRelation.NEXT, Direction.OUTGOING)) {
-						Node node = proxy.getSingleRelationship(OSMRelation.NODE, Direction.OUTGOING).getEndNode();
-						stats.addGeomStats(layer.addWay(node, true));
+					List<Node> compactNodes = OSMGeometryEncoder.getCompactWayNodes(way);
+					if (compactNodes != null) {
+						for (Node node : compactNodes) {
+							stats.addGeomStats(layer.addWay(node, true, geomNodes));
+						}
+					} else {
+						Node first = way.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.OUTGOING).getEndNode();
+						for (Node proxy : first.traverse(Order.DEPTH_FIRST, StopEvaluator.END_OF_GRAPH, ReturnableEvaluator.ALL,
+								OSMRelation.NEXT, Direction.OUTGOING)) {
+							Node node = proxy.getSingleRelationship(OSMRelation.NODE, Direction.OUTGOING).getEndNode();
+							stats.addGeomStats(layer.addWay(node, true, geomNodes));
+						}
 					}
 				}
                 if (++count % commitInterval == 0) {
@@ -232,10 +359,31 @@ public class OSMImporter implements Constants {
                     tx = database.beginTx();
                 }
             } // TODO ask charset to user?
+            // assemble the polygons of relations once, instead of on every decode
+            OSMGeometryEncoder encoder = (OSMGeometryEncoder) layer.getGeometryEncoder();
+            int assembled = 0;
+            for (Node relation : database.getNodeById(osm_dataset).traverse(Order.DEPTH_FIRST, StopEvaluator.END_OF_GRAPH,
+                    ReturnableEvaluator.ALL_BUT_START_NODE, OSMRelation.RELATIONS, Direction.OUTGOING, OSMRelation.NEXT,
+                    Direction.OUTGOING)) {
+                incrLogContext();
+                if (encoder.storeRelationGeometry(relation)) {
+                    assembled++;
+                }
+                if (includeRelations) {
+                    stats.addGeomStats(layer.addWay(relation, true, geomNodes));
+                }
+                if (++count % commitInterval == 0) {
+                    tx.success();
+                    tx.finish();
+                    tx = database.beginTx();
+                }
+            }
+            log("info | Assembled the polygons of " + assembled + " relations");
             tx.success();
         } finally {
             tx.finish();
         }
+        layer.addAll(geomNodes);
 
         long stopTime = System.currentTimeMillis();
         log("info | Re-indexing elapsed time in seconds: " + (1.0 * (stopTime - startTime) / 1000.0));
@@ -286,14 +434,19 @@ public class OSMImporter implements Constants {
 		protected StatsManager statsManager;
 		protected OSMImporter osmImporter;
 	    protected T osm_dataset;
+	    // locations of the OSM nodes imported so far, by node id
+	    protected OSMCoordinates coordinates = new OSMCoordinates();
+	    // whether tags nodes are shared, and the recently used ones by their key
+	    protected boolean sharedTags = false;
+	    protected LinkedHashMap<String, T> sharedTagsNodes = new LinkedHashMap<String, T>(1024, 0.75f, true);
 
 		private OSMWriter(StatsManager statsManager, OSMImporter osmImporter) {
     		this.statsManager = statsManager;
     		this.osmImporter = osmImporter;
 		}
 
-		public static OSMWriter<Long> fromBatchInserter(BatchInserter batchInserter, StatsManager stats, OSMImporter osmImporter) {
-			return new OSMBatchWriter(batchInserter, stats, osmImporter);
+		public static OSMWriter<Long> fromBatchInserter(BatchInserter batchInserter, StatsManager stats, OSMImporter osmImporter, boolean useIdMaps) {
+			return new OSMBatchWriter(batchInserter, stats, osmImporter, useIdMaps);
 		}
 
     	public static OSMWriter<Node> fromGraphDatabase(GraphDatabaseService graphDb, StatsManager stats, OSMImporter osmImporter, int txInterval) {
@@ -308,7 +461,57 @@ public class OSMImporter implements Constants {
 
 		protected abstract void addNodeTags(T node, LinkedHashMap<String, Object> tags, String type);
 
-	    protected abstract void addNodeGeometry(T node, int gtype, Envelope bbox, int vertices);
+		/**
+		 * Find the shared tags node with this key in the tags index, or
+		 * return null.
+		 */
+		protected abstract T findSharedTagsNode(String key);
+
+		protected abstract T createSharedTagsNode(String key, Map<String, Object> tags);
+
+		/**
+		 * Find or create the tags node shared by everything with this tag
+		 * set. The most recently used ones are kept by their key, so most
+		 * tags need no index lookup.
+		 */
+		protected T getSharedTagsNode(Map<String, Object> tags) {
+			String key = sharedTagsKey(tags);
+			T tagsNode = sharedTagsNodes.get(key);
+			if (tagsNode == null) {
+				tagsNode = findSharedTagsNode(key);
+				if (tagsNode == null) {
+					tagsNode = createSharedTagsNode(key, tags);
+				}
+				sharedTagsNodes.put(key, tagsNode);
+				if (sharedTagsNodes.size() > SHARED_TAGS_CACHE_SIZE) {
+					Iterator<T> eldest = sharedTagsNodes.values().iterator();
+					eldest.next();
+					eldest.remove();
+				}
+			}
+			return tagsNode;
+		}
+
+		/**
+		 * The key of a tag set in the tags index, with the tags sorted by
+		 * name.
+		 */
+		protected static String sharedTagsKey(Map<String, Object> tags) {
+			StringBuffer key = new StringBuffer();
+			for (Map.Entry<String, Object> tag : new TreeMap<String, Object>(tags).entrySet()) {
+				key.append(tag.getKey()).append('\0').append(tag.getValue()).append('\0');
+			}
+			return key.toString();
+		}
+
+	    protected void addNodeGeometry(T node, int gtype, Envelope bbox, int vertices) {
+	    	addNodeGeometry(node, gtype, bbox, vertices, null);
+	    }
+
+	    /**
+	     * Add the geometry node, with the given extra properties if not null.
+	     */
+	    protected abstract void addNodeGeometry(T node, int gtype, Envelope bbox, int vertices, Map<String, Object> properties);
 
 	    protected abstract T addNode(String name, Map<String, Object> properties, String indexKey);
 
@@ -422,7 +625,7 @@ public class OSMImporter implements Constants {
 	        }
 	    }
 
-	    private void describeMissing() {
+	    void describeMissing() {
 	        if (missingNodeCount > 0) {
 	        	osmImporter.error("When processing the ways, there were " + missingNodeCount + " missing nodes");
 	        }
@@ -442,6 +645,47 @@ public class OSMImporter implements Constants {
 	    protected T currentNode = null;
 	    protected T prev_way = null;
 	    protected T prev_relation = null;
+	    protected long currentChangesetId = -1;
+	    protected long currentUserId = -1;
+
+		/**
+		 * Whether the writer has reached a point where its work should be
+		 * committed with a checkpoint. This is only asked between records.
+		 * 
+		 * @param records
+		 *            the number of records written so far
+		 */
+		protected abstract boolean isCheckpointDue(long records);
+
+		/**
+		 * Commit the work so far, together with the checkpoint properties on
+		 * the dataset node. The state of the writer needed to resume is added
+		 * to the properties.
+		 */
+		protected void checkpoint(Map<String, Object> checkpoint) {
+			checkpoint.put("checkpoint_prev_way", prev_way == null ? -1L : getNodeId(prev_way));
+			checkpoint.put("checkpoint_prev_relation", prev_relation == null ? -1L : getNodeId(prev_relation));
+			setDatasetProperties(checkpoint);
+		}
+
+		/**
+		 * Continue the chains of ways and relations from the checkpoint. The
+		 * changeset and user are looked up again for the next record.
+		 */
+		protected void restoreCheckpoint(Map<String, Object> checkpoint) {
+			long prevWay = (Long) checkpoint.get("checkpoint_prev_way");
+			long prevRelation = (Long) checkpoint.get("checkpoint_prev_relation");
+			prev_way = prevWay < 0 ? null : getNodeById(prevWay);
+			prev_relation = prevRelation < 0 ? null : getNodeById(prevRelation);
+			currentChangesetId = -1;
+			currentUserId = -1;
+		}
+
+		protected abstract Map<String, Object> getDatasetProperties();
+
+		protected abstract void removeDatasetProperties(Collection<String> keys);
+
+		protected abstract T getNodeById(long id);
 
 	    /**
 	     * Add the BBox metadata to the dataset
@@ -464,23 +708,40 @@ public class OSMImporter implements Constants {
 	    protected void createOSMNode(Map<String, Object> nodeProps) {
 			T changesetNode = getChangesetNode(nodeProps);
 			currentNode = addNode("node", nodeProps, "node_osm_id");
+			Object lon = nodeProps.get("lon");
+			Object lat = nodeProps.get("lat");
+			if (lon != null && lat != null) {
+				coordinates.put(getNodeId(currentNode), (Double) lon, (Double) lat);
+			}
 			createRelationship(currentNode, changesetNode, OSMRelation.CHANGESET);
 			debugNodeWithId(currentNode, "node_osm_id", new long[] { 8090260, 273534207 });
 		}
 
-		private void addOSMNodeTags(boolean allPoints, LinkedHashMap<String, Object> currentNodeTags) {
+		protected void addOSMNodeTags(boolean allPoints, LinkedHashMap<String, Object> currentNodeTags) {
 			currentNodeTags.remove("created_by");  // redundant information
 			// Nodes with tags get added to the index as point geometries
 			if(allPoints || currentNodeTags.size()>0) {
-			    Map<String, Object> nodeProps = getNodeProperties(currentNode);
 			    Envelope bbox = new Envelope();
-			    double[] location = new double[] {(Double)nodeProps.get("lon"), (Double)nodeProps.get("lat")};
+			    double[] location = getLocation(currentNode, new double[2]);
 			    bbox.expandToInclude(location[0], location[1]);
 				addNodeGeometry(currentNode, GTYPE_POINT, bbox, 1);
 			}
 			addNodeTags(currentNode, currentNodeTags, "node");
 		}
 
+		/**
+		 * Read the location of an OSM node as {lon, lat} into the given array,
+		 * from the coordinates kept during the import if possible.
+		 */
+		protected double[] getLocation(T node, double[] location) {
+			if (!coordinates.get(getNodeId(node), location)) {
+				Map<String, Object> nodeProps = getNodeProperties(node);
+				location[0] = (Double) nodeProps.get("lon");
+				location[1] = (Double) nodeProps.get("lat");
+			}
+			return location;
+		}
+
 		protected void debugNodeWithId(T node, String idName, long[] idValues) {
 			Map<String, Object> nodeProperties = getNodeProperties(node);
 			String node_osm_id = nodeProperties.get(idName).toString();
@@ -491,11 +752,10 @@ public class OSMImporter implements Constants {
 			}
 		}
 
-		protected void createOSMWay(Map<String, Object> wayProperties, ArrayList<Long> wayNodes,
+		protected void createOSMWay(Map<String, Object> wayProperties, long[] wayNodes,
 				LinkedHashMap<String, Object> wayTags) {
 			RoadDirection direction = isOneway(wayTags);
 			String name = (String)wayTags.get("name");
-			int geometry = GTYPE_LINESTRING;
 			boolean isRoad = wayTags.containsKey("highway");
 			if (isRoad) {
 			    wayProperties.put("oneway", direction.toString());
@@ -520,11 +780,65 @@ public class OSMImporter implements Constants {
 			}
 			prev_way = way;
 			addNodeTags(way, wayTags, "way") ;
+			if (osmImporter.compactWays) {
+				addCompactWayNodes(way, wayNodes, changesetNode);
+			} else {
+				addWayNodes(way, wayNodes, direction, changesetNode);
+			}
+		}
+
+		/**
+		 * Add the geometry node of the way with the locations and node ids of
+		 * the OSM nodes in packed arrays, instead of a chain of proxy nodes.
+		 * Repeated nodes are skipped, as for the proxy nodes.
+		 */
+		protected void addCompactWayNodes(T way, long[] wayNodes, T changesetNode) {
+			int geometry = GTYPE_LINESTRING;
+			Envelope bbox = new Envelope();
+			double[] packed = new double[wayNodes.length * 2];
+			long[] ids = new long[wayNodes.length];
+			double[] location = new double[2];
+			int count = 0;
+			for (long nd_ref : wayNodes) {
+				T pointNode = getOSMNode(nd_ref, changesetNode);
+				if (pointNode == null) {
+			        missingNode(nd_ref);
+					continue;
+				}
+				long id = getNodeId(pointNode);
+				if (count > 0 && ids[count - 1] == id) {
+					continue;
+				}
+				getLocation(pointNode, location);
+				bbox.expandToInclude(location[0], location[1]);
+				packed[count * 2] = location[0];
+				packed[count * 2 + 1] = location[1];
+				ids[count++] = id;
+			}
+			if (count > 2 && ids[0] == ids[count - 1]) {
+				geometry = GTYPE_POLYGON;
+			}
+			if (count < 2) {
+				geometry = GTYPE_POINT;
+			}
+			HashMap<String, Object> properties = new HashMap<String, Object>();
+			properties.put("coordinates", Arrays.copyOf(packed, count * 2));
+			properties.put("way_nodes", Arrays.copyOf(ids, count));
+			addNodeGeometry(way, geometry, bbox, count, properties);
+		}
+
+		/**
+		 * Add the chain of proxy nodes for the OSM nodes of the way, and the
+		 * geometry node with the bounding box of the way.
+		 */
+		protected void addWayNodes(T way, long[] wayNodes, RoadDirection direction, T changesetNode) {
+			int geometry = GTYPE_LINESTRING;
 			Envelope bbox = new Envelope();
 			T firstNode = null;
 			T prevNode = null;
 			T prevProxy = null;
-			Map<String, Object> prevProps = null;
+			double[] location = new double[2];
+			double[] prevLocation = new double[2];
 			LinkedHashMap<String, Object> relProps = new LinkedHashMap<String, Object>();
 			HashMap<String, Object> directionProps = new HashMap<String, Object>();
 			directionProps.put("oneway", true);
@@ -547,16 +861,13 @@ public class OSMImporter implements Constants {
 			        continue;
 			    }
 			    createRelationship(proxyNode, pointNode, OSMRelation.NODE, null);
-			    Map<String, Object> nodeProps = getNodeProperties(pointNode);
-			    double[] location = new double[] {(Double)nodeProps.get("lon"), (Double)nodeProps.get("lat")};
+			    getLocation(pointNode, location);
 			    bbox.expandToInclude(location[0], location[1]);
 			    if (prevProxy == null) {
 			        createRelationship(way, proxyNode, OSMRelation.FIRST_NODE);
 			    } else {
 			        relProps.clear();
-			        double[] prevLoc = new double[] {(Double)prevProps.get("lon"), (Double)prevProps.get("lat")};
-
-			        double length = distance(prevLoc[0], prevLoc[1], location[0], location[1]);
+			        double length = distance(prevLocation[0], prevLocation[1], location[0], location[1]);
 			        relProps.put("length", length);
 
 			        // We default to bi-directional (and don't store direction in the
@@ -570,7 +881,9 @@ public class OSMImporter implements Constants {
 			    }
 			    prevNode = pointNode;
 			    prevProxy = proxyNode;
-			    prevProps = nodeProps;
+			    double[] swap = prevLocation;
+			    prevLocation = location;
+			    location = swap;
 			}
 //	                        if (prevNode > 0) {
 //	                            batchGraphDb.createRelationship(way, prevNode, OSMRelation.LAST_NODE, null);
@@ -578,13 +891,13 @@ public class OSMImporter implements Constants {
 			if (firstNode != null && prevNode == firstNode) {
 				geometry = GTYPE_POLYGON;
 			}
-			if (wayNodes.size() < 2) {
+			if (wayNodes.length < 2) {
 				geometry = GTYPE_POINT;
 			}
-			addNodeGeometry(way, geometry, bbox, wayNodes.size());
+			addNodeGeometry(way, geometry, bbox, wayNodes.length);
 		}
 
-		private void createOSMRelation(Map<String, Object> relationProperties,
+		protected void createOSMRelation(Map<String, Object> relationProperties,
 				ArrayList<Map<String, Object>> relationMembers, LinkedHashMap<String, Object> relationTags) {
 			String name = (String)relationTags.get("name");
 			if (name != null) {
@@ -600,6 +913,14 @@ public class OSMImporter implements Constants {
 			}
 			prev_relation = relation;
 			addNodeTags(relation, relationTags, "relation");
+			addRelationMembers(relation, relationMembers);
+		}
+
+		/**
+		 * Add the member relationships of the relation, and a geometry node if
+		 * the members make up a supported geometry.
+		 */
+		protected void addRelationMembers(T relation, ArrayList<Map<String, Object>> relationMembers) {
 			// We will test for cases that invalidate multilinestring further down
 			GeometryMetaData metaGeom = new GeometryMetaData(GTYPE_MULTILINESTRING);
 			T prevMember = null;
@@ -608,7 +929,9 @@ public class OSMImporter implements Constants {
 			    String memberType = (String)memberProps.get("type");
 			    long member_ref = Long.parseLong(memberProps.get("ref").toString());
 			    if (memberType != null) {
-			        T member = getSingleNode(memberType, memberType + "_osm_id", member_ref);
+			        // ways are indexed together with the nodes
+			        String indexName = memberType.equals("way") ? INDEX_NAME_WAY : memberType;
+			        T member = getSingleNode(indexName, memberType + "_osm_id", member_ref);
 			        if (null == member || prevMember == member) {
 			            /*
 			             * This can happen if we import not whole planet, so some
@@ -618,18 +941,16 @@ public class OSMImporter implements Constants {
 			            continue;
 			        }
 			        if (member == relation) {
-			            osmImporter.error("Cannot add relation to same member: relation[" + relationTags + "] - member["
+			            osmImporter.error("Cannot add relation to same member: relation[" + relation + "] - member["
 			                    + memberProps + "]");
 			            continue;
 			        }
-			        Map<String, Object> nodeProps = getNodeProperties(member);
 			        if (memberType.equals("node")) {
-			            double[] location = new double[] {(Double)nodeProps.get("lon"), (Double)nodeProps.get("lat")};
-			            metaGeom.expandToIncludePoint(location);
+			            metaGeom.expandToIncludePoint(getLocation(member, new double[2]));
 			        } else if (memberType.equals("nodes")){
 			        	System.err.println("Unexpected 'nodes' member type");
 			        } else {
-						updateGeometryMetaDataFromMember(member, metaGeom, nodeProps);
+						updateGeometryMetaDataFromMember(member, metaGeom, getNodeProperties(member));
 			        }
 			        relProps.clear();
 					String role = (String) memberProps.get("role");
@@ -666,12 +987,21 @@ public class OSMImporter implements Constants {
 
 		protected abstract Map<String, Object> getNodeProperties(T member);
 
+		protected abstract long getNodeId(T node);
+
 		protected abstract T getOSMNode(long osmId, T changesetNode);
 
 		protected abstract void updateGeometryMetaDataFromMember(T member, GeometryMetaData metaGeom, Map<String, Object> nodeProps);
 
 		protected abstract void finish();
 
+		/**
+		 * Finish after a record failed part way through. The work since the
+		 * last checkpoint must not be kept with that checkpoint, or resuming
+		 * from it would write the same records again.
+		 */
+		protected abstract void abort();
+
 		protected abstract T createProxyNode();
 
 		protected abstract T getChangesetNode(Map<String, Object> nodeProps);
@@ -683,10 +1013,10 @@ public class OSMImporter implements Constants {
     private static class OSMGraphWriter extends OSMWriter<Node> {
         private GraphDatabaseService graphDb;
 		private Node osm_root;
-	    private long currentChangesetId = -1;
 	    private Node currentChangesetNode;
-	    private long currentUserId = -1;
 	    private Node currentUserNode;
+	    private OSMGeometryCache geometryCache;
+	    private LinkedHashSet<Node> changedRelations = new LinkedHashSet<Node>();
 	    private HashMap<Long,Node> changesetNodes = new HashMap<Long,Node>();
 		private Transaction tx;
 		private int checkCount = 0;
@@ -695,6 +1025,8 @@ public class OSMImporter implements Constants {
 		private OSMGraphWriter(GraphDatabaseService graphDb, StatsManager statsManager, OSMImporter osmImporter, int tInterval) {
 			super(statsManager, osmImporter);
 			this.graphDb = graphDb;
+			this.txInterval = tInterval;
+			this.geometryCache = OSMGeometryCache.forDatabase(graphDb);
 			createExactIndexIfNeeded(INDEX_NAME_CHANGESET);
             createExactIndexIfNeeded(INDEX_NAME_NODE);
             createExactIndexIfNeeded(INDEX_NAME_USER);
@@ -719,13 +1051,55 @@ public class OSMImporter implements Constants {
 			}
 		}
 
+		/**
+		 * Count a write, and open a transaction if there is none. Transactions
+		 * are only committed between records, so that the checkpoints of the
+		 * import match the committed data.
+		 */
 		private void checkTx() {
-			if(checkCount ++ > txInterval || tx == null) {
-				successTx();
+			checkCount++;
+			if (tx == null) {
 				tx = graphDb.beginTx();
 			}
 		}
 
+		@Override
+		protected boolean isCheckpointDue(long records) {
+			return checkCount > txInterval;
+		}
+
+		@Override
+		protected void checkpoint(Map<String, Object> checkpoint) {
+			checkTx();
+			super.checkpoint(checkpoint);
+			successTx();
+			checkTx();
+		}
+
+		@Override
+		protected Map<String, Object> getDatasetProperties() {
+			LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+			for (String key : osm_dataset.getPropertyKeys()) {
+				properties.put(key, osm_dataset.getProperty(key));
+			}
+			return properties;
+		}
+
+		@Override
+		protected void removeDatasetProperties(Collection<String> keys) {
+			checkTx();
+			for (String key : keys) {
+				if (osm_dataset.hasProperty(key)) {
+					osm_dataset.removeProperty(key);
+				}
+			}
+		}
+
+		@Override
+		protected Node getNodeById(long id) {
+			return graphDb.getNodeById(id);
+		}
+
 		private Index<Node> indexFor(String indexName) {
     		return graphDb.index().forNodes( indexName );
 		}
@@ -780,15 +1154,53 @@ public class OSMImporter implements Constants {
 			logNodeAddition(tags, type);
 			if (node != null && tags.size() > 0) {
 				statsManager.addToTagStats(type, tags.keySet());
-				Node tagsNode = graphDb.createNode();
-				addProperties(tagsNode, tags);
+				Node tagsNode;
+				if (sharedTags) {
+					tagsNode = getSharedTagsNode(tags);
+				} else {
+					tagsNode = graphDb.createNode();
+					addProperties(tagsNode, tags);
+				}
 				node.createRelationshipTo(tagsNode, OSMRelation.TAGS);
 				tags.clear();
 			}
 		}
 
 		@Override
-	    protected void addNodeGeometry(Node node, int gtype, Envelope bbox, int vertices) {
+		protected Node findSharedTagsNode(String key) {
+			return indexFor(INDEX_NAME_TAGS).get("tags", key).getSingle();
+		}
+
+		@Override
+		protected Node createSharedTagsNode(String key, Map<String, Object> tags) {
+			Node tagsNode = graphDb.createNode();
+			addProperties(tagsNode, tags);
+			indexFor(INDEX_NAME_TAGS).add(tagsNode, "tags", key);
+			return tagsNode;
+		}
+
+		/**
+		 * Delete the TAGS relationships of the node, and the tags nodes unless
+		 * they are shared with other nodes.
+		 */
+		private void removeTags(Node node) {
+			for (Relationship rel : node.getRelationships(OSMRelation.TAGS, Direction.OUTGOING)) {
+				Node tagsNode = rel.getEndNode();
+				rel.delete();
+				if (tagsNode.hasRelationship(OSMRelation.TAGS, Direction.INCOMING)) {
+					continue;
+				}
+				if (sharedTags) {
+					sharedTagsNodes.remove(sharedTagsKey(getNodeProperties(tagsNode)));
+					indexFor(INDEX_NAME_TAGS).remove(tagsNode, "tags");
+				}
+				tagsNode.delete();
+				geometryCache.invalidateTags();
+			}
+		}
+
+		@Override
+	    protected void addNodeGeometry(Node node, int gtype, Envelope bbox, int vertices, Map<String, Object> properties) {
 	        if (node != null && !bbox.isNull() && vertices > 0) {
 	            if (gtype == GTYPE_GEOMETRY)
 	                gtype = vertices > 1 ? GTYPE_MULTIPOINT : GTYPE_POINT;
@@ -796,6 +1208,9 @@ public class OSMImporter implements Constants {
 	            geomNode.setProperty("gtype", gtype);
 	            geomNode.setProperty("vertices", vertices);
 	            geomNode.setProperty("bbox", new double[] {bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(), bbox.getMaxY()});
+	            if (properties != null) {
+	            	addProperties(geomNode, properties);
+	            }
 	            node.createRelationshipTo(geomNode, OSMRelation.GEOM);
 	            statsManager.addGeomStats(gtype);
 	        }
@@ -851,6 +1266,11 @@ public class OSMImporter implements Constants {
 			return indexFor(name).get(string, value).getSingle();
 		}
 
+		@Override
+		protected long getNodeId(Node node) {
+			return node.getId();
+		}
+
 		@Override
 		protected Map<String, Object> getNodeProperties(Node node) {
 			LinkedHashMap<String,Object> properties = new LinkedHashMap<String,Object>();
@@ -895,6 +1315,22 @@ public class OSMImporter implements Constants {
 		@Override
 		protected void finish() {
 			successTx();
+			coordinates.close();
+		}
+
+		/**
+		 * Roll back the transaction, so only the records up to the last
+		 * checkpoint are kept.
+		 */
+		@Override
+		protected void abort() {
+			if (tx != null) {
+				tx.failure();
+				tx.finish();
+				tx = null;
+				checkCount = 0;
+			}
+			coordinates.close();
 		}
 
 		@Override
@@ -949,58 +1385,488 @@ public class OSMImporter implements Constants {
 			return currentUserNode;
 		}
 
-    }
+		/**
+		 * Apply a record of an osmChange file to the graph. The ways using a
+		 * changed or deleted node get new proxy and geometry nodes, and only
+		 * the geometries that were in the index are removed from it and added
+		 * again. Created ways and relations are added at the start of the
+		 * chains of the dataset.
+		 */
+		private void applyChange(OSMRecord record, SpatialIndexWriter index) {
+			switch (record.type) {
+			case OSMRecord.NODE:
+				applyNodeChange(record, index);
+				break;
+			case OSMRecord.WAY:
+				applyWayChange(record, index);
+				break;
+			case OSMRecord.RELATION:
+				applyRelationChange(record, index);
+				break;
+			}
+			for (Node relation : changedRelations) {
+				boolean indexed = removeFromIndex(relation, index);
+				if (!new OSMGeometryEncoder().storeRelationGeometry(relation)) {
+					updateRelationGeometry(relation);
+				}
+				addToIndex(relation, index, indexed);
+			}
+			changedRelations.clear();
+			if (checkCount > txInterval) {
+				successTx();
+				checkTx();
+			}
+		}
 
-    private static class OSMBatchWriter extends OSMWriter<Long> {
-    	private BatchInserter batchInserter;
-		private BatchInserterIndexProvider batchIndexService;
-        private HashMap<String,BatchInserterIndex> batchIndices = new HashMap<String,BatchInserterIndex>();
-	    private long osm_root;
-	    private long currentChangesetId = -1;
-	    private long currentChangesetNode = -1;
-	    private long currentUserId = -1;
-	    private long currentUserNode = -1;
-	    private HashMap<Long,Long> changesetNodes = new HashMap<Long,Long>();
+		private void applyNodeChange(OSMRecord record, SpatialIndexWriter index) {
+			Node node = getSingleNode("node", "node_osm_id", record.properties.get("node_osm_id"));
+			if (node == null) {
+				if (record.action != OSMRecord.DELETE) {
+					createOSMNode(record.properties);
+					addOSMNodeTags(false, record.tags);
+				}
+				return;
+			}
+			// the ways are rebuilt from their current nodes after the change
+			LinkedHashMap<Node, long[]> ways = new LinkedHashMap<Node, long[]>();
+			HashSet<Node> indexedWays = new HashSet<Node>();
+			for (Node way : getWaysContaining(node)) {
+				ways.put(way, getWayNodeIds(way));
+				if (removeWayNodes(way, index)) {
+					indexedWays.add(way);
+				}
+			}
+			boolean indexed = removeGeometry(node, index);
+			if (record.action == OSMRecord.DELETE) {
+				deleteOSMNode(node, "node", "node_osm_id");
+			} else {
+				replaceProperties(node, record.properties, "node_osm_id");
+				double[] location = new double[] { (Double) node.getProperty("lon"), (Double) node.getProperty("lat") };
+				coordinates.put(node.getId(), location[0], location[1]);
+				replaceTags(node, record.tags, "node");
+				Relationship geomRel = node.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+				if (indexed && geomRel != null) {
+					index.add(geomRel.getEndNode());
+				}
+			}
+			for (Node way : ways.keySet()) {
+				addWayNodes(way, ways.get(way), getDirection(way), getChangeset(way));
+				addToIndex(way, index, indexedWays.contains(way));
+			}
+		}
 
-		private OSMBatchWriter(BatchInserter batchGraphDb, StatsManager statsManager, OSMImporter osmImporter) {
-			super(statsManager, osmImporter);
-			this.batchInserter = batchGraphDb;
-			this.batchIndexService = new LuceneBatchInserterIndexProvider(batchGraphDb);
+		private void applyWayChange(OSMRecord record, SpatialIndexWriter index) {
+			Node way = getSingleNode(INDEX_NAME_WAY, "way_osm_id", record.properties.get("way_osm_id"));
+			if (way == null) {
+				if (record.action != OSMRecord.DELETE) {
+					prev_way = null;
+					createOSMWay(record.properties, record.wayNodes, record.tags);
+					linkFirst(prev_way, OSMRelation.WAYS);
+					addToIndex(prev_way, index, index != null);
+				}
+				return;
+			}
+			boolean indexed = removeWayNodes(way, index);
+			if (record.action == OSMRecord.DELETE) {
+				unlink(way, OSMRelation.WAYS);
+				deleteOSMNode(way, INDEX_NAME_WAY, "way_osm_id");
+			} else {
+				RoadDirection direction = isOneway(record.tags);
+				for (String key : new String[] { "oneway", "highway", "name" }) {
+					if (way.hasProperty(key)) {
+						way.removeProperty(key);
+					}
+				}
+				if (record.tags.containsKey("highway")) {
+					record.properties.put("oneway", direction.toString());
+					record.properties.put("highway", record.tags.get("highway"));
+				}
+				if (record.tags.containsKey("name")) {
+					record.properties.put("name", record.tags.get("name"));
+				}
+				Node changesetNode = replaceProperties(way, record.properties, "way_osm_id");
+				replaceTags(way, record.tags, "way");
+				addWayNodes(way, record.wayNodes, direction, changesetNode);
+				addToIndex(way, index, indexed);
+			}
 		}
 
-		private BatchInserterIndex indexFor(String indexName) {
-			BatchInserterIndex index = batchIndices.get(indexName);
-			if(index == null) {
-				index = batchIndexService.nodeIndex( indexName, MapUtil.stringMap("type", "exact") );
-				batchIndices.put(indexName, index);
+		private void applyRelationChange(OSMRecord record, SpatialIndexWriter index) {
+			Node relation = getSingleNode("relation", "relation_osm_id", record.properties.get("relation_osm_id"));
+			if (relation == null) {
+				if (record.action != OSMRecord.DELETE) {
+					prev_relation = null;
+					createOSMRelation(record.properties, record.members, record.tags);
+					linkFirst(prev_relation, OSMRelation.RELATIONS);
+				}
+				return;
+			}
+			Relationship oldGeomRel = relation.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+			boolean assembled = oldGeomRel != null && oldGeomRel.getEndNode().hasProperty("wkb");
+			boolean indexed = removeGeometry(relation, index);
+			for (Relationship rel : relation.getRelationships(OSMRelation.MEMBER, Direction.OUTGOING)) {
+				rel.delete();
+			}
+			if (record.action == OSMRecord.DELETE) {
+				unlink(relation, OSMRelation.RELATIONS);
+				deleteOSMNode(relation, "relation", "relation_osm_id");
+			} else {
+				if (relation.hasProperty("name")) {
+					relation.removeProperty("name");
+				}
+				if (record.tags.containsKey("name")) {
+					record.properties.put("name", record.tags.get("name"));
+				}
+				replaceProperties(relation, record.properties, "relation_osm_id");
+				replaceTags(relation, record.tags, "relation");
+				addRelationMembers(relation, record.members);
+				if (assembled) {
+					changedRelations.add(relation);
+				}
+				addToIndex(relation, index, indexed);
 			}
-    		return index;
 		}
 
-		@Override
-	    public Long getOrCreateOSMDataset(String name) {
-	        if (osm_dataset == null || osm_dataset <= 0) {
-	            osm_root = getOrCreateNode("osm_root", "osm", batchInserter.getReferenceNode(), OSMRelation.OSM);
-	            osm_dataset = getOrCreateNode(name, "osm", osm_root, OSMRelation.OSM);
-	        }
-	        return osm_dataset;
-	    }
+		/**
+		 * Replace the properties and changeset of an existing OSM node, way or
+		 * relation, returning the new changeset node.
+		 */
+		private Node replaceProperties(Node node, Map<String, Object> properties, String indexKey) {
+			Node changesetNode = getChangesetNode(properties);
+			properties.put(indexKey, Long.parseLong(properties.get(indexKey).toString()));
+			ArrayList<String> keys = new ArrayList<String>();
+			for (String key : node.getPropertyKeys()) {
+				keys.add(key);
+			}
+			for (String key : keys) {
+				node.removeProperty(key);
+			}
+			addProperties(node, properties);
+			for (Relationship rel : node.getRelationships(OSMRelation.CHANGESET, Direction.OUTGOING)) {
+				rel.delete();
+			}
+			createRelationship(node, changesetNode, OSMRelation.CHANGESET);
+			return changesetNode;
+		}
 
-	    private long findNode(BatchInserter batchInserter, String name, long parent, RelationshipType relType) {
-	        for (SimpleRelationship relationship : batchInserter.getRelationships(parent)) {
-	            if (relationship.getType().name().equals(relType.name())) {
-	                long node = relationship.getEndNode();
-	                Object nodeName = batchInserter.getNodeProperties(node).get("name");
-	                if (nodeName != null && name.equals(nodeName.toString())) {
-	                    return node;
-	                }
-	            }
-	        }
-	        return -1;
-	    }
+		private void replaceTags(Node node, LinkedHashMap<String, Object> tags, String type) {
+			removeTags(node);
+			if (type.equals("node")) {
+				currentNode = node;
+				addOSMNodeTags(false, tags);
+			} else {
+				addNodeTags(node, tags, type);
+			}
+		}
 
-	    @Override
-	    protected Long getOrCreateNode(String name, String type, Long parent, RelationshipType relType) {
+		/**
+		 * Delete the geometry node, removing it from the index first if it
+		 * was indexed, and return whether it was.
+		 */
+		private boolean removeGeometry(Node node, SpatialIndexWriter index) {
+			invalidateRelations(node, new HashSet<Node>());
+			Relationship geomRel = node.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+			if (geomRel == null) {
+				return false;
+			}
+			geometryCache.invalidate(geomRel.getEndNode().getId());
+			Node geomNode = geomRel.getEndNode();
+			boolean indexed = removeFromIndex(node, index);
+			for (Relationship rel : geomNode.getRelationships()) {
+				rel.delete();
+			}
+			geomNode.delete();
+			return indexed;
+		}
+
+		/**
+		 * The relations containing a changed member are decoded from their
+		 * members, so their cached geometries are out of date too. After the
+		 * change their polygons are assembled again, or their bounding boxes
+		 * recalculated, and they are indexed again.
+		 */
+		private void invalidateRelations(Node member, HashSet<Node> visited) {
+			for (Relationship rel : member.getRelationships(OSMRelation.MEMBER, Direction.INCOMING)) {
+				Node relation = rel.getStartNode();
+				if (visited.add(relation)) {
+					Relationship geomRel = relation.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+					if (geomRel != null) {
+						geometryCache.invalidate(geomRel.getEndNode().getId());
+						changedRelations.add(relation);
+					}
+					invalidateRelations(relation, visited);
+				}
+			}
+		}
+
+		/**
+		 * Calculate the bounding box and vertices of the relation geometry
+		 * from its current members, like addRelationMembers does.
+		 */
+		private void updateRelationGeometry(Node relation) {
+			Relationship geomRel = relation.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+			if (geomRel == null) {
+				return;
+			}
+			GeometryMetaData metaGeom = new GeometryMetaData(GTYPE_MULTILINESTRING);
+			for (Relationship rel : relation.getRelationships(OSMRelation.MEMBER, Direction.OUTGOING)) {
+				Node member = rel.getEndNode();
+				if (member.hasProperty("node_osm_id")) {
+					metaGeom.expandToIncludePoint(getLocation(member, new double[2]));
+				} else {
+					updateGeometryMetaDataFromMember(member, metaGeom, null);
+				}
+			}
+			Envelope bbox = metaGeom.getBBox();
+			if (!bbox.isNull()) {
+				Node geomNode = geomRel.getEndNode();
+				geomNode.setProperty("bbox", new double[] { bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(), bbox.getMaxY() });
+				geomNode.setProperty("vertices", metaGeom.getVertices());
+			}
+		}
+
+		private boolean removeFromIndex(Node node, SpatialIndexWriter index) {
+			Relationship geomRel = node.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+			if (geomRel == null) {
+				return false;
+			}
+			Node geomNode = geomRel.getEndNode();
+			boolean indexed = geomNode.hasRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING);
+			if (indexed && index != null) {
+				index.remove(geomNode.getId(), false);
+			}
+			return indexed;
+		}
+
+		private void addToIndex(Node node, SpatialIndexWriter index, boolean indexed) {
+			Relationship geomRel = node.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+			if (indexed && index != null && geomRel != null) {
+				index.add(geomRel.getEndNode());
+			}
+		}
+
+		/**
+		 * Delete the geometry and proxy nodes of the way, returning whether
+		 * the geometry was indexed.
+		 */
+		private boolean removeWayNodes(Node way, SpatialIndexWriter index) {
+			boolean indexed = removeGeometry(way, index);
+			for (Node proxy : getProxyNodes(way)) {
+				for (Relationship rel : proxy.getRelationships()) {
+					rel.delete();
+				}
+				proxy.delete();
+			}
+			return indexed;
+		}
+
+		/**
+		 * The proxy nodes of the way in order. The NEXT relationships between
+		 * them point backwards for ways in the backward direction, so they are
+		 * followed in both directions.
+		 */
+		private List<Node> getProxyNodes(Node way) {
+			ArrayList<Node> proxies = new ArrayList<Node>();
+			Relationship firstRel = way.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.OUTGOING);
+			Node proxy = firstRel == null ? null : firstRel.getEndNode();
+			Node prev = null;
+			while (proxy != null) {
+				proxies.add(proxy);
+				Node next = null;
+				for (Relationship rel : proxy.getRelationships(OSMRelation.NEXT)) {
+					Node other = rel.getOtherNode(proxy);
+					if (!other.equals(prev)) {
+						next = other;
+					}
+				}
+				prev = proxy;
+				proxy = next;
+			}
+			return proxies;
+		}
+
+		private long[] getWayNodeIds(Node way) {
+			List<Node> proxies = getProxyNodes(way);
+			long[] ids = new long[proxies.size()];
+			for (int i = 0; i < ids.length; i++) {
+				Node node = proxies.get(i).getSingleRelationship(OSMRelation.NODE, Direction.OUTGOING).getEndNode();
+				ids[i] = (Long) node.getProperty("node_osm_id");
+			}
+			return ids;
+		}
+
+		private Collection<Node> getWaysContaining(Node node) {
+			LinkedHashSet<Node> ways = new LinkedHashSet<Node>();
+			for (Relationship nodeRel : node.getRelationships(OSMRelation.NODE, Direction.INCOMING)) {
+				// search the proxy chain in both directions for the first proxy
+				HashSet<Node> visited = new HashSet<Node>();
+				LinkedList<Node> pending = new LinkedList<Node>();
+				pending.add(nodeRel.getStartNode());
+				while (!pending.isEmpty()) {
+					Node proxy = pending.removeFirst();
+					Relationship firstRel = proxy.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.INCOMING);
+					if (firstRel != null) {
+						ways.add(firstRel.getStartNode());
+						break;
+					}
+					visited.add(proxy);
+					for (Relationship rel : proxy.getRelationships(OSMRelation.NEXT)) {
+						Node other = rel.getOtherNode(proxy);
+						if (!visited.contains(other)) {
+							pending.add(other);
+						}
+					}
+				}
+			}
+			return ways;
+		}
+
+		private RoadDirection getDirection(Node way) {
+			Relationship tagsRel = way.getSingleRelationship(OSMRelation.TAGS, Direction.OUTGOING);
+			if (tagsRel == null) {
+				return RoadDirection.BOTH;
+			}
+			return isOneway(getNodeProperties(tagsRel.getEndNode()));
+		}
+
+		private Node getChangeset(Node node) {
+			return node.getSingleRelationship(OSMRelation.CHANGESET, Direction.OUTGOING).getEndNode();
+		}
+
+		/**
+		 * Move a node just created at the start of a chain of the dataset in
+		 * front of the previous start of the chain.
+		 */
+		private void linkFirst(Node node, RelationshipType chainType) {
+			for (Relationship rel : osm_dataset.getRelationships(chainType, Direction.OUTGOING)) {
+				Node first = rel.getEndNode();
+				if (!first.equals(node)) {
+					rel.delete();
+					node.createRelationshipTo(first, OSMRelation.NEXT);
+				}
+			}
+		}
+
+		/**
+		 * Connect the nodes before and after the node in its chain, before the
+		 * node is deleted.
+		 */
+		private void unlink(Node node, RelationshipType chainType) {
+			RelationshipType prevType = chainType;
+			Relationship prevRel = node.getSingleRelationship(chainType, Direction.INCOMING);
+			if (prevRel == null) {
+				prevType = OSMRelation.NEXT;
+				prevRel = node.getSingleRelationship(OSMRelation.NEXT, Direction.INCOMING);
+			}
+			Relationship nextRel = node.getSingleRelationship(OSMRelation.NEXT, Direction.OUTGOING);
+			if (prevRel != null && nextRel != null) {
+				prevRel.getStartNode().createRelationshipTo(nextRel.getEndNode(), prevType);
+			}
+		}
+
+		private void deleteOSMNode(Node node, String indexName, String indexKey) {
+			indexFor(indexName).remove(node, indexKey);
+			removeTags(node);
+			for (Relationship rel : node.getRelationships()) {
+				rel.delete();
+			}
+			node.delete();
+			// the nodes of the current changeset may include this one
+			changesetNodes.clear();
+		}
+
+    }
+
+    private static class OSMBatchWriter extends OSMWriter<Long> {
+    	private BatchInserter batchInserter;
+		private BatchInserterIndexProvider batchIndexService;
+        private HashMap<String,BatchInserterIndex> batchIndices = new HashMap<String,BatchInserterIndex>();
+	    private long osm_root;
+	    private long currentChangesetNode = -1;
+	    private long currentUserNode = -1;
+	    private HashMap<Long,Long> changesetNodes = new HashMap<Long,Long>();
+	    // maps from OSM ids to node ids by index key, or null to use the indexes
+	    private HashMap<String,OSMIdMap> idMaps;
+	    private static final long BATCH_CHECKPOINT_INTERVAL = 100000;
+	    private long checkpointRecords = 0;
+
+		private OSMBatchWriter(BatchInserter batchGraphDb, StatsManager statsManager, OSMImporter osmImporter, boolean useIdMaps) {
+			super(statsManager, osmImporter);
+			this.batchInserter = batchGraphDb;
+			this.batchIndexService = new LuceneBatchInserterIndexProvider(batchGraphDb);
+			if (useIdMaps) {
+				idMaps = new HashMap<String,OSMIdMap>();
+			}
+		}
+
+		private OSMIdMap idMapFor(String indexName, String indexKey) {
+			OSMIdMap idMap = idMaps.get(indexKey);
+			if (idMap == null) {
+				idMap = new OSMIdMap(indexName, indexKey);
+				idMaps.put(indexKey, idMap);
+			}
+			return idMap;
+		}
+
+		private Long getFromIdMap(String indexKey, Object value) {
+			OSMIdMap idMap = idMaps.get(indexKey);
+			long id = idMap == null ? -1 : idMap.get(Long.parseLong(value.toString()));
+			return id < 0 ? null : id;
+		}
+
+		/**
+		 * Write the index entries collected in the id maps.
+		 */
+		private void flushIdMaps() {
+			for (OSMIdMap idMap : idMaps.values()) {
+				final BatchInserterIndex index = indexFor(idMap.getIndexName());
+				final String indexKey = idMap.getIndexKey();
+				final Map<String, Object> props = new HashMap<String, Object>();
+				idMap.visit(new OSMIdMap.Visitor() {
+					public void visit(long key, long value) {
+						props.put(indexKey, Long.toString(key));
+						index.add(value, props);
+					}
+				});
+				index.flush();
+				idMap.close();
+			}
+			idMaps.clear();
+		}
+
+		private BatchInserterIndex indexFor(String indexName) {
+			BatchInserterIndex index = batchIndices.get(indexName);
+			if(index == null) {
+				index = batchIndexService.nodeIndex( indexName, MapUtil.stringMap("type", "exact") );
+				batchIndices.put(indexName, index);
+			}
+    		return index;
+		}
+
+		@Override
+	    public Long getOrCreateOSMDataset(String name) {
+	        if (osm_dataset == null || osm_dataset <= 0) {
+	            osm_root = getOrCreateNode("osm_root", "osm", batchInserter.getReferenceNode(), OSMRelation.OSM);
+	            osm_dataset = getOrCreateNode(name, "osm", osm_root, OSMRelation.OSM);
+	        }
+	        return osm_dataset;
+	    }
+
+	    private long findNode(BatchInserter batchInserter, String name, long parent, RelationshipType relType) {
+	        for (SimpleRelationship relationship : batchInserter.getRelationships(parent)) {
+	            if (relationship.getType().name().equals(relType.name())) {
+	                long node = relationship.getEndNode();
+	                Object nodeName = batchInserter.getNodeProperties(node).get("name");
+	                if (nodeName != null && name.equals(nodeName.toString())) {
+	                    return node;
+	                }
+	            }
+	        }
+	        return -1;
+	    }
+
+	    @Override
+	    protected Long getOrCreateNode(String name, String type, Long parent, RelationshipType relType) {
 	        long node = findNode(batchInserter, name, parent, relType);
 	        if (node < 0) {
 	            HashMap<String, Object> properties = new HashMap<String, Object>();
@@ -1024,19 +1890,90 @@ public class OSMImporter implements Constants {
             batchInserter.setNodeProperties(osm_dataset, properties);
 		}
 
+		@Override
+		protected Map<String, Object> getDatasetProperties() {
+			return batchInserter.getNodeProperties(osm_dataset);
+		}
+
+		@Override
+		protected void removeDatasetProperties(Collection<String> keys) {
+            LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+            properties.putAll(batchInserter.getNodeProperties(osm_dataset));
+            properties.keySet().removeAll(keys);
+            batchInserter.setNodeProperties(osm_dataset, properties);
+		}
+
+		/**
+		 * With the id maps the index entries are only written at the end, so
+		 * there are no checkpoints.
+		 */
+		@Override
+		protected boolean isCheckpointDue(long records) {
+			return idMaps == null && records - checkpointRecords >= BATCH_CHECKPOINT_INTERVAL;
+		}
+
+		@Override
+		protected void checkpoint(Map<String, Object> checkpoint) {
+			if (idMaps == null) {
+				for (BatchInserterIndex index : batchIndices.values()) {
+					index.flush();
+				}
+				super.checkpoint(checkpoint);
+				checkpointRecords = (Long) checkpoint.get("checkpoint_records");
+			}
+		}
+
+		@Override
+		protected void restoreCheckpoint(Map<String, Object> checkpoint) {
+			if (idMaps != null) {
+				throw new SpatialDatabaseException("Cannot resume an import with id maps, the ids of the nodes already written are not known");
+			}
+			super.restoreCheckpoint(checkpoint);
+		}
+
+		@Override
+		protected Long getNodeById(long id) {
+			return id;
+		}
+
 		@Override
 		protected void addNodeTags(Long node, LinkedHashMap<String, Object> tags, String type) {
 			logNodeAddition(tags, type);
 			if (node > 0 && tags.size() > 0) {
 				statsManager.addToTagStats(type, tags.keySet());
-				long id = batchInserter.createNode(tags);
+				long id = sharedTags ? getSharedTagsNode(tags) : batchInserter.createNode(tags);
 				batchInserter.createRelationship(node, id, OSMRelation.TAGS, null);
 				tags.clear();
 			}
 		}
 
 		@Override
-	    protected void addNodeGeometry(Long node, int gtype, Envelope bbox, int vertices) {
+		protected Long findSharedTagsNode(String key) {
+			if (idMaps != null) {
+				// nothing is read from the indexes
+				return null;
+			}
+			IndexHits<Long> results = indexFor(INDEX_NAME_TAGS).get("tags", key);
+			Long existing = results.size() > 0 ? results.getSingle() : null;
+			results.close();
+			return existing;
+		}
+
+		/**
+		 * Create the shared tags node. The tags index is only flushed with the
+		 * others, so a tag set not seen recently may get a second tags node.
+		 */
+		@Override
+		protected Long createSharedTagsNode(String key, Map<String, Object> tags) {
+			long id = batchInserter.createNode(tags);
+			if (idMaps == null) {
+				indexFor(INDEX_NAME_TAGS).add(id, Collections.<String, Object> singletonMap("tags", key));
+			}
+			return id;
+		}
+
+		@Override
+	    protected void addNodeGeometry(Long node, int gtype, Envelope bbox, int vertices, Map<String, Object> extraProperties) {
 	        if (node > 0 && !bbox.isNull() && vertices > 0) {
 	            LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
 	            if (gtype == GTYPE_GEOMETRY)
@@ -1044,6 +1981,9 @@ public class OSMImporter implements Constants {
 	            properties.put("gtype", gtype);
 	            properties.put("vertices", vertices);
 	            properties.put("bbox", new double[] {bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(), bbox.getMaxY()});
+	            if (extraProperties != null) {
+	            	properties.putAll(extraProperties);
+	            }
 	            long id = batchInserter.createNode(properties);
 	            batchInserter.createRelationship(node, id, OSMRelation.GEOM, null);
 	            properties.clear();
@@ -1054,7 +1994,12 @@ public class OSMImporter implements Constants {
 		@Override
 		protected Long addNode(String name, Map<String, Object> properties, String indexKey) {
 			long id = -1;
-			if (indexKey != null && properties.containsKey(indexKey)) {
+			if (indexKey != null && properties.containsKey(indexKey) && idMaps != null) {
+				long osmId = Long.parseLong(properties.get(indexKey).toString());
+				properties.put(indexKey, osmId);
+				id = batchInserter.createNode(properties);
+				idMapFor(name, indexKey).put(osmId, id);
+			} else if (indexKey != null && properties.containsKey(indexKey)) {
 				Map<String, Object> props = new HashMap<String, Object>();
 				props.put(indexKey, properties.get(indexKey).toString());
 				properties.put(indexKey, Long.parseLong(properties.get(indexKey).toString()));
@@ -1097,9 +2042,13 @@ public class OSMImporter implements Constants {
 		}
 		
 		protected void optimize() {
+			if (idMaps != null) {
+				// nothing is read from the indexes
+				return;
+			}
 			//TODO: optimize
 			//batchIndexService.optimize();
-			for (String index : new String[] { "node", "way", "changeset", "user" }) {
+			for (String index : new String[] { "node", "way", "changeset", "user", INDEX_NAME_TAGS }) {
 				indexFor(index).flush();
 			}
 		}
@@ -1111,6 +2060,9 @@ public class OSMImporter implements Constants {
 
 		@Override
 		protected Long getSingleNode(String name, String string, Object value) {
+			if (idMaps != null) {
+				return getFromIdMap(string, value);
+			}
 			return indexFor(name).get(string, value).getSingle();
 		}
 
@@ -1119,8 +2071,17 @@ public class OSMImporter implements Constants {
 			return batchInserter.getNodeProperties(member);
 		}
 
+		@Override
+		protected long getNodeId(Long node) {
+			return node;
+		}
+
 		@Override
 		protected Long getOSMNode(long osmId, Long changesetNode) {
+			if (idMaps != null) {
+				logNodeFoundFrom("id-map");
+				return getFromIdMap("node_osm_id", osmId);
+			}
 			if(currentChangesetNode != changesetNode || changesetNodes.isEmpty()) {
 				currentChangesetNode = changesetNode;
 				changesetNodes.clear();
@@ -1158,8 +2119,23 @@ public class OSMImporter implements Constants {
 
 		@Override
 		protected void finish() {
+			if (idMaps != null) {
+				flushIdMaps();
+			}
 			batchIndexService.shutdown();
 			batchIndexService = null;
+			coordinates.close();
+		}
+
+		/**
+		 * The batch inserter cannot roll back the records written since the
+		 * last checkpoint, so the checkpoint is marked as failed and the
+		 * import cannot be resumed from it.
+		 */
+		@Override
+		protected void abort() {
+			setDatasetProperties(Collections.<String, Object> singletonMap("checkpoint_failed", true));
+			finish();
 		}
 
 		@Override
@@ -1174,19 +2150,29 @@ public class OSMImporter implements Constants {
 			if (changeset != currentChangesetId) {
 				currentChangesetId = changeset;
 				changesetNodes.clear();
-				IndexHits<Long> results = indexFor("changeset").get("changeset", currentChangesetId);
-				if(results.size() > 0) {
-					currentChangesetNode = results.getSingle();
+				Long existing = null;
+				if (idMaps != null) {
+					existing = getFromIdMap("changeset", currentChangesetId);
+				} else {
+					IndexHits<Long> results = indexFor("changeset").get("changeset", currentChangesetId);
+					if (results.size() > 0) {
+						existing = results.getSingle();
+					}
+					results.close();
+				}
+				if (existing != null) {
+					currentChangesetNode = existing;
 				} else {
 					LinkedHashMap<String, Object> changesetProps = new LinkedHashMap<String, Object>();
 					changesetProps.put("changeset", currentChangesetId);
 					currentChangesetNode = (Long) addNode("changeset", changesetProps, "changeset");
-					indexFor("changeset").flush();
+					if (idMaps == null) {
+						indexFor("changeset").flush();
+					}
 					if (currentUserNode > 0) {
 						createRelationship(currentChangesetNode, currentUserNode, OSMRelation.USER);
 					}
 				}
-				results.close();
 			}
 			return currentChangesetNode;
 		}
@@ -1198,17 +2184,27 @@ public class OSMImporter implements Constants {
 				String name = nodeProps.remove("user").toString();
 				if (uid != currentUserId) {
 					currentUserId = uid;
-					IndexHits<Long> results = indexFor(INDEX_NAME_USER).get("uid", currentUserId);
-					if(results.size() > 0) {
-						currentUserNode = results.getSingle();
+					Long existing = null;
+					if (idMaps != null) {
+						existing = getFromIdMap("uid", currentUserId);
+					} else {
+						IndexHits<Long> results = indexFor(INDEX_NAME_USER).get("uid", currentUserId);
+						if (results.size() > 0) {
+							existing = results.getSingle();
+						}
+						results.close();
+					}
+					if (existing != null) {
+						currentUserNode = existing;
 					} else {
 						LinkedHashMap<String, Object> userProps = new LinkedHashMap<String, Object>();
 						userProps.put("uid", currentUserId);
 						userProps.put("name", name);
 						currentUserNode = (Long) addNode("user", userProps, "uid");
-						indexFor(INDEX_NAME_USER).flush();
+						if (idMaps == null) {
+							indexFor(INDEX_NAME_USER).flush();
+						}
 					}
-					results.close();
 				}
 			} catch (Exception e) {
 				currentUserId = -1;
@@ -1237,111 +2233,71 @@ public class OSMImporter implements Constants {
     }
 
 	public void importFile(BatchInserter batchInserter, String dataset, boolean allPoints) throws IOException, XMLStreamException {
-		importFile(OSMWriter.fromBatchInserter(batchInserter, stats, this), dataset, allPoints);
+		importFile(OSMWriter.fromBatchInserter(batchInserter, stats, this, useIdMaps), dataset, allPoints);
 	}
 
     public void importFile(OSMWriter<?> osmWriter, String dataset, boolean allPoints) throws IOException, XMLStreamException {
 		System.out.println("Importing with osm-writer: " + osmWriter);
 		osmWriter.getOrCreateOSMDataset(layerName);
         osm_dataset = osmWriter.getDatasetId();
+        if (compactWays) {
+            osmWriter.setDatasetProperties(Collections.<String, Object> singletonMap("compact_ways", true));
+        }
+        if (sharedTags) {
+            osmWriter.setDatasetProperties(Collections.<String, Object> singletonMap("shared_tags", true));
+        }
+        osmWriter.sharedTags = osmWriter.getDatasetProperties().containsKey("shared_tags");
 
         long startTime = System.currentTimeMillis();
-        long[] times = new long[]{0L,0L,0L,0L};
-        javax.xml.stream.XMLInputFactory factory = javax.xml.stream.XMLInputFactory.newInstance();
-        javax.xml.stream.XMLStreamReader parser = factory.createXMLStreamReader(new FileReader(dataset));
-        int countXMLTags = 0;
+        OSMRecordWriter recordWriter = new OSMRecordWriter(osmWriter, allPoints, dataset);
+        Map<String, Object> checkpoint = osmWriter.getDatasetProperties();
+        if (resume && checkpoint.containsKey("checkpoint_failed")) {
+            osmWriter.finish();
+            throw new SpatialDatabaseException("Cannot resume the import of " + layerName
+                    + ", the batch inserter failed part way through a record and kept the records since its last checkpoint");
+        }
+        if (resume && dataset.equals(checkpoint.get("checkpoint_file"))) {
+            log("info | Resuming import of " + dataset + " after record " + checkpoint.get("checkpoint_records"));
+            recordWriter.resume(checkpoint);
+        }
+        OSMRecordSource source;
+        OSMImportFilter.Selection selection = null;
+        if (filter != null && !filter.isEmpty()) {
+            selection = filter.scan(openSource(dataset));
+            source = selection.filter(openSource(dataset));
+        } else {
+            source = openSource(dataset);
+        }
         setLogContext(dataset);
-        boolean startedWays = false;
-        boolean startedRelations = false;
+        boolean completed = false;
         try {
-            ArrayList<String> currentXMLTags = new ArrayList<String>();
-            int depth = 0;
-            Map<String, Object> wayProperties = null;
-            ArrayList<Long> wayNodes = new ArrayList<Long>();
-            Map<String, Object> relationProperties = null;
-            ArrayList<Map<String, Object>> relationMembers = new ArrayList<Map<String, Object>>();
-            LinkedHashMap<String, Object> currentNodeTags = new LinkedHashMap<String, Object>();
-            while (true) {
-                incrLogContext();
-                int event = parser.next();
-                if (event == javax.xml.stream.XMLStreamConstants.END_DOCUMENT) {
-                    break;
-                }
-                switch (event) {
-                case javax.xml.stream.XMLStreamConstants.START_ELEMENT:
-                    currentXMLTags.add(depth, parser.getLocalName());
-                    String tagPath = currentXMLTags.toString();
-                    if (tagPath.equals("[osm]")) {
-                    	osmWriter.setDatasetProperties(extractProperties(parser));
-                    } else if (tagPath.equals("[osm, bounds]")) {
-                        osmWriter.addOSMBBox(extractProperties("bbox", parser));
-                    } else if (tagPath.equals("[osm, node]")) {
-                    	// <node id="269682538" lat="56.0420950" lon="12.9693483" user="sanna" uid="31450" visible="true" version="1" changeset="133823" timestamp="2008-06-11T12:36:28Z"/>
-                    	osmWriter.createOSMNode(extractProperties("node", parser));
-                    } else if (tagPath.equals("[osm, way]")) {
-                    	// <way id="27359054" user="spull" uid="61533" visible="true" version="8" changeset="4707351" timestamp="2010-05-15T15:39:57Z">
-                        if (!startedWays) {
-                            startedWays = true;
-                            times[0] = System.currentTimeMillis();
-                            osmWriter.optimize();
-                            times[1] = System.currentTimeMillis();
-                        }
-                        wayProperties = extractProperties("way", parser);
-                        wayNodes.clear();
-                    } else if (tagPath.equals("[osm, way, nd]")) {
-                        Map<String, Object> properties = extractProperties(parser);
-                        wayNodes.add(Long.parseLong(properties.get("ref").toString()));
-                    } else if (tagPath.endsWith("tag]")) {
-                        Map<String, Object> properties = extractProperties(parser);
-                        currentNodeTags.put(properties.get("k").toString(), properties.get("v").toString());
-                    } else if (tagPath.equals("[osm, relation]")) {
-                    	// <relation id="77965" user="Grillo" uid="13957" visible="true" version="24" changeset="5465617" timestamp="2010-08-11T19:25:46Z">
-                        if (!startedRelations) {
-                            startedRelations = true;
-                            times[2] = System.currentTimeMillis();
-                            osmWriter.optimize();
-                            times[3] = System.currentTimeMillis();
-                        }
-                        relationProperties = extractProperties("relation", parser);
-                        relationMembers.clear();
-                    } else if (tagPath.equals("[osm, relation, member]")) {
-                        relationMembers.add(extractProperties(parser));
-                    }
-                    if (startedRelations) {
-                        if (countXMLTags < 10) {
-                            log("Starting tag at depth " + depth + ": " + currentXMLTags.get(depth) + " - " + currentXMLTags.toString());
-                            for (int i = 0; i < parser.getAttributeCount(); i++) {
-                                log("\t" + currentXMLTags.toString() + ": " + parser.getAttributeLocalName(i) + "["
-                                        + parser.getAttributeNamespace(i) + "," + parser.getAttributePrefix(i) + ","
-                                        + parser.getAttributeType(i) + "," + "] = " + parser.getAttributeValue(i));
-                            }
-                        }
-                        countXMLTags++;
-                    }
-                    depth++;
-                    break;
-                case javax.xml.stream.XMLStreamConstants.END_ELEMENT:
-                    if (currentXMLTags.toString().equals("[osm, node]")) {
-                    	osmWriter.addOSMNodeTags(allPoints, currentNodeTags);
-                    } else if (currentXMLTags.toString().equals("[osm, way]")) {
-                        osmWriter.createOSMWay(wayProperties, wayNodes, currentNodeTags);
-                    } else if (currentXMLTags.toString().equals("[osm, relation]")) {
-                        osmWriter.createOSMRelation(relationProperties, relationMembers, currentNodeTags);
-                    }
-                    depth--;
-                    currentXMLTags.remove(depth);
-                    // log("Ending tag at depth "+depth+": "+currentTags.get(depth));
-                    break;
-                default:
-                    break;
-                }
+            if (usePipeline) {
+                readAndWrite(source, recordWriter);
+            } else {
+                source.read(recordWriter);
             }
+            completed = true;
         } finally {
-            parser.close();
-            osmWriter.finish();
+            source.close();
+            if (recordWriter.writing) {
+                // the writer failed part way through a record, which must not
+                // be committed with the records before it
+                osmWriter.abort();
+            } else {
+                if (completed) {
+                    osmWriter.removeDatasetProperties(CHECKPOINT_PROPERTIES);
+                } else if (recordWriter.records > 0) {
+                    recordWriter.checkpoint();
+                }
+                osmWriter.finish();
+            }
             this.osm_dataset = osmWriter.getDatasetId();
         }
-        describeTimes(startTime,times);
+        describeTimes(startTime, recordWriter.times);
+        log("info | Read " + getInputBytesRead() + " of " + getInputLength() + " bytes");
+        if (selection != null) {
+            log("info | Selected " + selection.getSelected() + " of " + selection.getRead() + " OSM records");
+        }
         osmWriter.describeMissing();
         osmWriter.describeLoaded();
 
@@ -1351,6 +2307,486 @@ public class OSMImporter implements Constants {
         stats.printTagStats();
     }
 
+	/**
+	 * A node, way or relation read from the OSM data, or the dataset properties
+	 * or bounding box, ready to be written by the OSMWriter. The properties
+	 * are those of the XML attributes, with the id named after the type, for
+	 * example "node_osm_id".
+	 */
+	static class OSMRecord {
+		static final int DATASET = 0;
+		static final int BBOX = 1;
+		static final int NODE = 2;
+		static final int WAY = 3;
+		static final int RELATION = 4;
+
+		// the actions of an osmChange file
+		static final int CREATE = 0;
+		static final int MODIFY = 1;
+		static final int DELETE = 2;
+
+		final int type;
+		int action = CREATE;
+		final Map<String, Object> properties;
+		final LinkedHashMap<String, Object> tags = new LinkedHashMap<String, Object>();
+		long[] wayNodes;
+		ArrayList<Map<String, Object>> members;
+
+		OSMRecord(int type, Map<String, Object> properties) {
+			this.type = type;
+			this.properties = properties;
+		}
+	}
+
+	interface OSMRecordSink {
+		void add(OSMRecord record);
+	}
+
+	/**
+	 * Reads the records of an OSM file, in the order of the file.
+	 */
+	interface OSMRecordSource {
+		void read(OSMRecordSink sink) throws IOException, XMLStreamException;
+
+		void close() throws IOException, XMLStreamException;
+	}
+
+	public void applyChanges(GraphDatabaseService database, String changeFile) throws IOException, XMLStreamException {
+		applyChanges(database, changeFile, 5000);
+	}
+
+	/**
+	 * Apply an osmChange file to the dataset of this importer, as imported
+	 * with the GraphDatabaseService. Nodes, ways and relations are created,
+	 * modified and deleted in place, and the index of the layer is updated
+	 * for the geometries of the changed nodes, ways and relations, and of
+	 * the relations containing them, so there is no need to call reIndex
+	 * afterwards. The change file may be compressed like the
+	 * files for importFile.
+	 */
+	public void applyChanges(GraphDatabaseService database, String changeFile, int txInterval) throws IOException,
+			XMLStreamException {
+		final OSMGraphWriter osmWriter = new OSMGraphWriter(database, stats, this, txInterval);
+		osmWriter.getOrCreateOSMDataset(layerName);
+		osm_dataset = osmWriter.getDatasetId();
+		if (osmWriter.getDatasetProperties().containsKey("compact_ways")) {
+			osmWriter.finish();
+			throw new SpatialDatabaseException("Cannot apply changes to " + layerName + ", its ways are stored compactly");
+		}
+		osmWriter.sharedTags = osmWriter.getDatasetProperties().containsKey("shared_tags");
+		Layer layer = new SpatialDatabaseService(database).getLayer(layerName);
+		final SpatialIndexWriter index = layer == null ? null : (SpatialIndexWriter) layer.getIndex();
+
+		long startTime = System.currentTimeMillis();
+		final int[] counts = new int[3];
+		OSMRecordSource source = openSource(changeFile);
+		setLogContext(changeFile);
+		try {
+			source.read(new OSMRecordSink() {
+				public void add(OSMRecord record) {
+					if (record.type >= OSMRecord.NODE) {
+						osmWriter.applyChange(record, index);
+						counts[record.action]++;
+					}
+				}
+			});
+		} finally {
+			source.close();
+			osmWriter.finish();
+		}
+		osmWriter.describeMissing();
+		log("info | Created " + counts[OSMRecord.CREATE] + ", modified " + counts[OSMRecord.MODIFY] + " and deleted "
+				+ counts[OSMRecord.DELETE] + " in " + (1.0 * (System.currentTimeMillis() - startTime) / 1000.0)
+				+ " seconds");
+	}
+
+	/**
+	 * Open the dataset as PBF if it ends in .pbf, and otherwise as OSM XML,
+	 * which may be compressed with gzip (.gz) or bzip2 (.bz2). Compressed
+	 * files are decompressed on a separate thread, ahead of the parser.
+	 */
+	private OSMRecordSource openSource(String dataset) throws IOException, XMLStreamException {
+		File file = new File(dataset);
+		inputLength = file.length();
+		input = new CountingInputStream(new FileInputStream(file));
+		InputStream stream = input;
+		try {
+			String name = dataset.toLowerCase();
+			if (name.endsWith(".gz")) {
+				stream = new BackgroundInputStream(new GZIPInputStream(input, 64 * 1024));
+			} else if (name.endsWith(".bz2")) {
+				stream = new BackgroundInputStream(new BZip2CompressorInputStream(new BufferedInputStream(input,
+						64 * 1024), true));
+			} else {
+				stream = new BufferedInputStream(input, 64 * 1024);
+			}
+			if (name.endsWith(".pbf")) {
+				return new OSMPBFReader(stream);
+			} else {
+				return new OSMXMLSource(stream);
+			}
+		} catch (IOException e) {
+			stream.close();
+			throw e;
+		} catch (XMLStreamException e) {
+			stream.close();
+			throw e;
+		}
+	}
+
+	private class OSMXMLSource implements OSMRecordSource {
+		private final InputStream input;
+		private final XMLStreamReader parser;
+
+		private OSMXMLSource(InputStream input) throws XMLStreamException {
+			javax.xml.stream.XMLInputFactory factory = javax.xml.stream.XMLInputFactory.newInstance();
+			this.input = input;
+			this.parser = factory.createXMLStreamReader(input);
+		}
+
+		public void read(OSMRecordSink sink) throws XMLStreamException {
+			parse(parser, sink);
+		}
+
+		public void close() throws IOException, XMLStreamException {
+			try {
+				parser.close();
+			} finally {
+				input.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes the parsed records with the OSMWriter, and times the phases of
+	 * the import for describeTimes.
+	 */
+	private static class OSMRecordWriter implements OSMRecordSink {
+		private final OSMWriter<?> osmWriter;
+		private final boolean allPoints;
+		private final long[] times = new long[] { 0L, 0L, 0L, 0L };
+		private boolean startedWays = false;
+		private boolean startedRelations = false;
+		private final String dataset;
+		private long records = 0;
+		private long skip = 0;
+		private Map<String, Object> resumeFrom;
+		private int lastType = -1;
+		private String lastOsmId;
+		private boolean writing = false;
+
+		private OSMRecordWriter(OSMWriter<?> osmWriter, boolean allPoints, String dataset) {
+			this.osmWriter = osmWriter;
+			this.allPoints = allPoints;
+			this.dataset = dataset;
+		}
+
+		/**
+		 * Skip the records already written up to the given checkpoint, and
+		 * continue the import after them.
+		 */
+		private void resume(Map<String, Object> checkpoint) {
+			this.resumeFrom = checkpoint;
+			this.skip = (Long) checkpoint.get("checkpoint_records");
+		}
+
+		public void add(OSMRecord record) {
+			if (skip > 0) {
+				records++;
+				lastType = record.type;
+				lastOsmId = osmIdOf(record);
+				skip--;
+				if (record.type == OSMRecord.WAY) {
+					startedWays = true;
+				} else if (record.type == OSMRecord.RELATION) {
+					startedRelations = true;
+				}
+				if (skip == 0) {
+					if (!resumeFrom.get("checkpoint_type").equals(lastType)
+							|| !resumeFrom.get("checkpoint_osm_id").equals(lastOsmId)) {
+						throw new SpatialDatabaseException("The file " + dataset + " does not match the checkpoint at record " + records
+								+ ": expected " + resumeFrom.get("checkpoint_osm_id") + " but found " + lastOsmId);
+					}
+					osmWriter.restoreCheckpoint(resumeFrom);
+				}
+				return;
+			}
+			String osmId = osmIdOf(record);
+			writing = true;
+			write(record);
+			writing = false;
+			records++;
+			lastType = record.type;
+			lastOsmId = osmId;
+			if (osmWriter.isCheckpointDue(records)) {
+				checkpoint();
+			}
+		}
+
+		/**
+		 * Commit the records written so far, with the properties needed to
+		 * resume the import after the last of them.
+		 */
+		private void checkpoint() {
+			if (skip > 0) {
+				// the checkpoint we resumed from is still the latest
+				return;
+			}
+			LinkedHashMap<String, Object> checkpoint = new LinkedHashMap<String, Object>();
+			checkpoint.put("checkpoint_file", dataset);
+			checkpoint.put("checkpoint_records", records);
+			checkpoint.put("checkpoint_type", lastType);
+			checkpoint.put("checkpoint_osm_id", lastOsmId);
+			osmWriter.checkpoint(checkpoint);
+		}
+
+		private static String osmIdOf(OSMRecord record) {
+			Object id = null;
+			switch (record.type) {
+			case OSMRecord.NODE:
+				id = record.properties.get("node_osm_id");
+				break;
+			case OSMRecord.WAY:
+				id = record.properties.get("way_osm_id");
+				break;
+			case OSMRecord.RELATION:
+				id = record.properties.get("relation_osm_id");
+				break;
+			}
+			return id == null ? "" : id.toString();
+		}
+
+		private void write(OSMRecord record) {
+			switch (record.type) {
+			case OSMRecord.DATASET:
+				osmWriter.setDatasetProperties(record.properties);
+				break;
+			case OSMRecord.BBOX:
+				osmWriter.addOSMBBox(record.properties);
+				break;
+			case OSMRecord.NODE:
+				osmWriter.createOSMNode(record.properties);
+				osmWriter.addOSMNodeTags(allPoints, record.tags);
+				break;
+			case OSMRecord.WAY:
+				if (!startedWays) {
+					startedWays = true;
+					times[0] = System.currentTimeMillis();
+					osmWriter.optimize();
+					times[1] = System.currentTimeMillis();
+				}
+				osmWriter.createOSMWay(record.properties, record.wayNodes, record.tags);
+				break;
+			case OSMRecord.RELATION:
+				if (!startedRelations) {
+					startedRelations = true;
+					times[2] = System.currentTimeMillis();
+					osmWriter.optimize();
+					times[3] = System.currentTimeMillis();
+				}
+				osmWriter.createOSMRelation(record.properties, record.members, record.tags);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Parse the OSM XML into records for the given sink. Elements are
+	 * dispatched on their depth and local name: the root at depth 1, nodes,
+	 * ways, relations and bounds at depth 2, and their tags, way nodes and
+	 * members at depth 3. Tags and way nodes are read straight from the
+	 * attributes. In an osmChange file the elements are one level deeper,
+	 * inside create, modify and delete elements that set the action of the
+	 * records.
+	 */
+	private void parse(XMLStreamReader parser, OSMRecordSink sink) throws XMLStreamException {
+        int countXMLTags = 0;
+        boolean startedRelations = false;
+        int depth = 0;
+        int elementDepth = 2;
+        int action = OSMRecord.CREATE;
+        OSMRecord current = null;
+        long[] wayNodes = new long[100];
+        int wayNodeCount = 0;
+        while (true) {
+            incrLogContext();
+            int event = parser.next();
+            if (event == javax.xml.stream.XMLStreamConstants.END_DOCUMENT) {
+                break;
+            }
+            switch (event) {
+            case javax.xml.stream.XMLStreamConstants.START_ELEMENT:
+                depth++;
+                String element = parser.getLocalName();
+                if (depth == elementDepth + 1) {
+                    if (current == null) {
+                        // children of bounds or unsupported elements
+                    } else if (element.equals("tag")) {
+                        current.tags.put(parser.getAttributeValue(null, "k"), parser.getAttributeValue(null, "v"));
+                    } else if (element.equals("nd") && current.type == OSMRecord.WAY) {
+                        if (wayNodeCount == wayNodes.length) {
+                            wayNodes = Arrays.copyOf(wayNodes, wayNodes.length * 2);
+                        }
+                        wayNodes[wayNodeCount++] = Long.parseLong(parser.getAttributeValue(null, "ref"));
+                    } else if (element.equals("member") && current.type == OSMRecord.RELATION) {
+                        current.members.add(extractProperties(parser));
+                    }
+                } else if (depth == elementDepth) {
+                    if (element.equals("node")) {
+                    	// <node id="269682538" lat="56.0420950" lon="12.9693483" user="sanna" uid="31450" visible="true" version="1" changeset="133823" timestamp="2008-06-11T12:36:28Z"/>
+                    	current = new OSMRecord(OSMRecord.NODE, extractProperties("node", parser));
+                    } else if (element.equals("way")) {
+                    	// <way id="27359054" user="spull" uid="61533" visible="true" version="8" changeset="4707351" timestamp="2010-05-15T15:39:57Z">
+                        current = new OSMRecord(OSMRecord.WAY, extractProperties("way", parser));
+                        wayNodeCount = 0;
+                    } else if (element.equals("relation")) {
+                    	// <relation id="77965" user="Grillo" uid="13957" visible="true" version="24" changeset="5465617" timestamp="2010-08-11T19:25:46Z">
+                        startedRelations = true;
+                        current = new OSMRecord(OSMRecord.RELATION, extractProperties("relation", parser));
+                        current.members = new ArrayList<Map<String, Object>>();
+                    } else if (element.equals("bounds")) {
+                        sink.add(new OSMRecord(OSMRecord.BBOX, extractProperties("bbox", parser)));
+                    }
+                } else if (depth == 1 && element.equals("osm")) {
+                	sink.add(new OSMRecord(OSMRecord.DATASET, extractProperties(parser)));
+                } else if (depth == 1 && element.equals("osmChange")) {
+                    elementDepth = 3;
+                } else if (depth == 2 && elementDepth == 3) {
+                    if (element.equals("modify")) {
+                        action = OSMRecord.MODIFY;
+                    } else if (element.equals("delete")) {
+                        action = OSMRecord.DELETE;
+                    } else {
+                        action = OSMRecord.CREATE;
+                    }
+                }
+                if (startedRelations) {
+                    if (countXMLTags < 10) {
+                        log("Starting tag at depth " + depth + ": " + element);
+                        for (int i = 0; i < parser.getAttributeCount(); i++) {
+                            log("\t" + element + ": " + parser.getAttributeLocalName(i) + "["
+                                    + parser.getAttributeNamespace(i) + "," + parser.getAttributePrefix(i) + ","
+                                    + parser.getAttributeType(i) + "," + "] = " + parser.getAttributeValue(i));
+                        }
+                    }
+                    countXMLTags++;
+                }
+                break;
+            case javax.xml.stream.XMLStreamConstants.END_ELEMENT:
+                if (depth == elementDepth && current != null) {
+                    if (current.type == OSMRecord.WAY) {
+                        current.wayNodes = Arrays.copyOf(wayNodes, wayNodeCount);
+                    }
+                    current.action = action;
+                    sink.add(current);
+                    current = null;
+                }
+                depth--;
+                break;
+            default:
+                break;
+            }
+        }
+	}
+
+	/**
+	 * Read the OSM data on a separate thread while the records are written on
+	 * this one, so that transactions stay on the calling thread. Records are
+	 * handed over in batches through a bounded queue, which blocks the parser
+	 * when the writer falls behind.
+	 */
+	private void readAndWrite(final OSMRecordSource source, OSMRecordWriter recordWriter) throws IOException,
+			XMLStreamException {
+		final OSMRecordPipe pipe = new OSMRecordPipe();
+		Thread parserThread = new Thread("OSM parser") {
+			public void run() {
+				try {
+					source.read(pipe);
+					pipe.close(null);
+				} catch (Throwable e) {
+					pipe.close(e);
+				}
+			}
+		};
+		parserThread.start();
+		try {
+			List<OSMRecord> batch;
+			while ((batch = pipe.take()) != OSMRecordPipe.END) {
+				for (OSMRecord record : batch) {
+					recordWriter.add(record);
+				}
+			}
+		} finally {
+			// stops the parser if the writer failed
+			parserThread.interrupt();
+			try {
+				parserThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		Throwable error = pipe.error;
+		if (error instanceof XMLStreamException) {
+			throw (XMLStreamException) error;
+		} else if (error instanceof IOException) {
+			throw (IOException) error;
+		} else if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		} else if (error instanceof Error) {
+			throw (Error) error;
+		} else if (error != null) {
+			throw new SpatialDatabaseException("Failed to parse OSM data: " + error.getMessage(), error);
+		}
+	}
+
+	private static class OSMRecordPipe implements OSMRecordSink {
+		private static final int BATCH_SIZE = 1000;
+		private static final int QUEUED_BATCHES = 16;
+		private static final List<OSMRecord> END = new ArrayList<OSMRecord>();
+
+		private final BlockingQueue<List<OSMRecord>> queue = new ArrayBlockingQueue<List<OSMRecord>>(QUEUED_BATCHES);
+		private List<OSMRecord> batch = new ArrayList<OSMRecord>(BATCH_SIZE);
+		private volatile Throwable error;
+
+		public void add(OSMRecord record) {
+			batch.add(record);
+			if (batch.size() >= BATCH_SIZE) {
+				put(batch);
+				batch = new ArrayList<OSMRecord>(BATCH_SIZE);
+			}
+		}
+
+		private void put(List<OSMRecord> records) {
+			try {
+				queue.put(records);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SpatialDatabaseException("OSM import was aborted", e);
+			}
+		}
+
+		private void close(Throwable error) {
+			this.error = error;
+			try {
+				if (error == null && !batch.isEmpty()) {
+					queue.put(batch);
+				}
+				queue.put(END);
+			} catch (InterruptedException e) {
+				// the writer has stopped and does not wait for the end
+			}
+		}
+
+		private List<OSMRecord> take() {
+			try {
+				return queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SpatialDatabaseException("OSM import was interrupted", e);
+			}
+		}
+	}
+
 	private void describeTimes(long startTime, long[] times) {
 		long endTime = System.currentTimeMillis();
 		log("Completed load in " + (1.0 * (endTime - startTime) / 1000.0) + "s");
@@ -1387,8 +2823,7 @@ public class OSMImporter implements Constants {
             	}
             } else if (prop.equals("timestamp")) {
 				try {
-					Date timestamp = timestampFormat.parse(value);
-            		properties.put(prop, timestamp.getTime());
+            		properties.put(prop, parseTimestamp(value));
 				} catch (ParseException e) {
 					error("Error parsing timestamp", e);
 				}
@@ -1402,6 +2837,57 @@ public class OSMImporter implements Constants {
         return properties;
     }
 
+	/**
+	 * Parse an OSM timestamp like "2008-06-11T12:36:28Z" to milliseconds since
+	 * the epoch. This fixed format is read digit by digit, other formats are
+	 * parsed with a DateFormat.
+	 */
+	public static long parseTimestamp(String value) throws ParseException {
+		if (value.length() == 20 && value.charAt(4) == '-' && value.charAt(7) == '-' && value.charAt(10) == 'T'
+				&& value.charAt(13) == ':' && value.charAt(16) == ':' && value.charAt(19) == 'Z') {
+			int year = parseDigits(value, 0, 4);
+			int month = parseDigits(value, 5, 7);
+			int day = parseDigits(value, 8, 10);
+			int hour = parseDigits(value, 11, 13);
+			int minute = parseDigits(value, 14, 16);
+			int second = parseDigits(value, 17, 19);
+			if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31 && hour >= 0 && hour < 24
+					&& minute >= 0 && minute < 60 && second >= 0 && second < 61) {
+				long seconds = ((daysSinceEpoch(year, month, day) * 24 + hour) * 60 + minute) * 60 + second;
+				return seconds * 1000;
+			}
+		}
+		DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.parse(value).getTime();
+	}
+
+	private static int parseDigits(String value, int start, int end) {
+		int result = 0;
+		for (int i = start; i < end; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			result = result * 10 + (c - '0');
+		}
+		return result;
+	}
+
+	/**
+	 * Days from 1970-01-01 to the given date of the proleptic Gregorian
+	 * calendar.
+	 */
+	private static long daysSinceEpoch(int year, int month, int day) {
+		// count years from March, so the leap day is the last day of a year
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
     /**
      * Detects if road has the only direction
      * 
@@ -1457,8 +2943,6 @@ public class OSMImporter implements Constants {
     private String logContext = null;
     private int contextLine = 0;
 
-    //"2008-06-11T12:36:28Z"
-	private DateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
 
     private void setLogContext(String context) {
         logContext = context;
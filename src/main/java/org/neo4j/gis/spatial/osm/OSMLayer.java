@@ -21,6 +21,7 @@ package org.neo4j.gis.spatial.osm;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.List;
 
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.json.simple.JSONObject;
@@ -30,6 +31,7 @@ import org.neo4j.gis.spatial.EditableLayer;
 import org.neo4j.gis.spatial.NullListener;
 import org.neo4j.gis.spatial.SpatialDatabaseService;
 import org.neo4j.gis.spatial.SpatialDataset;
+import org.neo4j.gis.spatial.SpatialRelationshipTypes;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -72,6 +74,19 @@ public class OSMLayer extends DynamicLayer {
 		return osmDataset;
 	}
 
+	/**
+	 * Only datasets imported with shared tags nodes have tags nodes shared by
+	 * many geometries.
+	 */
+	protected boolean hasSharedNodes() {
+		for (Relationship rel : layerNode.getRelationships(SpatialRelationshipTypes.LAYERS, Direction.INCOMING)) {
+			if (rel.getStartNode().hasProperty("shared_tags")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public Integer getGeometryType() {
 		// The core layer in OSM is based on the Ways, and we return all of them
 		// as LINESTRING and POLYGON, so we use the parent GEOMETRY
@@ -100,6 +115,15 @@ public class OSMLayer extends DynamicLayer {
 	}
 
 	public Node addWay(Node way, boolean verifyGeom) {
+		return addWay(way, verifyGeom, null);
+	}
+
+	/**
+	 * Add the geometry of the way to the layer. If geomNodes is not null the
+	 * geometry node is only added to that list instead of the index, so that
+	 * many ways can be indexed at once with {@link #addAll(Iterable)}.
+	 */
+	public Node addWay(Node way, boolean verifyGeom, List<Node> geomNodes) {
 		Relationship geomRel = way.getSingleRelationship(OSMRelation.GEOM,
 				Direction.OUTGOING);
 		if (geomRel != null) {
@@ -109,7 +133,10 @@ public class OSMLayer extends DynamicLayer {
 				// exception on error
 				if (verifyGeom)
 					getGeometryEncoder().decodeGeometry(geomNode);
-				index.add(geomNode);
+				if (geomNodes != null)
+					geomNodes.add(geomNode);
+				else
+					index.add(geomNode);
 			} catch (Exception e) {
 				System.err.println("Failed geometry test on node "
 						+ geomNode.getProperty("name", geomNode.toString())
@@ -264,6 +291,7 @@ public class OSMLayer extends DynamicLayer {
 
 		// The index node of the geometry with bbox property.
 		Node geomIndexNode = this.getDatabase().getNodeById(geomNodeId);
+		OSMGeometryCache.forDatabase(getDatabase()).invalidate(geomNodeId);
 
 		// The geom node with propertie infos about the geometry node.
 		Node geomNode = geomIndexNode.getSingleRelationship(OSMRelation.GEOM,
@@ -291,9 +319,14 @@ public class OSMLayer extends DynamicLayer {
 	 * @param geomNode the geom node to delete.
 	 */
 	private void deleteSubgraph(Node geomNode) {
+		Relationship firstNode = geomNode.getSingleRelationship(OSMRelation.FIRST_NODE,
+				Direction.OUTGOING);
+		if (firstNode == null) {
+			// a compact way has no proxy nodes
+			return;
+		}
 		// Get start node of the OSM GEOM subgraph.
-		Node startNode = geomNode.getSingleRelationship(OSMRelation.FIRST_NODE,
-				Direction.OUTGOING).getEndNode();
+		Node startNode = firstNode.getEndNode();
 
 		// Get all coordinate nodes and proxy nodes for them.
 		Traverser traverser = startNode.traverse(Order.BREADTH_FIRST,
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.operation.linemerge.LineMerger;
+
+/**
+ * Assembles the polygons of a multipolygon or boundary relation from the
+ * lines of its member ways. Rings are often split over several ways, so the
+ * lines are first merged end to end into rings. Each outer ring becomes a
+ * polygon, and each inner ring becomes a hole in the smallest outer ring
+ * containing it. Lines that do not close into a ring are left out.
+ */
+class OSMMultipolygonBuilder {
+	private final GeometryFactory geometryFactory;
+	private final List<LineString> outerLines = new ArrayList<LineString>();
+	private final List<LineString> innerLines = new ArrayList<LineString>();
+	private int unclosed = 0;
+
+	OSMMultipolygonBuilder(GeometryFactory geometryFactory) {
+		this.geometryFactory = geometryFactory;
+	}
+
+	void addOuter(LineString line) {
+		outerLines.add(line);
+	}
+
+	void addInner(LineString line) {
+		innerLines.add(line);
+	}
+
+	/**
+	 * @return the number of merged lines left out because they were not closed
+	 */
+	int getUnclosed() {
+		return unclosed;
+	}
+
+	/**
+	 * @return a Polygon, a MultiPolygon when there are several outer rings, or
+	 *         null if there is no outer ring
+	 */
+	Geometry build() {
+		List<LinearRing> outerRings = mergeRings(outerLines);
+		if (outerRings.isEmpty()) {
+			return null;
+		}
+		List<LinearRing> innerRings = mergeRings(innerLines);
+		// smallest first, so holes go into the innermost outer ring around them
+		final ArrayList<Polygon> shells = new ArrayList<Polygon>();
+		for (LinearRing ring : outerRings) {
+			shells.add(geometryFactory.createPolygon(ring, null));
+		}
+		Collections.sort(shells, new Comparator<Polygon>() {
+			public int compare(Polygon a, Polygon b) {
+				return Double.compare(a.getArea(), b.getArea());
+			}
+		});
+		ArrayList<List<LinearRing>> holes = new ArrayList<List<LinearRing>>();
+		for (int i = 0; i < shells.size(); i++) {
+			holes.add(new ArrayList<LinearRing>());
+		}
+		for (LinearRing inner : innerRings) {
+			Point point = geometryFactory.createPolygon(inner, null).getInteriorPoint();
+			for (int i = 0; i < shells.size(); i++) {
+				if (shells.get(i).contains(point)) {
+					holes.get(i).add(inner);
+					break;
+				}
+			}
+		}
+		Polygon[] polygons = new Polygon[shells.size()];
+		for (int i = 0; i < polygons.length; i++) {
+			List<LinearRing> shellHoles = holes.get(i);
+			polygons[i] = geometryFactory.createPolygon((LinearRing) shells.get(i).getExteriorRing(),
+					shellHoles.toArray(new LinearRing[shellHoles.size()]));
+		}
+		if (polygons.length == 1) {
+			return polygons[0];
+		} else {
+			return geometryFactory.createMultiPolygon(polygons);
+		}
+	}
+
+	private List<LinearRing> mergeRings(List<LineString> lines) {
+		ArrayList<LinearRing> rings = new ArrayList<LinearRing>();
+		if (lines.isEmpty()) {
+			return rings;
+		}
+		LineMerger merger = new LineMerger();
+		for (LineString line : lines) {
+			merger.add(line);
+		}
+		for (Object merged : merger.getMergedLineStrings()) {
+			LineString line = (LineString) merged;
+			if (line.isClosed() && line.getNumPoints() >= 4) {
+				rings.add(geometryFactory.createLinearRing(line.getCoordinates()));
+			} else {
+				unclosed++;
+			}
+		}
+		return rings;
+	}
+}
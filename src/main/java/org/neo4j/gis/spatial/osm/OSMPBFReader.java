@@ -0,0 +1,830 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.neo4j.gis.spatial.osm.OSMImporter.OSMRecord;
+import org.neo4j.gis.spatial.osm.OSMImporter.OSMRecordSink;
+import org.neo4j.gis.spatial.osm.OSMImporter.OSMRecordSource;
+
+/**
+ * Reads the OSM PBF format, producing the same records as the OSM XML. The
+ * file is a sequence of blobs, each a zlib compressed protocol buffer message
+ * holding a block of nodes, ways or relations. Blobs are read in order on the
+ * calling thread, but decompressed and decoded on a pool of threads, and the
+ * decoded blocks are handed to the sink in file order again.
+ * 
+ * The protocol buffer wire format is decoded directly, so there is no
+ * dependency on the protobuf library or generated classes.
+ */
+class OSMPBFReader implements OSMRecordSource {
+	private static final int MAX_HEADER_SIZE = 64 * 1024;
+	private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+	private final DataInputStream input;
+	private final int threads;
+
+	OSMPBFReader(InputStream input) {
+		this(input, Runtime.getRuntime().availableProcessors());
+	}
+
+	OSMPBFReader(InputStream input, int threads) {
+		this.input = new DataInputStream(input);
+		this.threads = Math.max(1, threads);
+	}
+
+	public void read(OSMRecordSink sink) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "OSM PBF decoder");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			LinkedList<Future<List<OSMRecord>>> pending = new LinkedList<Future<List<OSMRecord>>>();
+			while (true) {
+				final Blob blob = readBlob();
+				if (blob == null) {
+					break;
+				}
+				if (blob.type.equals("OSMHeader")) {
+					// blocks before the header are unusual, but keep them in order
+					drain(pending, sink, 0);
+					for (OSMRecord record : decodeHeader(blob.getData())) {
+						sink.add(record);
+					}
+				} else if (blob.type.equals("OSMData")) {
+					pending.add(executor.submit(new Callable<List<OSMRecord>>() {
+						public List<OSMRecord> call() throws IOException {
+							return decodeBlock(blob.getData());
+						}
+					}));
+					drain(pending, sink, threads * 2);
+				}
+				// unknown blob types are to be skipped, as the format requires
+			}
+			drain(pending, sink, 0);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void drain(LinkedList<Future<List<OSMRecord>>> pending, OSMRecordSink sink, int keep)
+			throws IOException {
+		while (pending.size() > keep) {
+			List<OSMRecord> records;
+			try {
+				records = pending.removeFirst().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while decoding OSM PBF");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Error decoding OSM PBF: " + e.getCause());
+			}
+			for (OSMRecord record : records) {
+				sink.add(record);
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		input.close();
+	}
+
+	private static class Blob {
+		private String type;
+		private byte[] raw;
+		private int rawSize = -1;
+		private byte[] zlib;
+
+		private byte[] getData() throws IOException {
+			if (raw != null) {
+				return raw;
+			} else if (zlib != null && rawSize >= 0) {
+				Inflater inflater = new Inflater();
+				try {
+					inflater.setInput(zlib);
+					byte[] data = new byte[rawSize];
+					int length = inflater.inflate(data);
+					if (length != rawSize || !inflater.finished()) {
+						throw new IOException("Invalid OSM PBF blob: expected " + rawSize + " bytes, got " + length);
+					}
+					return data;
+				} catch (DataFormatException e) {
+					throw new IOException("Invalid OSM PBF blob: " + e.getMessage());
+				} finally {
+					inflater.end();
+				}
+			} else {
+				throw new IOException("Unsupported OSM PBF blob compression in " + type);
+			}
+		}
+	}
+
+	/**
+	 * Read the next BlobHeader and Blob, or return null at the end of the
+	 * file.
+	 */
+	private Blob readBlob() throws IOException {
+		int headerSize;
+		try {
+			headerSize = input.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+			throw new IOException("Invalid OSM PBF blob header size: " + headerSize);
+		}
+		Blob blob = new Blob();
+		int dataSize = -1;
+		WireReader header = new WireReader(readFully(headerSize));
+		while (header.next()) {
+			switch (header.field) {
+			case 1:
+				blob.type = header.readString();
+				break;
+			case 3:
+				dataSize = (int) header.readVarint();
+				break;
+			default:
+				header.skip();
+			}
+		}
+		if (blob.type == null || dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+			throw new IOException("Invalid OSM PBF blob header: " + blob.type + " of size " + dataSize);
+		}
+		WireReader data = new WireReader(readFully(dataSize));
+		while (data.next()) {
+			switch (data.field) {
+			case 1:
+				blob.raw = data.readBytes();
+				break;
+			case 2:
+				blob.rawSize = (int) data.readVarint();
+				break;
+			case 3:
+				blob.zlib = data.readBytes();
+				break;
+			default:
+				data.skip();
+			}
+		}
+		return blob;
+	}
+
+	private byte[] readFully(int size) throws IOException {
+		byte[] bytes = new byte[size];
+		input.readFully(bytes);
+		return bytes;
+	}
+
+	private static List<OSMRecord> decodeHeader(byte[] data) throws IOException {
+		ArrayList<OSMRecord> records = new ArrayList<OSMRecord>();
+		LinkedHashMap<String, Object> dataset = new LinkedHashMap<String, Object>();
+		dataset.put("version", "0.6");
+		LinkedHashMap<String, Object> bbox = null;
+		WireReader header = new WireReader(data);
+		while (header.next()) {
+			switch (header.field) {
+			case 1:
+				bbox = decodeBBox(header.readMessage());
+				break;
+			case 4:
+				String feature = header.readString();
+				if (!feature.equals("OsmSchema-V0.6") && !feature.equals("DenseNodes")) {
+					throw new IOException("Unsupported OSM PBF feature: " + feature);
+				}
+				break;
+			case 16:
+				dataset.put("generator", header.readString());
+				break;
+			default:
+				header.skip();
+			}
+		}
+		records.add(new OSMRecord(OSMRecord.DATASET, dataset));
+		if (bbox != null) {
+			records.add(new OSMRecord(OSMRecord.BBOX, bbox));
+		}
+		return records;
+	}
+
+	private static LinkedHashMap<String, Object> decodeBBox(WireReader box) throws IOException {
+		long left = 0, right = 0, top = 0, bottom = 0;
+		while (box.next()) {
+			switch (box.field) {
+			case 1:
+				left = box.readSInt();
+				break;
+			case 2:
+				right = box.readSInt();
+				break;
+			case 3:
+				top = box.readSInt();
+				break;
+			case 4:
+				bottom = box.readSInt();
+				break;
+			default:
+				box.skip();
+			}
+		}
+		LinkedHashMap<String, Object> bbox = new LinkedHashMap<String, Object>();
+		bbox.put("minlat", Double.toString(bottom / 1e9));
+		bbox.put("minlon", Double.toString(left / 1e9));
+		bbox.put("maxlat", Double.toString(top / 1e9));
+		bbox.put("maxlon", Double.toString(right / 1e9));
+		bbox.put("name", "bbox");
+		return bbox;
+	}
+
+	/**
+	 * Decoding state of one PrimitiveBlock, shared by its groups.
+	 */
+	private static class Block {
+		private String[] strings = new String[0];
+		private long granularity = 100;
+		private long dateGranularity = 1000;
+		private long latOffset = 0;
+		private long lonOffset = 0;
+
+		private double lat(long lat) {
+			return (latOffset + granularity * lat) / 1e9;
+		}
+
+		private double lon(long lon) {
+			return (lonOffset + granularity * lon) / 1e9;
+		}
+
+		private String string(long index) throws IOException {
+			if (index < 0 || index >= strings.length) {
+				throw new IOException("Invalid OSM PBF string index: " + index);
+			}
+			return strings[(int) index];
+		}
+	}
+
+	private static List<OSMRecord> decodeBlock(byte[] data) throws IOException {
+		Block block = new Block();
+		ArrayList<WireReader> groups = new ArrayList<WireReader>();
+		WireReader reader = new WireReader(data);
+		while (reader.next()) {
+			switch (reader.field) {
+			case 1:
+				block.strings = decodeStrings(reader.readMessage());
+				break;
+			case 2:
+				groups.add(reader.readMessage());
+				break;
+			case 17:
+				block.granularity = reader.readVarint();
+				break;
+			case 18:
+				block.dateGranularity = reader.readVarint();
+				break;
+			case 19:
+				block.latOffset = reader.readVarint();
+				break;
+			case 20:
+				block.lonOffset = reader.readVarint();
+				break;
+			default:
+				reader.skip();
+			}
+		}
+		ArrayList<OSMRecord> records = new ArrayList<OSMRecord>();
+		for (WireReader group : groups) {
+			while (group.next()) {
+				switch (group.field) {
+				case 1:
+					records.add(decodeNode(block, group.readMessage()));
+					break;
+				case 2:
+					decodeDenseNodes(block, group.readMessage(), records);
+					break;
+				case 3:
+					records.add(decodeWay(block, group.readMessage()));
+					break;
+				case 4:
+					records.add(decodeRelation(block, group.readMessage()));
+					break;
+				default:
+					group.skip();
+				}
+			}
+		}
+		return records;
+	}
+
+	private static String[] decodeStrings(WireReader table) throws IOException {
+		ArrayList<String> strings = new ArrayList<String>();
+		while (table.next()) {
+			if (table.field == 1) {
+				strings.add(table.readString());
+			} else {
+				table.skip();
+			}
+		}
+		return strings.toArray(new String[strings.size()]);
+	}
+
+	private static OSMRecord decodeNode(Block block, WireReader node) throws IOException {
+		long id = 0, lat = 0, lon = 0;
+		LongArray keys = new LongArray();
+		LongArray vals = new LongArray();
+		WireReader info = null;
+		while (node.next()) {
+			switch (node.field) {
+			case 1:
+				id = node.readSInt();
+				break;
+			case 2:
+				node.readPacked(keys, false);
+				break;
+			case 3:
+				node.readPacked(vals, false);
+				break;
+			case 4:
+				info = node.readMessage();
+				break;
+			case 8:
+				lat = node.readSInt();
+				break;
+			case 9:
+				lon = node.readSInt();
+				break;
+			default:
+				node.skip();
+			}
+		}
+		LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+		properties.put("node_osm_id", Long.toString(id));
+		properties.put("lat", block.lat(lat));
+		properties.put("lon", block.lon(lon));
+		decodeInfo(block, info, properties);
+		OSMRecord record = new OSMRecord(OSMRecord.NODE, properties);
+		addTags(block, keys, vals, record);
+		return record;
+	}
+
+	private static void decodeDenseNodes(Block block, WireReader dense, List<OSMRecord> records)
+			throws IOException {
+		LongArray ids = new LongArray();
+		LongArray lats = new LongArray();
+		LongArray lons = new LongArray();
+		LongArray keysVals = new LongArray();
+		LongArray versions = new LongArray();
+		LongArray timestamps = new LongArray();
+		LongArray changesets = new LongArray();
+		LongArray uids = new LongArray();
+		LongArray userSids = new LongArray();
+		LongArray visibles = new LongArray();
+		while (dense.next()) {
+			switch (dense.field) {
+			case 1:
+				dense.readPacked(ids, true);
+				break;
+			case 5:
+				WireReader info = dense.readMessage();
+				while (info.next()) {
+					switch (info.field) {
+					case 1:
+						info.readPacked(versions, false);
+						break;
+					case 2:
+						info.readPacked(timestamps, true);
+						break;
+					case 3:
+						info.readPacked(changesets, true);
+						break;
+					case 4:
+						info.readPacked(uids, true);
+						break;
+					case 5:
+						info.readPacked(userSids, true);
+						break;
+					case 6:
+						info.readPacked(visibles, false);
+						break;
+					default:
+						info.skip();
+					}
+				}
+				break;
+			case 8:
+				dense.readPacked(lats, true);
+				break;
+			case 9:
+				dense.readPacked(lons, true);
+				break;
+			case 10:
+				dense.readPacked(keysVals, false);
+				break;
+			default:
+				dense.skip();
+			}
+		}
+		int count = ids.size;
+		if (lats.size != count || lons.size != count) {
+			throw new IOException("Invalid OSM PBF dense nodes: " + count + " ids with " + lats.size + " lats and "
+					+ lons.size + " lons");
+		}
+		boolean hasInfo = versions.size == count;
+		long id = 0, lat = 0, lon = 0, timestamp = 0, changeset = 0, uid = 0, userSid = 0;
+		int keyVal = 0;
+		for (int i = 0; i < count; i++) {
+			id += ids.values[i];
+			lat += lats.values[i];
+			lon += lons.values[i];
+			LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+			properties.put("node_osm_id", Long.toString(id));
+			properties.put("lat", block.lat(lat));
+			properties.put("lon", block.lon(lon));
+			if (hasInfo) {
+				timestamp += timestamps.size > i ? timestamps.values[i] : 0;
+				changeset += changesets.size > i ? changesets.values[i] : 0;
+				uid += uids.size > i ? uids.values[i] : 0;
+				userSid += userSids.size > i ? userSids.values[i] : 0;
+				boolean visible = visibles.size <= i || visibles.values[i] != 0;
+				putInfo(block, properties, versions.values[i], timestamp, changeset, uid, userSid, visible);
+			} else {
+				properties.put("changeset", "0");
+			}
+			OSMRecord record = new OSMRecord(OSMRecord.NODE, properties);
+			while (keyVal < keysVals.size && keysVals.values[keyVal] != 0) {
+				if (keyVal + 1 >= keysVals.size) {
+					throw new IOException("Invalid OSM PBF dense node tags for node " + id);
+				}
+				record.tags.put(block.string(keysVals.values[keyVal]), block.string(keysVals.values[keyVal + 1]));
+				keyVal += 2;
+			}
+			// skip the 0 delimiting the tags of this node
+			keyVal++;
+			records.add(record);
+		}
+	}
+
+	private static OSMRecord decodeWay(Block block, WireReader way) throws IOException {
+		long id = 0;
+		LongArray keys = new LongArray();
+		LongArray vals = new LongArray();
+		LongArray refs = new LongArray();
+		WireReader info = null;
+		while (way.next()) {
+			switch (way.field) {
+			case 1:
+				id = way.readVarint();
+				break;
+			case 2:
+				way.readPacked(keys, false);
+				break;
+			case 3:
+				way.readPacked(vals, false);
+				break;
+			case 4:
+				info = way.readMessage();
+				break;
+			case 8:
+				way.readPacked(refs, true);
+				break;
+			default:
+				way.skip();
+			}
+		}
+		LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+		properties.put("way_osm_id", Long.toString(id));
+		decodeInfo(block, info, properties);
+		OSMRecord record = new OSMRecord(OSMRecord.WAY, properties);
+		long[] wayNodes = new long[refs.size];
+		long ref = 0;
+		for (int i = 0; i < refs.size; i++) {
+			ref += refs.values[i];
+			wayNodes[i] = ref;
+		}
+		record.wayNodes = wayNodes;
+		addTags(block, keys, vals, record);
+		return record;
+	}
+
+	private static final String[] MEMBER_TYPES = new String[] { "node", "way", "relation" };
+
+	private static OSMRecord decodeRelation(Block block, WireReader relation) throws IOException {
+		long id = 0;
+		LongArray keys = new LongArray();
+		LongArray vals = new LongArray();
+		LongArray roles = new LongArray();
+		LongArray memids = new LongArray();
+		LongArray types = new LongArray();
+		WireReader info = null;
+		while (relation.next()) {
+			switch (relation.field) {
+			case 1:
+				id = relation.readVarint();
+				break;
+			case 2:
+				relation.readPacked(keys, false);
+				break;
+			case 3:
+				relation.readPacked(vals, false);
+				break;
+			case 4:
+				info = relation.readMessage();
+				break;
+			case 8:
+				relation.readPacked(roles, false);
+				break;
+			case 9:
+				relation.readPacked(memids, true);
+				break;
+			case 10:
+				relation.readPacked(types, false);
+				break;
+			default:
+				relation.skip();
+			}
+		}
+		if (roles.size != memids.size || types.size != memids.size) {
+			throw new IOException("Invalid OSM PBF members for relation " + id);
+		}
+		LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+		properties.put("relation_osm_id", Long.toString(id));
+		decodeInfo(block, info, properties);
+		OSMRecord record = new OSMRecord(OSMRecord.RELATION, properties);
+		record.members = new ArrayList<Map<String, Object>>(memids.size);
+		long memid = 0;
+		for (int i = 0; i < memids.size; i++) {
+			memid += memids.values[i];
+			long type = types.values[i];
+			if (type < 0 || type >= MEMBER_TYPES.length) {
+				throw new IOException("Invalid OSM PBF member type " + type + " in relation " + id);
+			}
+			LinkedHashMap<String, Object> member = new LinkedHashMap<String, Object>();
+			member.put("type", MEMBER_TYPES[(int) type]);
+			member.put("ref", Long.toString(memid));
+			member.put("role", block.string(roles.values[i]));
+			record.members.add(member);
+		}
+		addTags(block, keys, vals, record);
+		return record;
+	}
+
+	private static void decodeInfo(Block block, WireReader info, Map<String, Object> properties) throws IOException {
+		if (info == null) {
+			properties.put("changeset", "0");
+			return;
+		}
+		long version = 0, timestamp = 0, changeset = 0, uid = 0, userSid = 0;
+		boolean visible = true;
+		while (info.next()) {
+			switch (info.field) {
+			case 1:
+				version = info.readVarint();
+				break;
+			case 2:
+				timestamp = info.readVarint();
+				break;
+			case 3:
+				changeset = info.readVarint();
+				break;
+			case 4:
+				uid = info.readVarint();
+				break;
+			case 5:
+				userSid = info.readVarint();
+				break;
+			case 6:
+				visible = info.readVarint() != 0;
+				break;
+			default:
+				info.skip();
+			}
+		}
+		putInfo(block, properties, version, timestamp, changeset, uid, userSid, visible);
+	}
+
+	/**
+	 * Add the metadata in the form of the XML attributes, where a missing
+	 * user is string 0, the empty string.
+	 */
+	private static void putInfo(Block block, Map<String, Object> properties, long version, long timestamp,
+			long changeset, long uid, long userSid, boolean visible) throws IOException {
+		String user = block.string(userSid);
+		if (user.length() > 0) {
+			properties.put("user", user);
+			properties.put("uid", Long.toString(uid));
+		}
+		if (!visible) {
+			properties.put("visible", false);
+		}
+		properties.put("version", Long.toString(version));
+		properties.put("changeset", Long.toString(changeset));
+		if (timestamp != 0) {
+			properties.put("timestamp", timestamp * block.dateGranularity);
+		}
+	}
+
+	private static void addTags(Block block, LongArray keys, LongArray vals, OSMRecord record) throws IOException {
+		if (keys.size != vals.size) {
+			throw new IOException("Invalid OSM PBF tags: " + keys.size + " keys with " + vals.size + " values");
+		}
+		for (int i = 0; i < keys.size; i++) {
+			record.tags.put(block.string(keys.values[i]), block.string(vals.values[i]));
+		}
+	}
+
+	private static class LongArray {
+		private long[] values = new long[16];
+		private int size = 0;
+
+		private void add(long value) {
+			if (size == values.length) {
+				long[] grown = new long[size * 2];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size++] = value;
+		}
+	}
+
+	/**
+	 * Reads the fields of one protocol buffer message. Call next() to move to
+	 * the next field, and then one of the read methods or skip() to consume
+	 * its value.
+	 */
+	private static class WireReader {
+		private final byte[] buffer;
+		private int position;
+		private final int limit;
+		private int field;
+		private int wireType;
+
+		private WireReader(byte[] buffer) {
+			this(buffer, 0, buffer.length);
+		}
+
+		private WireReader(byte[] buffer, int offset, int limit) {
+			this.buffer = buffer;
+			this.position = offset;
+			this.limit = limit;
+		}
+
+		private boolean next() throws IOException {
+			if (position >= limit) {
+				return false;
+			}
+			long key = readRawVarint();
+			field = (int) (key >>> 3);
+			wireType = (int) (key & 7);
+			return true;
+		}
+
+		private long readRawVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (position >= limit) {
+					throw new IOException("Truncated OSM PBF message");
+				}
+				byte b = buffer[position++];
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Invalid varint in OSM PBF message");
+		}
+
+		private static long decodeZigZag(long value) {
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private void expect(int type) throws IOException {
+			if (wireType != type) {
+				throw new IOException("Unexpected wire type " + wireType + " for field " + field + " in OSM PBF");
+			}
+		}
+
+		private long readVarint() throws IOException {
+			expect(0);
+			return readRawVarint();
+		}
+
+		private long readSInt() throws IOException {
+			return decodeZigZag(readVarint());
+		}
+
+		private int readLength() throws IOException {
+			expect(2);
+			long length = readRawVarint();
+			if (length < 0 || length > limit - position) {
+				throw new IOException("Truncated OSM PBF message");
+			}
+			return (int) length;
+		}
+
+		private WireReader readMessage() throws IOException {
+			int length = readLength();
+			WireReader message = new WireReader(buffer, position, position + length);
+			position += length;
+			return message;
+		}
+
+		private byte[] readBytes() throws IOException {
+			int length = readLength();
+			byte[] bytes = new byte[length];
+			System.arraycopy(buffer, position, bytes, 0, length);
+			position += length;
+			return bytes;
+		}
+
+		private String readString() throws IOException {
+			int length = readLength();
+			try {
+				return new String(buffer, position, length, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IOException(e.getMessage());
+			} finally {
+				position += length;
+			}
+		}
+
+		/**
+		 * Read a repeated integer field, packed or not, decoding zig-zag for
+		 * signed types.
+		 */
+		private void readPacked(LongArray values, boolean signed) throws IOException {
+			if (wireType == 0) {
+				long value = readRawVarint();
+				values.add(signed ? decodeZigZag(value) : value);
+			} else {
+				int length = readLength();
+				WireReader packed = new WireReader(buffer, position, position + length);
+				while (packed.position < packed.limit) {
+					long value = packed.readRawVarint();
+					values.add(signed ? decodeZigZag(value) : value);
+				}
+				position += length;
+			}
+		}
+
+		private void skip() throws IOException {
+			switch (wireType) {
+			case 0:
+				readRawVarint();
+				break;
+			case 1:
+				position += 8;
+				break;
+			case 2:
+				position += readLength();
+				break;
+			case 5:
+				position += 4;
+				break;
+			default:
+				throw new IOException("Unsupported wire type " + wireType + " in OSM PBF");
+			}
+			if (position > limit) {
+				throw new IOException("Truncated OSM PBF message");
+			}
+		}
+	}
+}
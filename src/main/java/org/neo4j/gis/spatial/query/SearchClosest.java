@@ -27,6 +27,11 @@ import com.vividsolutions.jts.geom.Geometry;
 
 
 /**
+ * Find the geometries closest to the given geometry, optionally only inside a
+ * search window. Index nodes and geometries farther away than the closest
+ * geometry found so far are skipped. For the k nearest geometries, in
+ * distance order, use {@link org.neo4j.gis.spatial.RTreeIndex#searchNearest}.
+ * 
  * @author Davide Savazzi
  */
 public class SearchClosest extends AbstractSearch {
@@ -37,16 +42,19 @@ public class SearchClosest extends AbstractSearch {
 	
 	public SearchClosest(Geometry other, Envelope searchWindow) {
 		this.other = other;
+		this.otherEnvelope = other.getEnvelopeInternal();
 		this.searchWindow = searchWindow;
 	}
 
 	public boolean needsToVisit(Envelope indexNodeEnvelope) {
-		return searchWindow == null || indexNodeEnvelope.intersects(searchWindow);
+		return (searchWindow == null || indexNodeEnvelope.intersects(searchWindow))
+				&& indexNodeEnvelope.distance(otherEnvelope) <= minDistance;
 	}
 	
 	public final void onIndexReference(Node geomNode) {	
 		Envelope geomEnvelope = getEnvelope(geomNode);
-		if (searchWindow == null || geomEnvelope.intersects(searchWindow)) {
+		if ((searchWindow == null || geomEnvelope.intersects(searchWindow))
+				&& geomEnvelope.distance(otherEnvelope) <= minDistance) {
 			onEnvelopeIntersection(geomNode, geomEnvelope);
 		}
 	}
@@ -64,6 +72,7 @@ public class SearchClosest extends AbstractSearch {
 	}
 	
 	protected Geometry other;
+	protected Envelope otherEnvelope;
 	protected Envelope searchWindow;
 	protected double minDistance = Double.MAX_VALUE;
 }
\ No newline at end of file
@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.query;
 
 import org.neo4j.gis.spatial.AbstractSearch;
+import org.neo4j.gis.spatial.OrthodromicDistance;
 import org.neo4j.graphdb.Node;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -39,38 +40,31 @@ public class SearchPointsWithinOrthodromicDistance extends AbstractSearch {
 		this.reference = reference;
 		this.maxDistanceInKm = maxDistanceInKm;
 		this.saveDistanceOnGeometry = saveDistanceOnGeometry;
-
-		double lat = reference.y;
-		double lon = reference.x;
-
-		// first-cut bounding box (in degrees)
-		double maxLat = lat + Math.toDegrees(maxDistanceInKm / earthRadiusInKm);
-		double minLat = lat - Math.toDegrees(maxDistanceInKm / earthRadiusInKm);
-		// compensate for degrees longitude getting smaller with increasing
-		// latitude
-		double maxLon = lon + Math.toDegrees(maxDistanceInKm / earthRadiusInKm / Math.cos(Math.toRadians(lat)));
-		double minLon = lon - Math.toDegrees(maxDistanceInKm / earthRadiusInKm / Math.cos(Math.toRadians(lat)));
-		this.bbox = new Envelope(minLon, maxLon, minLat, maxLat);
+		this.distance = new OrthodromicDistance(reference);
 	}
 
 	public SearchPointsWithinOrthodromicDistance(Coordinate reference, Envelope bbox, boolean saveDistanceOnGeometry) {
 		this.reference = reference;
-		this.bbox = bbox;
 		this.maxDistanceInKm = calculateDistance(bbox.centre(), new Coordinate(bbox.getMinX(),
 				(bbox.getMinY() + bbox.getMaxY()) / 2));
 		this.saveDistanceOnGeometry = saveDistanceOnGeometry;
+		this.distance = new OrthodromicDistance(reference);
 	}
 
+	/**
+	 * Visit only the index nodes which come within the distance on the
+	 * sphere, which unlike a bounding box in degrees stays correct at high
+	 * latitudes, around the poles and across the antimeridian.
+	 */
 	public boolean needsToVisit(Envelope indexNodeEnvelope) {
-		return indexNodeEnvelope.intersects(bbox);
+		return distance.getMinDistance(new double[] { indexNodeEnvelope.getMinX(), indexNodeEnvelope.getMinY(),
+				indexNodeEnvelope.getMaxX(), indexNodeEnvelope.getMaxY() }) <= maxDistanceInKm;
 	}
 
 	public void onIndexReference(Node geomNode) {
 		Geometry geometry = decode(geomNode);
 		Coordinate point = geometry.getCoordinate();
 
-		// d = acos(sin(lat1) * sin(lat2) + cos(lat1) * cos(lat2) * cos(lon2 -
-		// lon1)) * R
 		double distanceInKm = calculateDistance(reference, point);
 
 		if (distanceInKm < maxDistanceInKm) {
@@ -82,18 +76,15 @@ public class SearchPointsWithinOrthodromicDistance extends AbstractSearch {
 		}
 	}
 
+	/**
+	 * @see OrthodromicDistance#calculateDistance(Coordinate, Coordinate)
+	 */
 	public static double calculateDistance(Coordinate reference, Coordinate point) {
-		double distanceInKm = Math.acos(Math.sin(Math.toRadians(reference.y)) * Math.sin(Math.toRadians(point.y))
-				+ Math.cos(Math.toRadians(reference.y)) * Math.cos(Math.toRadians(point.y))
-				* Math.cos(Math.toRadians(point.x) - Math.toRadians(reference.x)))
-				* earthRadiusInKm;
-		return distanceInKm;
+		return OrthodromicDistance.calculateDistance(reference, point);
 	}
 
 	private Coordinate reference;
 	private double maxDistanceInKm;
-	private Envelope bbox;
+	private OrthodromicDistance distance;
 	private boolean saveDistanceOnGeometry;
-
-	private static final double earthRadiusInKm = 6371;
 }
\ No newline at end of file
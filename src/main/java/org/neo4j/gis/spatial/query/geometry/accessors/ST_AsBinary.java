@@ -21,6 +21,7 @@ package org.neo4j.gis.spatial.query.geometry.accessors;
 
 import java.util.List;
 
+import org.neo4j.gis.spatial.GeometryCodecs;
 import org.neo4j.gis.spatial.Layer;
 import org.neo4j.gis.spatial.SpatialDatabaseRecord;
 import org.neo4j.gis.spatial.SpatialDatabaseRecordImpl;
@@ -30,7 +31,6 @@ import org.neo4j.gis.spatial.operation.SpatialQuery;
 import org.neo4j.graphdb.Node;
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.io.ByteOrderValues;
 import com.vividsolutions.jts.io.WKBWriter;
 
 /**
@@ -59,8 +59,7 @@ public class ST_AsBinary extends AbstractReadOperation {
 	public SpatialDatabaseRecord onIndexReference(OperationType type,
 			Node node, Layer layer, List<SpatialDatabaseRecord> records) {
 		Geometry geometry = decodeGeometry(node);
-		WKBWriter wkbWriter = new WKBWriter(2, ByteOrderValues.LITTLE_ENDIAN);
-		byte[] wkb = wkbWriter.write(geometry);
+		byte[] wkb = GeometryCodecs.writeLittleEndianWKB(geometry);
 		String hex = WKBWriter.toHex(wkb);
 
 		SpatialDatabaseRecord record = new SpatialDatabaseRecordImpl(layer,
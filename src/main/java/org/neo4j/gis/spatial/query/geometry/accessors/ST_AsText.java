@@ -21,6 +21,7 @@ package org.neo4j.gis.spatial.query.geometry.accessors;
 
 import java.util.List;
 
+import org.neo4j.gis.spatial.GeometryCodecs;
 import org.neo4j.gis.spatial.Layer;
 import org.neo4j.gis.spatial.SpatialDatabaseRecord;
 import org.neo4j.gis.spatial.SpatialDatabaseRecordImpl;
@@ -30,7 +31,6 @@ import org.neo4j.gis.spatial.operation.SpatialQuery;
 import org.neo4j.graphdb.Node;
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.io.WKTWriter;
 
 /**
  * <p>The <code>ST_AsBinary</code> class returns the geometry as Well-Known Text (WKT).</p>
@@ -49,8 +49,7 @@ public class ST_AsText extends AbstractReadOperation {
 	public SpatialDatabaseRecord onIndexReference(OperationType type, Node node,
 			Layer layer, List<SpatialDatabaseRecord> records) {
 		Geometry geometry = this.decodeGeometry(node);
-		WKTWriter wktWriter = new WKTWriter();
-		String wkt = wktWriter.write(geometry);
+		String wkt = GeometryCodecs.writeWKT(geometry);
 	
 		SpatialDatabaseRecord record = new SpatialDatabaseRecordImpl(layer, node);
 		record.setResult(wkt);
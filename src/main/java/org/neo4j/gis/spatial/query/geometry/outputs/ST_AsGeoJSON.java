@@ -40,16 +40,22 @@ import com.vividsolutions.jts.geom.Geometry;
  */
 public class ST_AsGeoJSON extends AbstractReadOperation {
 
+	// GeometryJSON is not thread safe, so each thread reuses its own
+	private static final ThreadLocal<GeometryJSON> geometryJSON = new ThreadLocal<GeometryJSON>() {
+		@Override
+		protected GeometryJSON initialValue() {
+			return new GeometryJSON();
+		}
+	};
+
 	/**
 	 * @see SpatialTypeOperation#onIndexReference(OperationType, Node, Layer,
 	 *      List)
 	 */
 	public SpatialDatabaseRecord onIndexReference(OperationType type,
 			Node node, Layer layer, List<SpatialDatabaseRecord> records) {
-		GeometryJSON gjson = new GeometryJSON();
-
 		Geometry geom = decodeGeometry(node);
-		String geojson = gjson.toString(geom);
+		String geojson = geometryJSON.get().toString(geom);
 
 		SpatialDatabaseRecord record = new SpatialDatabaseRecordImpl(layer,
 				node);
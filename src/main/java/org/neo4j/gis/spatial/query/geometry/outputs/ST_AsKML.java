@@ -44,6 +44,32 @@ import com.vividsolutions.jts.geom.Geometry;
  */
 public class ST_AsKML extends AbstractReadOperation {
 
+	/**
+	 * The KML encoder is expensive to configure, so each thread reuses one,
+	 * together with its output buffer.
+	 */
+	private static class KMLEncoder {
+		private final Encoder encoder = new Encoder(new KMLConfiguration());
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		private KMLEncoder() {
+			encoder.setIndenting(true);
+		}
+
+		private String encode(Geometry geometry) throws IOException {
+			out.reset();
+			encoder.encode(geometry, KML.Geometry, out);
+			return out.toString();
+		}
+	}
+
+	private static final ThreadLocal<KMLEncoder> kmlEncoder = new ThreadLocal<KMLEncoder>() {
+		@Override
+		protected KMLEncoder initialValue() {
+			return new KMLEncoder();
+		}
+	};
+
 	/**
 	 * @see SpatialQuery#onIndexReference(OperationType, Node, Layer,
 	 *      List)
@@ -56,11 +82,7 @@ public class ST_AsKML extends AbstractReadOperation {
 		SpatialDatabaseRecord record = new SpatialDatabaseRecordImpl(
 				layer, node);
 		try {
-			Encoder encoder = new Encoder(new KMLConfiguration());
-			encoder.setIndenting(true);
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			encoder.encode(geom, KML.Geometry, out);
-			String kml = new String(out.toByteArray());
+			String kml = kmlEncoder.get().encode(geom);
 			record.setResult(kml);
 			records.add(record);
 		} catch (IOException e) {
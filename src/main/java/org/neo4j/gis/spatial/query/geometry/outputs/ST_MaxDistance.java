@@ -61,7 +61,7 @@ public class ST_MaxDistance extends AbstractReadOperation {
 	 * @see SpatialQuery#onIndexReference(OperationType, Node, Layer,
 	 *      List)
 	 */
-	public SpatialDatabaseRecord onIndexReference(OperationType type,
+	public synchronized SpatialDatabaseRecord onIndexReference(OperationType type,
 			Node node, Layer layer, List<SpatialDatabaseRecord> records) {
 		clear();
 
@@ -79,7 +79,7 @@ public class ST_MaxDistanceInMeter extends ST_MaxDistance {
 	 * @see SpatialQuery#onIndexReference(OperationType, Node, Layer,
 	 *      List)
 	 */
-	public SpatialDatabaseRecord onIndexReference(OperationType type,
+	public synchronized SpatialDatabaseRecord onIndexReference(OperationType type,
 			Node node, Layer layer, List<SpatialDatabaseRecord> records) {
 		super.clear();
 		
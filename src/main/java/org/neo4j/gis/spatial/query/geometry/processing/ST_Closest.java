@@ -36,7 +36,10 @@ import com.vividsolutions.jts.geom.Geometry;
  * <p>
  * <code>ST_Closest</code> class returns the closest {@link Geometry} to the
  * given geometry. If another geometry has the same distance as the closest
- * Geometry then both will be returned.
+ * Geometry then both will be returned. Index nodes farther away than the
+ * closest geometry found so far are not visited. For the k nearest
+ * geometries, in distance order, use
+ * {@link org.neo4j.gis.spatial.RTreeIndex#searchNearest}.
  * </p>
  * 
  * @author Davide Savazzi, Andreas Wilhelm
@@ -45,10 +48,13 @@ public class ST_Closest extends AbstractReadOperation {
 
 	// The geometry to determine which one is close to this.
 	private Geometry other;
-	// The max extent of the geometry to determine which one is close to this.
+	// The envelope of the other geometry.
+	private Envelope otherEnvelope;
+	// The max extent of the geometry to determine which one is close to this,
+	// null to search the whole layer.
 	private Envelope envelope;
 	// Contains the tmp. min. distance of the current closest Geometry.
-	private double minDistance = Double.MAX_VALUE;
+	private volatile double minDistance = Double.MAX_VALUE;
 
 	/**
 	 * Construct a {@link Geometry} to find the close geometry node.
@@ -66,27 +72,35 @@ public class ST_Closest extends AbstractReadOperation {
 	 * @param other
 	 *            the geometry to use for finding the closest geometry to it.
 	 * @param envelope
-	 *            the max extent of the other geometry.
+	 *            the max extent of the other geometry, or null to search the
+	 *            whole layer.
 	 */
 	public ST_Closest(Geometry other, Envelope envelope) {
 		this.other = other;
-		if (envelope == null) {
-			this.envelope = other.getEnvelopeInternal();
-		} else {
-			this.envelope = envelope;
-		}
+		this.otherEnvelope = other.getEnvelopeInternal();
+		this.envelope = envelope;
+		setSearchEnvelope(this.envelope);
+	}
 
+	/**
+	 * Skip index nodes farther away than the closest geometry found so far.
+	 */
+	public boolean needsToVisit(Envelope indexNodeEnvelope) {
+		return super.needsToVisit(indexNodeEnvelope)
+				&& (indexNodeEnvelope == null || indexNodeEnvelope
+						.distance(otherEnvelope) <= minDistance);
 	}
 
 	/**
 	 * @see SpatialQuery#onIndexReference(OperationType, Node, Layer,
 	 *      List)
 	 */
-	public SpatialDatabaseRecord onIndexReference(OperationType type,
+	public synchronized SpatialDatabaseRecord onIndexReference(OperationType type,
 			Node node, Layer layer, List<SpatialDatabaseRecord> records) {
 		Envelope geomEnvelope = getEnvelope(node);
 		SpatialDatabaseRecord record = null;
-		if (geomEnvelope.intersects(this.envelope)) {
+		if ((envelope == null || geomEnvelope.intersects(envelope))
+				&& geomEnvelope.distance(otherEnvelope) <= minDistance) {
 			Geometry geometry = decodeGeometry(node);
 			double distance = geometry.distance(other);
 			if (distance < minDistance) {
@@ -50,7 +50,7 @@ public class ST_Collect extends AbstractFullOperation {
 	 * @see SpatialQuery#onIndexReference(OperationType, Node, Layer,
 	 *      List)
 	 */
-	public SpatialDatabaseRecord onIndexReference(OperationType type,
+	public synchronized SpatialDatabaseRecord onIndexReference(OperationType type,
 			Node node, Layer layer, List<SpatialDatabaseRecord> records) {
 
 		Geometry geometry = decodeGeometry(node);
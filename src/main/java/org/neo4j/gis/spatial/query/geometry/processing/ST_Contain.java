@@ -50,6 +50,7 @@ public class ST_Contain extends AbstractReadOperation {
 	 */
 	public ST_Contain(Geometry other) {
 		this.other = other;
+		setSearchEnvelope(other.getEnvelopeInternal());
 	}
 
 	/**
@@ -43,6 +43,7 @@ public class ST_Cover extends AbstractReadOperation {
 
 	public ST_Cover(Geometry other) {
 		this.other = other;
+		setSearchEnvelope(other.getEnvelopeInternal());
 	}
 
 	/**
@@ -45,6 +45,7 @@ public class ST_CoveredBy extends AbstractReadOperation {
 
 	public ST_CoveredBy(Geometry other) {
 		this.other = other;
+		setSearchEnvelope(other.getEnvelopeInternal());
 	}
 
 	/**
@@ -45,6 +45,7 @@ public class ST_Cross extends AbstractReadOperation {
 
 	public ST_Cross(Geometry other) {
 		this.other = other;
+		setSearchEnvelope(other.getEnvelopeInternal());
 	}
 
 	/**
@@ -43,6 +43,7 @@ public class ST_Equal extends AbstractReadOperation {
 
 	public ST_Equal(Geometry other) {
 		this.other = other;
+		setSearchEnvelope(other.getEnvelopeInternal());
 	}
 
 	/**
@@ -43,6 +43,7 @@ public class ST_Intersect extends AbstractReadOperation {
 
 	public ST_Intersect(Geometry other) {
 		this.other = other;
+		setSearchEnvelope(other.getEnvelopeInternal());
 	}
 
 	/**
@@ -41,10 +41,10 @@ import com.vividsolutions.jts.geom.Geometry;
 public class ST_IntersectWindow extends AbstractReadOperation {
 
 	private Envelope envelope;
-	private Geometry windowGeom;
 
 	public ST_IntersectWindow(Envelope envelope) {
 		this.envelope = envelope;
+		setSearchEnvelope(envelope);
 	}
 
 	/**
@@ -54,8 +54,6 @@ public class ST_IntersectWindow extends AbstractReadOperation {
 	public SpatialDatabaseRecord onIndexReference(OperationType type,
 			Node node, Layer layer, List<SpatialDatabaseRecord> records) {
 		SpatialDatabaseRecord record = null;
-		//TODO: create the geom just one time...
-		this.windowGeom = layer.getGeometryFactory().toGeometry(envelope);
 		Envelope geomEnvelope = getEnvelope(node);
 		
 		if (envelope.covers(geomEnvelope)) {
@@ -64,6 +62,7 @@ public class ST_IntersectWindow extends AbstractReadOperation {
 			records.add(record);
 		} else if (envelope.intersects(geomEnvelope)) {
 			Geometry geometry = decodeGeometry(node);
+			Geometry windowGeom = layer.getGeometryFactory().toGeometry(envelope);
 			if (geometry.intersects(windowGeom)) {
 				record = new SpatialDatabaseRecordImpl(layer, node);
 				record.setResult(geomEnvelope);
@@ -64,7 +64,7 @@ public class ST_LongestLine extends ST_MaxDistance {
 	 * @see SpatialQuery#onIndexReference(OperationType, Node, Layer,
 	 *      List)
 	 */
-	public SpatialDatabaseRecord onIndexReference(OperationType type,
+	public synchronized SpatialDatabaseRecord onIndexReference(OperationType type,
 			Node node, Layer layer, List<SpatialDatabaseRecord> records) {
 		super.clear();
 
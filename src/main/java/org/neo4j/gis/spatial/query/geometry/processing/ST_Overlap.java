@@ -45,6 +45,7 @@ public class ST_Overlap extends AbstractReadOperation {
 
 	public ST_Overlap(Geometry other) {
 		this.other = other;
+		setSearchEnvelope(other.getEnvelopeInternal());
 	}
 
 	/**
@@ -22,6 +22,7 @@ package org.neo4j.gis.spatial.query.geometry.processing;
 import java.util.List;
 
 import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.OrthodromicDistance;
 import org.neo4j.gis.spatial.SpatialDatabaseRecord;
 import org.neo4j.gis.spatial.SpatialDatabaseRecordImpl;
 import org.neo4j.gis.spatial.operation.AbstractReadOperation;
@@ -41,43 +42,42 @@ import com.vividsolutions.jts.geom.Geometry;
  * @author Davide Savazzi
  */
 public class ST_PointsWithinOrthodromicDistance extends AbstractReadOperation {
-	//TODO some srid has different earthRadiusInKm
-	private static final double earthRadiusInKm = 6371;
-	
 	private Coordinate reference;
 	private double maxDistanceInKm;
-	private Envelope bbox;
+	private OrthodromicDistance distance;
 
 	public ST_PointsWithinOrthodromicDistance(Coordinate reference, double maxDistanceInKm) {
 		this.reference = reference;
 		this.maxDistanceInKm = maxDistanceInKm;
-
-		double lat = reference.y;
-		double lon = reference.x;
-
-		// first-cut bounding box (in degrees)
-		double maxLat = lat + Math.toDegrees(maxDistanceInKm / earthRadiusInKm);
-		double minLat = lat - Math.toDegrees(maxDistanceInKm / earthRadiusInKm);
-		// compensate for degrees longitude getting smaller with increasing
-		// latitude
-		double maxLon = lon + Math.toDegrees(maxDistanceInKm / earthRadiusInKm / Math.cos(Math.toRadians(lat)));
-		double minLon = lon - Math.toDegrees(maxDistanceInKm / earthRadiusInKm / Math.cos(Math.toRadians(lat)));
-		this.bbox = new Envelope(minLon, maxLon, minLat, maxLat);
+		this.distance = new OrthodromicDistance(reference);
 	}
 
 	public ST_PointsWithinOrthodromicDistance(Coordinate reference, Envelope bbox) {
 		this.reference = reference;
-		this.bbox = bbox;
 		this.maxDistanceInKm = calculateDistance(bbox.centre(), new Coordinate(bbox.getMinX(),
 				(bbox.getMinY() + bbox.getMaxY()) / 2));
+		this.distance = new OrthodromicDistance(reference);
+	}
+
+	/**
+	 * Visit only the index nodes which come within the distance on the
+	 * sphere. Unlike a bounding box in degrees around the reference, this
+	 * stays correct at high latitudes, around the poles and across the
+	 * antimeridian.
+	 * 
+	 * @see SpatialQuery#needsToVisit(Envelope)
+	 */
+	public boolean needsToVisit(Envelope indexNodeEnvelope) {
+		return indexNodeEnvelope == null
+				|| distance.getMinDistance(new double[] { indexNodeEnvelope.getMinX(), indexNodeEnvelope.getMinY(),
+						indexNodeEnvelope.getMaxX(), indexNodeEnvelope.getMaxY() }) <= maxDistanceInKm;
 	}
 
+	/**
+	 * @see OrthodromicDistance#calculateDistance(Coordinate, Coordinate)
+	 */
 	public static double calculateDistance(Coordinate reference, Coordinate point) {
-		double distanceInKm = Math.acos(Math.sin(Math.toRadians(reference.y)) * Math.sin(Math.toRadians(point.y))
-				+ Math.cos(Math.toRadians(reference.y)) * Math.cos(Math.toRadians(point.y))
-				* Math.cos(Math.toRadians(point.x) - Math.toRadians(reference.x)))
-				* earthRadiusInKm;
-		return distanceInKm;
+		return OrthodromicDistance.calculateDistance(reference, point);
 	}
 
 	/**
@@ -90,8 +90,6 @@ public class ST_PointsWithinOrthodromicDistance extends AbstractReadOperation {
 		Geometry geometry = decodeGeometry(node);
 		Coordinate point = geometry.getCoordinate();
 
-		// d = acos(sin(lat1) * sin(lat2) + cos(lat1) * cos(lat2) * cos(lon2 -
-		// lon1)) * R
 		double distanceInKm = calculateDistance(reference, point);
 
 		if (distanceInKm < maxDistanceInKm) {
@@ -44,6 +44,7 @@ public class ST_Touch extends AbstractReadOperation {
 
 	public ST_Touch(Geometry other) {
 		this.other = other;
+		setSearchEnvelope(other.getEnvelopeInternal());
 	}
 
 	/**
@@ -43,6 +43,7 @@ public class ST_Within extends AbstractReadOperation {
 
 	public ST_Within(Geometry other) {
 		this.other = other;
+		setSearchEnvelope(other.getEnvelopeInternal());
 	}
 
 	/**
@@ -52,6 +52,7 @@ public class ST_WithinDistance extends AbstractReadOperation {
 
 		bbox = point.getEnvelopeInternal();
 		bbox.expandBy(distance);
+		setSearchEnvelope(bbox);
 	}
 
 	/**
@@ -20,22 +20,30 @@
 package org.neo4j.gis.spatial;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.Test;
 import org.neo4j.gis.spatial.encoders.SimpleGraphEncoder;
 import org.neo4j.gis.spatial.encoders.SimplePointEncoder;
 import org.neo4j.gis.spatial.encoders.SimplePropertyEncoder;
 import org.neo4j.gis.spatial.operation.Search;
+import org.neo4j.gis.spatial.operation.restriction.RestrictionImpl;
+import org.neo4j.gis.spatial.operation.restriction.RestrictionType;
 import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
 import org.neo4j.gis.spatial.osm.OSMLayer;
 import org.neo4j.gis.spatial.query.geometry.processing.ST_Contain;
 import org.neo4j.gis.spatial.query.geometry.processing.ST_Intersect;
 import org.neo4j.gis.spatial.query.geometry.processing.ST_Within;
+import org.neo4j.graphdb.Transaction;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.CoordinateList;
 import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.io.WKTReader;
 
 public class LayersTest extends Neo4jTestCase
 {
@@ -173,6 +181,206 @@ public class LayersTest extends Neo4jTestCase
                 (EditableLayer) spatialService.createLayer(
                         "test editable layer with OSM encoder",
                         OSMGeometryEncoder.class, EditableLayerImpl.class ) );
+        testSpecificEditableLayer( spatialService,
+                (EditableLayer) spatialService.createLayer(
+                        "test editable layer with TWKB encoder",
+                        TWKBGeometryEncoder.class, EditableLayerImpl.class ) );
+    }
+
+    @Test
+    public void testPrunedSearch() throws Exception
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayer layer = (EditableLayer) db.createLayer( "test", WKBGeometryEncoder.class, EditableLayerImpl.class );
+        for ( int x = 0; x < 20; x++ )
+        {
+            for ( int y = 0; y < 20; y++ )
+            {
+                layer.add( layer.getGeometryFactory().createPoint( new Coordinate( x, y ) ) );
+            }
+            layer.add( layer.getGeometryFactory().createLineString(
+                    new Coordinate[] { new Coordinate( x, 0 ), new Coordinate( x + 0.5, 19 ) } ) );
+        }
+        Geometry window = layer.getGeometryFactory().toGeometry( new Envelope( 2.5, 6.5, 3.5, 8.5 ) );
+
+        int[] skipped = new int[1];
+        Set<Long> pruned = searchIds( layer, window, skipped, null );
+        assertTrue( "Should skip index nodes outside of the window", skipped[0] > 0 );
+        Set<Long> unpruned = searchIds( layer, window, null, null );
+        assertEquals( 4 * 5 + 4, unpruned.size() );
+        assertEquals( unpruned, pruned );
+
+        // restrictions are evaluated on the geometry node, where the gtype is
+        String lines = "gtype=" + Constants.GTYPE_LINESTRING;
+        pruned = searchIds( layer, window, new int[1], lines );
+        unpruned = searchIds( layer, window, null, lines );
+        assertEquals( 4 * 5, unpruned.size() );
+        assertEquals( unpruned, pruned );
+    }
+
+    /**
+     * Search for the ids of the geometry nodes intersecting the window. The
+     * index is pruned by the window when skipped is not null, and counts the
+     * index nodes skipped, and the geometries equal to the excluded key=value
+     * are restricted from the results.
+     */
+    private Set<Long> searchIds( Layer layer, Geometry window, final int[] skipped, String excluded )
+    {
+        Search search = new ST_Intersect( window )
+        {
+            public boolean needsToVisit( Envelope indexNodeEnvelope )
+            {
+                if ( skipped == null )
+                {
+                    return true;
+                }
+                boolean visit = super.needsToVisit( indexNodeEnvelope );
+                if ( !visit )
+                {
+                    skipped[0]++;
+                }
+                return visit;
+            }
+        };
+        if ( excluded != null )
+        {
+            RestrictionImpl restriction = new RestrictionImpl( RestrictionType.EQUAL_TO, excluded );
+            search.getRestrictions().put( restriction.getKey(), restriction );
+        }
+        layer.execute( search );
+        Set<Long> ids = new HashSet<Long>();
+        for ( SpatialDatabaseRecord record : search.getResults() )
+        {
+            ids.add( record.getGeomNode().getId() );
+        }
+        return ids;
+    }
+
+    @Test
+    public void testGeometryCodecs() throws Exception
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayer wkbLayer = (EditableLayer) db.createLayer( "wkb", WKBGeometryEncoder.class, EditableLayerImpl.class );
+        EditableLayer wktLayer = (EditableLayer) db.createLayer( "wkt", WKTGeometryEncoder.class, EditableLayerImpl.class );
+        final Geometry polygon = new WKTReader().read( "POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0), (2 2, 2 4, 4 4, 2 2))" );
+        for ( EditableLayer layer : new EditableLayer[] { wkbLayer, wktLayer } )
+        {
+            SpatialDatabaseRecord record = layer.add( polygon );
+            assertTrue( polygon.equalsExact( layer.getGeometryEncoder().decodeGeometry( record.getGeomNode() ) ) );
+        }
+
+        // each thread has its own readers and writers
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[4];
+        for ( int t = 0; t < threads.length; t++ )
+        {
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for ( int i = 0; i < 1000; i++ )
+                        {
+                            Geometry geometry = i % 2 == 0 ? polygon : polygon.getFactory().createLineString(
+                                    new Coordinate[] { new Coordinate( i, -i ), new Coordinate( -i, i ) } );
+                            assertTrue( geometry.equalsExact( GeometryCodecs.readWKB( GeometryCodecs.writeWKB( geometry ),
+                                    polygon.getFactory() ) ) );
+                            assertTrue( geometry.equalsExact( GeometryCodecs.readWKT( GeometryCodecs.writeWKT( geometry ),
+                                    polygon.getFactory() ) ) );
+                        }
+                    }
+                    catch ( Throwable e )
+                    {
+                        synchronized ( errors )
+                        {
+                            errors.add( e );
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        assertEquals( "Codecs should not be shared between threads: " + errors, 0, errors.size() );
+    }
+
+    @Test
+    public void testTWKBLayer() throws Exception
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        db.createLayer( "test", TWKBGeometryEncoder.class, EditableLayerImpl.class, "5" );
+        EditableLayer layer = (EditableLayer) db.getLayer( "test" );
+        assertEquals( "5", ( (TWKBGeometryEncoder) layer.getGeometryEncoder() ).getConfiguration() );
+        WKTReader reader = new WKTReader( layer.getGeometryFactory() );
+        String[] wkts = new String[] {
+                "POINT (13.123456789 -56.2)",
+                "LINESTRING (13.1 56.2, 13.2 56.0, 13.3 56.2)",
+                "POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0), (2 2, 2 4, 4 4, 2 2))",
+                "MULTIPOINT (-179.5 -89.5, 179.5 89.5)",
+                "MULTILINESTRING ((1 1, 2 2), (3 3, 4 4, 5 5))",
+                "MULTIPOLYGON (((0 0, 1 0, 1 1, 0 0)), ((5 5, 6 5, 6 6, 5 5)))" };
+        for ( String wkt : wkts )
+        {
+            Geometry geometry = reader.read( wkt );
+            SpatialDatabaseRecord record = layer.add( geometry );
+            Geometry decoded = layer.getGeometryEncoder().decodeGeometry( record.getGeomNode() );
+            assertEquals( geometry.getGeometryType(), decoded.getGeometryType() );
+            assertTrue( "Should decode " + wkt + " but was " + decoded, geometry.equalsExact( decoded, 0.000005 ) );
+            assertEquals( geometry.getEnvelopeInternal(),
+                    layer.getGeometryEncoder().decodeEnvelope( record.getGeomNode() ) );
+        }
+
+        // a street with 1m steps needs a few bytes per coordinate instead of 16
+        Coordinate[] coordinates = new Coordinate[100];
+        for ( int i = 0; i < coordinates.length; i++ )
+        {
+            coordinates[i] = new Coordinate( 13.0 + i * 0.00001, 56.0 + ( i % 2 ) * 0.00001 );
+        }
+        Geometry street = layer.getGeometryFactory().createLineString( coordinates );
+        SpatialDatabaseRecord record = layer.add( street );
+        byte[] twkb = (byte[]) record.getGeomNode().getProperty( Constants.PROP_TWKB );
+        assertTrue( "Should be much smaller than WKB, but was " + twkb.length,
+                twkb.length * 4 < new WKBWriter().write( street ).length );
+        assertTrue( street.equalsExact( layer.getGeometryEncoder().decodeGeometry( record.getGeomNode() ), 0.000005 ) );
+
+        // coordinates too large for the precision are not silently clamped
+        TWKBGeometryEncoder encoder = new TWKBGeometryEncoder();
+        encoder.setConfiguration( "15" );
+        Transaction tx = graphDb().beginTx();
+        try
+        {
+            encoder.encodeGeometry( reader.read( "POINT (1000000 0)" ), graphDb().createNode() );
+            fail( "Should not encode a coordinate beyond the range of the precision" );
+        }
+        catch ( SpatialDatabaseException e )
+        {
+            // expected
+        }
+        finally
+        {
+            tx.finish();
+        }
+
+        // mixed collections have no TWKB type
+        tx = graphDb().beginTx();
+        try
+        {
+            encoder.encodeGeometry( reader.read( "GEOMETRYCOLLECTION (POINT (1 1), LINESTRING (1 1, 2 2))" ),
+                    graphDb().createNode() );
+            fail( "Should not encode a geometry collection" );
+        }
+        catch ( SpatialDatabaseException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "GeometryCollection" ) );
+        }
+        finally
+        {
+            tx.finish();
+        }
     }
 
     private Layer testSpecificEditableLayer(
@@ -0,0 +1,447 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.neo4j.gis.spatial.SpatialTopologyUtils.PointResult;
+import org.neo4j.gis.spatial.encoders.SimplePointEncoder;
+import org.neo4j.gis.spatial.operation.Search;
+import org.neo4j.gis.spatial.query.SearchIntersectWindow;
+import org.neo4j.gis.spatial.query.SearchPointsWithinOrthodromicDistance;
+import org.neo4j.gis.spatial.query.geometry.processing.ST_Closest;
+import org.neo4j.gis.spatial.query.geometry.processing.ST_PointsWithinOrthodromicDistance;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class RTreeIndexTest extends Neo4jTestCase
+{
+
+    @Test
+    public void testNodeCacheFollowsIndexChanges()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayer layer = (EditableLayer) db.createLayer( "test", SimplePointEncoder.class, EditableLayerImpl.class, "lon:lat" );
+        RTreeIndex index = (RTreeIndex) layer.getIndex();
+        index.setNodeCacheSize( 1000 );
+
+        List<SpatialDatabaseRecord> records = addGrid( layer, 25, 20 );
+        assertEquals( 500, index.count() );
+        assertEquals( 50, countInWindow( index, new Envelope( 0, 9.5, 0, 4.5 ) ) );
+
+        // the cache must see the removed entries
+        for ( int i = 0; i < 10; i++ )
+        {
+            layer.delete( records.get( i ).getId() );
+        }
+        assertEquals( 490, index.count() );
+        assertEquals( 40, countInWindow( index, new Envelope( 0, 9.5, 0, 4.5 ) ) );
+    }
+
+    @Test
+    public void testBulkInsert()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayerImpl layer = (EditableLayerImpl) db.createLayer( "test", SimplePointEncoder.class, EditableLayerImpl.class, "lon:lat" );
+        RTreeIndex index = (RTreeIndex) layer.getIndex();
+
+        List<Node> geomNodes = new ArrayList<Node>();
+        for ( int y = 0; y < 50; y++ )
+        {
+            for ( int x = 0; x < 50; x++ )
+            {
+                geomNodes.add( layer.addWithoutIndex( layer.getGeometryFactory().createPoint( new Coordinate( x, y ) ), null, null ) );
+            }
+        }
+        assertTrue( index.isEmpty() );
+        layer.addAll( geomNodes );
+
+        // 2500 points are packed into 25 full leaves below the root
+        assertEquals( 2500, index.count() );
+        assertEquals( 25, countIndexNodes( index ) );
+        assertEquals( new Envelope( 0, 49, 0, 49 ), index.getLayerBoundingBox() );
+        assertEquals( 50, countInWindow( index, new Envelope( 0, 9.5, 0, 4.5 ) ) );
+
+        // the packed tree must still support single updates
+        addGrid( layer, 5, 5 );
+        assertEquals( 2525, index.count() );
+        assertEquals( 75, countInWindow( index, new Envelope( 0, 9.5, 0, 4.5 ) ) );
+        for ( int i = 0; i < 100; i++ )
+        {
+            layer.delete( geomNodes.get( i ).getId() );
+        }
+        assertEquals( 2425, index.count() );
+        assertEquals( 55, countInWindow( index, new Envelope( 0, 9.5, 0, 4.5 ) ) );
+
+        // bulk inserts into a non empty index add the nodes one by one
+        List<Node> moreNodes = new ArrayList<Node>();
+        for ( int x = 0; x < 10; x++ )
+        {
+            moreNodes.add( layer.addWithoutIndex( layer.getGeometryFactory().createPoint( new Coordinate( x, 0 ) ), null, null ) );
+        }
+        layer.addAll( moreNodes );
+        assertEquals( 2435, index.count() );
+        assertEquals( 65, countInWindow( index, new Envelope( 0, 9.5, 0, 4.5 ) ) );
+    }
+
+    @Test
+    public void testSplitCollinearPoints()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayer layer = (EditableLayer) db.createLayer( "test", SimplePointEncoder.class, EditableLayerImpl.class, "lon:lat" );
+        RTreeIndex index = (RTreeIndex) layer.getIndex();
+
+        // all bounding boxes have no area, the split must still pick two different seeds
+        List<SpatialDatabaseRecord> records = addGrid( layer, 250, 1 );
+        assertEquals( 250, index.count() );
+        assertEquals( 10, countInWindow( index, new Envelope( 0, 9.5, -1, 1 ) ) );
+        for ( SpatialDatabaseRecord record : records )
+        {
+            layer.delete( record.getId() );
+        }
+        assertEquals( 0, index.count() );
+    }
+
+    @Test
+    public void testRStarSplitStrategy()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayer layer = (EditableLayer) db.createLayer( "test", SimplePointEncoder.class, EditableLayerImpl.class, "lon:lat" );
+        RTreeIndex index = (RTreeIndex) layer.getIndex();
+        assertEquals( RTreeIndex.QUADRATIC_SPLIT, index.getSplitStrategy() );
+        index.setSplitStrategy( RTreeIndex.RSTAR_SPLIT );
+
+        // the strategy is stored with the layer
+        assertEquals( RTreeIndex.RSTAR_SPLIT, new RTreeIndex( graphDb(), layer ).getSplitStrategy() );
+
+        Random random = new Random( 42 );
+        List<Coordinate> coordinates = new ArrayList<Coordinate>();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            Coordinate coordinate = new Coordinate( random.nextDouble() * 100, random.nextDouble() * 100 );
+            coordinates.add( coordinate );
+            layer.add( layer.getGeometryFactory().createPoint( coordinate ) );
+        }
+        assertEquals( 1000, index.count() );
+
+        for ( int i = 0; i < 20; i++ )
+        {
+            double x = random.nextDouble() * 80;
+            double y = random.nextDouble() * 80;
+            Envelope window = new Envelope( x, x + 20, y, y + 20 );
+            int expected = 0;
+            for ( Coordinate coordinate : coordinates )
+            {
+                if ( window.contains( coordinate ) ) expected++;
+            }
+            assertEquals( expected, countInWindow( index, window ) );
+        }
+    }
+
+    @Test
+    public void testStoredChildCounts()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayer layer = (EditableLayer) db.createLayer( "test", SimplePointEncoder.class, EditableLayerImpl.class, "lon:lat" );
+        RTreeIndex index = (RTreeIndex) layer.getIndex();
+
+        List<SpatialDatabaseRecord> records = addGrid( layer, 40, 40 );
+        for ( int i = 0; i < 200; i++ )
+        {
+            layer.delete( records.get( i ).getId() );
+        }
+        assertChildCounts( index );
+
+        // index nodes written without the properties are counted from their relationships
+        Transaction tx = graphDb().beginTx();
+        try
+        {
+            for ( Node indexNode : index.getAllIndexNodes() )
+            {
+                indexNode.removeProperty( "childCount" );
+                indexNode.removeProperty( "leaf" );
+            }
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        addGrid( layer, 10, 10 );
+        assertEquals( 1500, index.count() );
+        assertChildCounts( index );
+    }
+
+    private void assertChildCounts( RTreeIndex index )
+    {
+        List<Node> indexNodes = new ArrayList<Node>();
+        indexNodes.add( index.getIndexRoot() );
+        for ( Node indexNode : index.getAllIndexNodes() )
+        {
+            indexNodes.add( indexNode );
+        }
+        for ( Node indexNode : indexNodes )
+        {
+            if ( !indexNode.hasProperty( "childCount" ) ) continue;
+            boolean leaf = !indexNode.hasRelationship( SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING );
+            RelationshipType type = leaf ? SpatialRelationshipTypes.RTREE_REFERENCE : SpatialRelationshipTypes.RTREE_CHILD;
+            int count = 0;
+            for ( Iterator<Relationship> children = indexNode.getRelationships( type, Direction.OUTGOING ).iterator(); children.hasNext(); children.next() )
+            {
+                count++;
+            }
+            assertEquals( leaf, indexNode.getProperty( "leaf" ) );
+            assertEquals( count, indexNode.getProperty( "childCount" ) );
+        }
+    }
+
+    @Test
+    public void testNearestNeighbours()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayer layer = (EditableLayer) db.createLayer( "test", SimplePointEncoder.class, EditableLayerImpl.class, "lon:lat" );
+        RTreeIndex index = (RTreeIndex) layer.getIndex();
+
+        Random random = new Random( 7 );
+        List<Coordinate> coordinates = new ArrayList<Coordinate>();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            Coordinate coordinate = new Coordinate( random.nextDouble() * 100, random.nextDouble() * 100 );
+            coordinates.add( coordinate );
+            layer.add( layer.getGeometryFactory().createPoint( coordinate ) );
+        }
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            final Coordinate query = new Coordinate( random.nextDouble() * 200 - 50, random.nextDouble() * 200 - 50 );
+            List<Coordinate> expected = new ArrayList<Coordinate>( coordinates );
+            Collections.sort( expected, new Comparator<Coordinate>()
+            {
+                public int compare( Coordinate c1, Coordinate c2 )
+                {
+                    return Double.compare( c1.distance( query ), c2.distance( query ) );
+                }
+            } );
+
+            List<SpatialDatabaseRecord> nearest = index.searchNearest( layer.getGeometryFactory().createPoint( query ), 10 );
+            assertEquals( 10, nearest.size() );
+            for ( int j = 0; j < 10; j++ )
+            {
+                double distance = (Double) nearest.get( j ).getResult();
+                assertEquals( expected.get( j ).distance( query ), distance, 0.0000001 );
+                assertEquals( expected.get( j ), nearest.get( j ).getGeometry().getCoordinate() );
+            }
+        }
+
+        // the whole layer is returned in distance order
+        Iterator<SpatialDatabaseRecord> all = index.getNearestNeighbours( layer.getGeometryFactory().createPoint( new Coordinate( 50, 50 ) ) );
+        int count = 0;
+        double previous = 0;
+        while ( all.hasNext() )
+        {
+            double distance = (Double) all.next().getResult();
+            assertTrue( distance >= previous );
+            previous = distance;
+            count++;
+        }
+        assertEquals( 1000, count );
+    }
+
+    @Test
+    public void testClosestWithoutSearchWindow() throws Exception
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayer layer = (EditableLayer) db.createLayer( "test", WKTGeometryEncoder.class, EditableLayerImpl.class );
+        WKTReader reader = new WKTReader( layer.getGeometryFactory() );
+        addGrid( layer, 10, 10 );
+        layer.add( reader.read( "LINESTRING (1000 1000, 1000 1100)" ) );
+        layer.add( reader.read( "LINESTRING (1010 1000, 1010 1100)" ) );
+
+        // far away from all geometries, nothing intersects its envelope
+        Point point = layer.getGeometryFactory().createPoint( new Coordinate( 1003, 1200 ) );
+        Search closest = new ST_Closest( point );
+        layer.execute( closest );
+        assertEquals( 1, closest.getResults().size() );
+        assertTrue( reader.read( "LINESTRING (1000 1000, 1000 1100)" ).equalsExact( closest.getResults().get( 0 ).getGeometry() ) );
+
+        List<PointResult> edges = SpatialTopologyUtils.findClosestEdges( point, layer );
+        assertEquals( 2, edges.size() );
+        assertEquals( new Coordinate( 1000, 1100 ), edges.get( 0 ).getKey().getCoordinate() );
+        assertEquals( new Coordinate( 1010, 1100 ), edges.get( 1 ).getKey().getCoordinate() );
+    }
+
+    @Test
+    public void testGeodesicNearestNeighbours()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        SimplePointLayer layer = db.createSimplePointLayer( "test" );
+
+        Random random = new Random( 11 );
+        List<Coordinate> coordinates = new ArrayList<Coordinate>();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            Coordinate coordinate = new Coordinate( random.nextDouble() * 360 - 180, random.nextDouble() * 170 - 85 );
+            coordinates.add( coordinate );
+            layer.add( coordinate );
+        }
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            final Coordinate query = new Coordinate( random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90 );
+            List<Coordinate> expected = new ArrayList<Coordinate>( coordinates );
+            Collections.sort( expected, new Comparator<Coordinate>()
+            {
+                public int compare( Coordinate c1, Coordinate c2 )
+                {
+                    return Double.compare( OrthodromicDistance.calculateDistance( query, c1 ),
+                            OrthodromicDistance.calculateDistance( query, c2 ) );
+                }
+            } );
+
+            List<SpatialDatabaseRecord> nearest = layer.findNearestPoints( query, 10 );
+            assertEquals( 10, nearest.size() );
+            for ( int j = 0; j < 10; j++ )
+            {
+                double distance = (Double) nearest.get( j ).getUserData();
+                assertEquals( OrthodromicDistance.calculateDistance( query, expected.get( j ) ), distance, 0.0000001 );
+            }
+
+            int withinDistance = 0;
+            for ( Coordinate coordinate : coordinates )
+            {
+                if ( OrthodromicDistance.calculateDistance( query, coordinate ) <= 2000 ) withinDistance++;
+            }
+            List<SpatialDatabaseRecord> within = layer.findClosestPointsTo( query, 2000.0 );
+            assertEquals( withinDistance, within.size() );
+            double previous = 0;
+            for ( SpatialDatabaseRecord record : within )
+            {
+                double distance = (Double) record.getResult();
+                assertTrue( distance >= previous && distance <= 2000 );
+                previous = distance;
+            }
+            assertEquals( Math.min( 3, withinDistance ), layer.findClosestPointsTo( query, 2000.0, 3 ).size() );
+        }
+
+        // a quarter of the globe away only the corners of a box can be nearest
+        OrthodromicDistance distance = new OrthodromicDistance( new Coordinate( 0, 0 ) );
+        assertEquals( OrthodromicDistance.calculateDistance( new Coordinate( 0, 0 ), new Coordinate( 120, 60 ) ),
+                distance.getMinDistance( new double[] { 120, -10, 130, 60 } ), 0.0000001 );
+    }
+
+    @Test
+    public void testPointsWithinOrthodromicDistance()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        SimplePointLayer layer = db.createSimplePointLayer( "test" );
+
+        Random random = new Random( 13 );
+        List<Coordinate> coordinates = new ArrayList<Coordinate>();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            Coordinate coordinate = new Coordinate( random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90 );
+            coordinates.add( coordinate );
+            layer.add( coordinate );
+        }
+
+        Coordinate[] references = new Coordinate[] { new Coordinate( 0, 60 ), new Coordinate( 179.5, 10 ),
+                new Coordinate( 10, 88 ) };
+        double[] distances = new double[] { 2000, 3000, 1500 };
+        // 2000 km from (0 60) a degree box reaches 36 degrees east, but the circle reaches 38.1
+        SimplePointLayer north = db.createSimplePointLayer( "north" );
+        Coordinate east = new Coordinate( 37, 65.6 );
+        north.add( east );
+        north.add( 90, 65.6 );
+        north.add( 150, 65.6 );
+        assertTrue( OrthodromicDistance.calculateDistance( references[0], east ) < distances[0] );
+        Search search = new ST_PointsWithinOrthodromicDistance( references[0], distances[0] );
+        north.execute( search );
+        assertEquals( 1, search.getResults().size() );
+        assertTrue( east.equals2D( search.getResults().get( 0 ).getGeometry().getCoordinate() ) );
+
+        for ( int i = 0; i < references.length; i++ )
+        {
+            int expected = 0;
+            for ( Coordinate coordinate : coordinates )
+            {
+                if ( OrthodromicDistance.calculateDistance( references[i], coordinate ) < distances[i] ) expected++;
+            }
+            assertTrue( expected > 0 );
+
+            search = new ST_PointsWithinOrthodromicDistance( references[i], distances[i] );
+            layer.execute( search );
+            assertEquals( "Points within " + distances[i] + " km of " + references[i], expected,
+                    search.getResults().size() );
+
+            SearchPointsWithinOrthodromicDistance indexSearch = new SearchPointsWithinOrthodromicDistance(
+                    references[i], distances[i], false );
+            layer.getIndex().executeSearch( indexSearch );
+            assertEquals( "Points within " + distances[i] + " km of " + references[i], expected,
+                    indexSearch.getResults().size() );
+        }
+    }
+
+    /**
+     * Add a width x height grid of points with integer coordinates.
+     */
+    private List<SpatialDatabaseRecord> addGrid( EditableLayer layer, int width, int height )
+    {
+        List<SpatialDatabaseRecord> records = new ArrayList<SpatialDatabaseRecord>();
+        for ( int y = 0; y < height; y++ )
+        {
+            for ( int x = 0; x < width; x++ )
+            {
+                records.add( layer.add( layer.getGeometryFactory().createPoint( new Coordinate( x, y ) ) ) );
+            }
+        }
+        return records;
+    }
+
+    private int countIndexNodes( RTreeIndex index )
+    {
+        int count = 0;
+        for ( Iterator<Node> nodes = index.getAllIndexNodes().iterator(); nodes.hasNext(); nodes.next() )
+        {
+            count++;
+        }
+        return count;
+    }
+
+    private int countInWindow( RTreeIndex index, Envelope window )
+    {
+        SearchIntersectWindow search = new SearchIntersectWindow( window );
+        index.executeSearch( search );
+        return search.getResults().size();
+    }
+}
@@ -24,6 +24,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import org.junit.Test;
+import org.neo4j.gis.spatial.DynamicLayer.LayerConfig;
 import org.neo4j.gis.spatial.geometry.Dataset;
 import org.neo4j.gis.spatial.operation.Search;
 import org.neo4j.gis.spatial.osm.OSMImporter;
@@ -62,6 +63,63 @@ public class ST_TestSearch extends Neo4jTestCase {
 		assertEquals(21912, search.getResults().size());
 	}
 
+	public void testSingleThreadedSearch() throws Exception {
+		Search search = new ST_Geometry();
+		search.setThreadPoolSize(1);
+		layer.execute(search);
+		assertEquals(21912, search.getResults().size());
+	}
+
+	public void testLazySearch() throws Exception {
+		Search search = new ST_Geometry();
+		int count = 0;
+		for (Iterator<SpatialDatabaseRecord> results = layer
+				.executeLazily(search); results.hasNext(); results.next()) {
+			count++;
+		}
+		assertEquals(21912, count);
+		assertEquals(0, search.getResults().size());
+	}
+
+	public void testSearchWithLimit() throws Exception {
+		Search search = new ST_Geometry();
+		search.setLimit(10);
+		layer.execute(search);
+		assertEquals(10, search.getResults().size());
+
+		search = new ST_Geometry();
+		search.setLimit(10);
+		int count = 0;
+		for (Iterator<SpatialDatabaseRecord> results = layer
+				.executeLazily(search); results.hasNext(); results.next()) {
+			count++;
+		}
+		assertEquals(10, count);
+	}
+
+	public void testDynamicLayerLazySearch() throws Exception {
+		LayerConfig ways = layer.addSimpleDynamicLayer(Constants.GTYPE_LINESTRING);
+		int count = 0;
+		for (Iterator<SpatialDatabaseRecord> results = ways
+				.executeLazily(new ST_Geometry()); results.hasNext();) {
+			assertEquals(Constants.GTYPE_LINESTRING, SpatialDatabaseService
+					.convertJtsClassToGeometryType(results.next()
+							.getGeometry().getClass()));
+			count++;
+		}
+		assertTrue(count > 0);
+		assertEquals(ways.getIndex().count(), count);
+
+		Search search = new ST_Geometry();
+		search.setLimit(10);
+		count = 0;
+		for (Iterator<SpatialDatabaseRecord> results = ways
+				.executeLazily(search); results.hasNext(); results.next()) {
+			count++;
+		}
+		assertEquals(10, count);
+	}
+
 	private void loadTestOsmData(String layerName, int commitInterval)
 			throws Exception {
 		String osmPath = Dataset.OSM_DIR + File.separator + layerName;
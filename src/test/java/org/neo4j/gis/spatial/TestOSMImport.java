@@ -19,12 +19,22 @@
  */
 package org.neo4j.gis.spatial;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.xml.stream.XMLStreamException;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -33,7 +43,9 @@ import org.geotools.data.DataStore;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.neo4j.gis.spatial.osm.OSMDataset;
 import org.neo4j.gis.spatial.osm.OSMDataset.Way;
+import org.neo4j.gis.spatial.osm.OSMGeometryCache;
 import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMImportFilter;
 import org.neo4j.gis.spatial.osm.OSMImporter;
 import org.neo4j.gis.spatial.osm.OSMLayer;
 import org.neo4j.gis.spatial.osm.OSMRelation;
@@ -41,10 +53,12 @@ import org.neo4j.gis.spatial.query.SearchWithin;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.index.IndexHits;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPolygon;
 
 public class TestOSMImport extends Neo4jTestCase {
 	public static final String spatialTestMode = System.getProperty("spatial.test.mode");
@@ -53,6 +67,15 @@ public class TestOSMImport extends Neo4jTestCase {
 		setName("OSM-Import[points:" + includePoints + ", batch:" + useBatchInserter + "]: " + layerName);
 	}
 
+	public TestOSMImport(String name) {
+		setName(name);
+	}
+
+	public TestOSMImport(String layerName, boolean useBatchInserter, boolean useIdMaps, boolean usePipeline) {
+		setName("OSM-Import[batch:" + useBatchInserter + ", idMaps:" + useIdMaps + ", pipeline:" + usePipeline + "]: "
+				+ layerName);
+	}
+
 	public static Test suite() {
 		deleteBaseDir();
 		TestSuite suite = new TestSuite();
@@ -99,7 +122,61 @@ public class TestOSMImport extends Neo4jTestCase {
 					});
 				}
 			}
+			suite.addTest(new TestOSMImport(layerName, true, true, false) {
+				public void runTest() {
+					try {
+						runImport(layerName, false, true, true, false);
+					} catch (Exception e) {
+						throw new SpatialDatabaseException(e.getMessage(), e);
+					}
+				}
+			});
+			for (final boolean useBatchInserter : new boolean[] { true, false }) {
+				suite.addTest(new TestOSMImport(layerName, useBatchInserter, false, true) {
+					public void runTest() {
+						try {
+							runImport(layerName, false, useBatchInserter, false, true);
+						} catch (Exception e) {
+							throw new SpatialDatabaseException(e.getMessage(), e);
+						}
+					}
+				});
+			}
 		}
+		for (final boolean useBatchInserter : new boolean[] { true, false }) {
+			suite.addTest(new TestOSMImport("map.osm.pbf", useBatchInserter, false, false) {
+				public void runTest() {
+					try {
+						runEquivalentImport("map.osm.pbf", "map.osm", useBatchInserter);
+					} catch (Exception e) {
+						throw new SpatialDatabaseException(e.getMessage(), e);
+					}
+				}
+			});
+		}
+		for (final String compressed : new String[] { "map.osm.gz", "map.osm.bz2" }) {
+			suite.addTest(new TestOSMImport(compressed, true, false, false) {
+				public void runTest() {
+					try {
+						runEquivalentImport(compressed, "map.osm", true);
+					} catch (Exception e) {
+						throw new SpatialDatabaseException(e.getMessage(), e);
+					}
+				}
+			});
+		}
+		suite.addTest(new TestOSMImport("testParseTimestamp"));
+		suite.addTest(new TestOSMImport("testApplyChanges"));
+		suite.addTest(new TestOSMImport("testResumeImport"));
+		suite.addTest(new TestOSMImport("testResumeBatchImport"));
+		suite.addTest(new TestOSMImport("testResumeAfterWriterFailure"));
+		suite.addTest(new TestOSMImport("testResumeBatchAfterWriterFailure"));
+		suite.addTest(new TestOSMImport("testImportFilter"));
+		suite.addTest(new TestOSMImport("testCompactWays"));
+		suite.addTest(new TestOSMImport("testCompactWaysBatch"));
+		suite.addTest(new TestOSMImport("testGeometryCache"));
+		suite.addTest(new TestOSMImport("testMultipolygon"));
+		suite.addTest(new TestOSMImport("testSharedTags"));
 		System.out.println("This suite has " + suite.testCount() + " tests");
 		for (int i = 0; i < suite.testCount(); i++) {
 			System.out.println("\t" + suite.testAt(i).toString());
@@ -107,7 +184,505 @@ public class TestOSMImport extends Neo4jTestCase {
 		return suite;
 	}
 
+	public void testParseTimestamp() throws Exception {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		for (String timestamp : new String[] { "2008-06-11T12:36:28Z", "2010-05-15T15:39:57Z", "1970-01-01T00:00:00Z",
+				"1969-12-31T23:59:59Z", "2000-02-29T12:00:00Z", "2100-03-01T00:00:01Z", "1600-02-29T23:59:59Z" }) {
+			assertEquals(timestamp, format.parse(timestamp).getTime(), OSMImporter.parseTimestamp(timestamp));
+		}
+		try {
+			OSMImporter.parseTimestamp("2008-06-11 12:36");
+			fail("Should not parse an invalid timestamp");
+		} catch (ParseException e) {
+			// expected
+		}
+	}
+
+	public void testApplyChanges() throws Exception {
+		String osmPath = checkOSMFile("two-street.osm");
+		assertNotNull("Missing test data", osmPath);
+		loadTestOsmData("two-street.osm", osmPath, false, false, false, false, 1000);
+		OSMImporter importer = new OSMImporter("two-street.osm");
+		importer.applyChanges(graphDb(), "two-street.osc");
+
+		SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+		OSMLayer layer = (OSMLayer) spatialService.getLayer("two-street.osm");
+		OSMDataset dataset = (OSMDataset) layer.getDataset();
+		HashSet<Object> names = new HashSet<Object>();
+		for (Node way : dataset.getAllWayNodes()) {
+			names.add(way.getProperty("name"));
+		}
+		assertEquals(new HashSet<Object>(Arrays.asList("Lilla Storgatan", "Testgatan")), names);
+		assertEquals("Only the remaining ways should be indexed", 2, layer.getIndex().count());
+		checkWayGeometries(layer);
+		checkOSMIndexes(layer);
+		for (String deleted : new String[] { "763211115", "857081523" }) {
+			assertNull("Node " + deleted + " should be deleted", graphDb().index().forNodes("node").get("node_osm_id",
+					deleted).getSingle());
+		}
+		assertNull("Way should be deleted", graphDb().index().forNodes("node").get("way_osm_id", "72090582").getSingle());
+		Envelope bbox = layer.getIndex().getLayerBoundingBox();
+		assertTrue("Index should include the moved node, but was " + bbox, bbox.contains(12.98, 56.06));
+		assertFalse("Index should not include the deleted way, but was " + bbox, bbox.contains(12.9639158, 56.0709040));
+	}
+
+	public void testResumeImport() throws Exception {
+		runResumeImport(false);
+	}
+
+	public void testResumeBatchImport() throws Exception {
+		runResumeImport(true);
+	}
+
+	/**
+	 * Import a copy of map.osm that is cut off in the middle of the ways, and
+	 * then resume the import from the complete file. This should give the
+	 * same data as importing the complete file at once.
+	 */
+	private void runResumeImport(boolean useBatchInserter) throws Exception {
+		String osmPath = checkOSMFile("map.osm");
+		assertNotNull("Missing test data", osmPath);
+		loadTestOsmData("map.osm", osmPath, false, useBatchInserter, false, false, 1000);
+		int[] expected = countWaysAndWayNodes("map.osm");
+		updateStorePrefix();
+		reActivateDatabase(false, false, false);
+
+		byte[] data = readFile(new File(osmPath));
+		// one char per byte, so that the cut is at the same offset in both
+		String xml = new String(data, "ISO-8859-1");
+		int cut = (xml.indexOf("<way ") + xml.indexOf("<relation ")) / 2;
+		File copy = new File("target/var/resume/map.osm");
+		copy.getParentFile().mkdirs();
+		writeFile(copy, data, cut);
+		try {
+			importResumable(copy.getPath(), useBatchInserter);
+			fail("Should not import a truncated file");
+		} catch (XMLStreamException e) {
+			// expected
+		}
+		Node dataset = getDatasetNode("map.osm");
+		assertEquals(copy.getPath(), dataset.getProperty("checkpoint_file"));
+		assertTrue("Should have a checkpoint", (Long) dataset.getProperty("checkpoint_records") > 0);
+
+		writeFile(copy, data, data.length);
+		OSMImporter importer = importResumable(copy.getPath(), useBatchInserter);
+		importer.reIndex(graphDb(), 1000, false, false);
+		assertFalse("Checkpoint should be removed", getDatasetNode("map.osm").hasProperty("checkpoint_file"));
+		int[] found = countWaysAndWayNodes("map.osm");
+		assertEquals("Resumed import should have all ways", expected[0], found[0]);
+		assertEquals("Resumed import should have all way nodes", expected[1], found[1]);
+		checkOSMLayer("map.osm");
+	}
+
+	public void testResumeAfterWriterFailure() throws Exception {
+		String osmPath = checkOSMFile("map.osm");
+		assertNotNull("Missing test data", osmPath);
+		int[] expected = importFailingWay(osmPath, false);
+
+		Node dataset = getDatasetNode("map.osm");
+		assertNotNull("Should have committed a checkpoint before the failure", dataset);
+		assertTrue("Should have a checkpoint", (Long) dataset.getProperty("checkpoint_records") > 0);
+		OSMImporter importer = importResumable("target/var/resume/map.osm", false);
+		importer.reIndex(graphDb(), 1000, false, false);
+		assertFalse("Checkpoint should be removed", getDatasetNode("map.osm").hasProperty("checkpoint_file"));
+		int[] found = countWaysAndWayNodes("map.osm");
+		assertEquals("Resumed import should have all ways", expected[0], found[0]);
+		assertEquals("Resumed import should have all way nodes", expected[1], found[1]);
+		checkNoDuplicates("map.osm");
+		checkOSMLayer("map.osm");
+	}
+
+	public void testResumeBatchAfterWriterFailure() throws Exception {
+		String osmPath = checkOSMFile("map.osm");
+		assertNotNull("Missing test data", osmPath);
+		importFailingWay(osmPath, true);
+
+		assertTrue("Should mark the checkpoint as failed", getDatasetNode("map.osm").hasProperty("checkpoint_failed"));
+		try {
+			importResumable("target/var/resume/map.osm", true);
+			fail("Should not resume after the batch inserter failed part way through a record");
+		} catch (SpatialDatabaseException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Import map.osm into one store to get the expected counts, and then
+	 * import a copy with an invalid changeset in one of the middle ways into
+	 * a new store, which fails in the writer. The copy is restored to the
+	 * valid file afterwards, ready to resume.
+	 */
+	private int[] importFailingWay(String osmPath, boolean useBatchInserter) throws Exception {
+		loadTestOsmData("map.osm", osmPath, false, useBatchInserter, false, false, 1000);
+		int[] expected = countWaysAndWayNodes("map.osm");
+		updateStorePrefix();
+		reActivateDatabase(false, false, false);
+
+		byte[] data = readFile(new File(osmPath));
+		String xml = new String(data, "ISO-8859-1");
+		int way = xml.indexOf("<way ", (xml.indexOf("<way ") + xml.indexOf("<relation ")) / 2);
+		int changeset = xml.indexOf(" changeset=\"", way) + " changeset=\"".length();
+		String broken = xml.substring(0, changeset) + "x" + xml.substring(changeset);
+		File copy = new File("target/var/resume/map.osm");
+		copy.getParentFile().mkdirs();
+		byte[] brokenData = broken.getBytes("ISO-8859-1");
+		writeFile(copy, brokenData, brokenData.length);
+		try {
+			importResumable(copy.getPath(), useBatchInserter);
+			fail("Should not import a way with an invalid changeset");
+		} catch (NumberFormatException e) {
+			// expected
+		}
+		writeFile(copy, data, data.length);
+		return expected;
+	}
+
+	/**
+	 * Check that every way and way node of the layer was only written once.
+	 */
+	private void checkNoDuplicates(String layerName) {
+		SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+		OSMDataset dataset = (OSMDataset) spatialService.getLayer(layerName).getDataset();
+		for (Node way : dataset.getAllWayNodes()) {
+			IndexHits<Node> ways = graphDb().index().forNodes("node").get("way_osm_id", way.getProperty("way_osm_id"));
+			assertEquals("Way " + way.getProperty("way_osm_id") + " should be written once", 1, ways.size());
+			ways.close();
+			for (Node node : dataset.getWayNodes(way)) {
+				IndexHits<Node> nodes = graphDb().index().forNodes("node").get("node_osm_id",
+						node.getProperty("node_osm_id"));
+				assertEquals("Node " + node.getProperty("node_osm_id") + " should be written once", 1, nodes.size());
+				nodes.close();
+			}
+		}
+	}
+
+	private OSMImporter importResumable(String osmPath, boolean useBatchInserter) throws Exception {
+		OSMImporter importer = new OSMImporter("map.osm");
+		importer.setResume(true);
+		if (useBatchInserter) {
+			reActivateDatabase(false, true, false);
+			try {
+				importer.importFile(getBatchInserter(), osmPath, false);
+			} finally {
+				reActivateDatabase(false, false, false);
+			}
+		} else {
+			importer.importFile(graphDb(), osmPath, false, 100);
+		}
+		return importer;
+	}
+
+	private Node getDatasetNode(String name) {
+		Node osmRoot = graphDb().getReferenceNode().getSingleRelationship(OSMRelation.OSM, Direction.OUTGOING).getEndNode();
+		for (Relationship rel : osmRoot.getRelationships(OSMRelation.OSM, Direction.OUTGOING)) {
+			if (name.equals(rel.getEndNode().getProperty("name", null))) {
+				return rel.getEndNode();
+			}
+		}
+		return null;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private static void writeFile(File file, byte[] data, int length) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void testImportFilter() throws Exception {
+		String osmPath = checkOSMFile("map.osm");
+		assertNotNull("Missing test data", osmPath);
+		Envelope area = new Envelope(12.96, 12.99, 56.05, 56.07);
+		OSMImportFilter filter = new OSMImportFilter();
+		HashMap<String, String> highways = new HashMap<String, String>();
+		highways.put("highway", null);
+		filter.addWayTags(highways);
+		filter.setArea(area);
+		OSMImporter importer = new OSMImporter("map.osm");
+		importer.setFilter(filter);
+		importer.importFile(graphDb(), osmPath, false, 5000);
+		assertEquals("Should have read the whole file", new File(osmPath).length(), importer.getInputBytesRead());
+		importer.reIndex(graphDb(), 1000, false, false);
+
+		SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+		OSMLayer layer = (OSMLayer) spatialService.getLayer("map.osm");
+		OSMDataset dataset = (OSMDataset) layer.getDataset();
+		int ways = 0;
+		boolean outside = false;
+		for (Node way : dataset.getAllWayNodes()) {
+			ways++;
+			Node tags = way.getSingleRelationship(OSMRelation.TAGS, Direction.OUTGOING).getEndNode();
+			assertTrue("Way should be a highway", tags.hasProperty("highway"));
+			boolean inside = false;
+			for (Node node : dataset.getWayNodes(way)) {
+				if (area.contains((Double) node.getProperty("lon"), (Double) node.getProperty("lat"))) {
+					inside = true;
+				} else {
+					outside = true;
+				}
+			}
+			assertTrue("Way should have a node in the area", inside);
+		}
+		assertTrue("Should import some ways", ways > 0);
+		assertTrue("Should keep the way nodes outside the area", outside);
+		assertEquals("Only the highways should be indexed", ways, layer.getIndex().count());
+		checkWayGeometries(layer);
+		checkOSMIndexes(layer);
+	}
+
+	public void testCompactWays() throws Exception {
+		runCompactImport(false);
+	}
+
+	public void testCompactWaysBatch() throws Exception {
+		runCompactImport(true);
+	}
+
+	/**
+	 * Import map.osm with compact ways, and check that it has the same ways
+	 * and way nodes as with proxy nodes, and that the geometries are decoded
+	 * from the geometry nodes.
+	 */
+	private void runCompactImport(boolean useBatchInserter) throws Exception {
+		String osmPath = checkOSMFile("map.osm");
+		assertNotNull("Missing test data", osmPath);
+		loadTestOsmData("map.osm", osmPath, false, useBatchInserter, false, false, 1000);
+		int[] expected = countWaysAndWayNodes("map.osm");
+		updateStorePrefix();
+		reActivateDatabase(false, false, false);
+
+		OSMImporter importer = new OSMImporter("map.osm");
+		importer.setCompactWays(true);
+		if (useBatchInserter) {
+			reActivateDatabase(false, true, false);
+			importer.importFile(getBatchInserter(), osmPath, false);
+			reActivateDatabase(false, false, false);
+		} else {
+			importer.importFile(graphDb(), osmPath, false, 5000);
+		}
+		importer.reIndex(graphDb(), 1000, true, false);
+
+		SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+		OSMLayer layer = (OSMLayer) spatialService.getLayer("map.osm");
+		OSMDataset dataset = (OSMDataset) layer.getDataset();
+		int ways = 0;
+		int wayNodes = 0;
+		for (Node way : dataset.getAllWayNodes()) {
+			ways++;
+			// the traversal of the proxy nodes does not return the last node
+			// of closed ways again, but the compact way nodes do
+			wayNodes += new HashSet<Node>(toList(dataset.getWayNodes(way))).size();
+		}
+		assertEquals("Compact import should have the same ways", expected[0], ways);
+		assertEquals("Compact import should have the same way nodes", expected[1], wayNodes);
+		for (Node way : dataset.getAllWayNodes()) {
+			assertFalse("Way should have no proxy nodes", way.hasRelationship(OSMRelation.FIRST_NODE));
+			Node geomNode = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+			Coordinate[] coordinates = layer.getGeometryEncoder().decodeGeometry(geomNode).getCoordinates();
+			int i = 0;
+			for (Node node : dataset.getWayNodes(way)) {
+				assertEquals(new Coordinate((Double) node.getProperty("lon"), (Double) node.getProperty("lat")),
+						coordinates[i++]);
+			}
+			assertEquals(coordinates.length, i);
+		}
+		checkOSMLayer("map.osm");
+	}
+
+	public void testGeometryCache() throws Exception {
+		String osmPath = checkOSMFile("two-street.osm");
+		assertNotNull("Missing test data", osmPath);
+		loadTestOsmData("two-street.osm", osmPath, false, false, false, false, 1000);
+		SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+		OSMLayer layer = (OSMLayer) spatialService.getLayer("two-street.osm");
+		OSMDataset dataset = (OSMDataset) layer.getDataset();
+		OSMGeometryCache cache = OSMGeometryCache.forDatabase(graphDb());
+		ArrayList<Node> geomNodes = new ArrayList<Node>();
+		for (Node way : dataset.getAllWayNodes()) {
+			geomNodes.add(way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode());
+		}
+		cache.clear();
+		long hits = cache.getHits();
+		long misses = cache.getMisses();
+		for (Node geomNode : geomNodes) {
+			Geometry first = layer.getGeometryEncoder().decodeGeometry(geomNode);
+			Geometry second = layer.getGeometryEncoder().decodeGeometry(geomNode);
+			assertNotSame("Each caller should get its own copy", first, second);
+			assertTrue(first.equalsExact(second));
+		}
+		assertEquals("Should decode each way once", misses + geomNodes.size(), cache.getMisses());
+		assertEquals("Should find each way in the cache", hits + geomNodes.size(), cache.getHits());
+		assertTrue("Should account for the cached geometries", cache.getBytes() > 0);
+
+		// the changes move a node of a cached way
+		new OSMImporter("two-street.osm").applyChanges(graphDb(), "two-street.osc");
+		for (Node way : dataset.getAllWayNodes()) {
+			Node geomNode = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+			Coordinate[] coordinates = layer.getGeometryEncoder().decodeGeometry(geomNode).getCoordinates();
+			int i = 0;
+			for (Node node : dataset.getWayNodes(way)) {
+				assertEquals(new Coordinate((Double) node.getProperty("lon"), (Double) node.getProperty("lat")),
+						coordinates[i++]);
+			}
+		}
+	}
+
+	public void testMultipolygon() throws Exception {
+		String osmPath = checkOSMFile("multipolygon.osm");
+		assertNotNull("Missing test data", osmPath);
+		OSMImporter importer = new OSMImporter("multipolygon.osm");
+		importer.importFile(graphDb(), osmPath, false, 5000);
+		importer.reIndex(graphDb(), 1000, false, true);
+
+		SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+		OSMLayer layer = (OSMLayer) spatialService.getLayer("multipolygon.osm");
+		assertEquals("Should index the ways and the relations", 6, layer.getIndex().count());
+		Node relation = getDatasetNode("multipolygon.osm").getSingleRelationship(OSMRelation.RELATIONS,
+				Direction.OUTGOING).getEndNode();
+		Node geomNode = relation.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+		assertTrue("Should store the assembled polygons", geomNode.hasProperty("wkb"));
+		Geometry geometry = layer.getGeometryEncoder().decodeGeometry(geomNode);
+		// the outer ring split over two ways, with a hole, and another outer ring
+		assertTrue("Should be a MultiPolygon but was " + geometry, geometry instanceof MultiPolygon);
+		assertEquals(2, geometry.getNumGeometries());
+		assertEquals(0.0001 - 0.000004 + 0.0001, geometry.getArea(), 1e-9);
+		assertEquals(geometry.getEnvelopeInternal(), layer.getGeometryEncoder().decodeEnvelope(geomNode));
+
+		// moving a node of the split outer ring assembles the relation again
+		new OSMImporter("multipolygon.osm").applyChanges(graphDb(), "multipolygon.osc");
+		geomNode = relation.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+		assertTrue("Should store the assembled polygons", geomNode.hasProperty("wkb"));
+		geometry = layer.getGeometryEncoder().decodeGeometry(geomNode);
+		assertTrue("Should include the moved node", Arrays.asList(geometry.getCoordinates()).contains(
+				new Coordinate(13.01, 55.99)));
+		assertEquals(55.99, layer.getGeometryEncoder().decodeEnvelope(geomNode).getMinY(), 1e-9);
+
+		// the route over the same way is not assembled, but indexed again with its new bounding box
+		Node route = relation.getSingleRelationship(OSMRelation.NEXT, Direction.OUTGOING).getEndNode();
+		Node routeGeomNode = route.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+		assertFalse("Should not assemble the route", routeGeomNode.hasProperty("wkb"));
+		assertEquals(55.99, layer.getGeometryEncoder().decodeEnvelope(routeGeomNode).getMinY(), 1e-9);
+		Node leaf = routeGeomNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING)
+				.getStartNode();
+		assertEquals(55.99, GeoprocessingRunnable.getIndexNodeEnvelope(leaf).getMinY(), 1e-9);
+		assertEquals(6, layer.getIndex().count());
+	}
+
+	public void testSharedTags() throws Exception {
+		String osmPath = checkOSMFile("map.osm");
+		assertNotNull("Missing test data", osmPath);
+		loadTestOsmData("map.osm", osmPath, false, false, false, false, 1000);
+		HashMap<Object, Map<String, Object>> expected = new HashMap<Object, Map<String, Object>>();
+		for (Node way : getOSMDataset("map.osm").getAllWayNodes()) {
+			expected.put(way.getProperty("way_osm_id"), getTags(way));
+		}
+		int residential = getOSMLayer("map.osm").addSimpleDynamicLayer("highway", "residential").getIndex().count();
+		assertTrue("Should have residential streets", residential > 0);
+		updateStorePrefix();
+		reActivateDatabase(false, false, false);
+
+		OSMImporter importer = new OSMImporter("map.osm");
+		importer.setSharedTags(true);
+		importer.importFile(graphDb(), osmPath, false, 5000);
+		importer.reIndex(graphDb(), 1000, false, false);
+		OSMLayer layer = getOSMLayer("map.osm");
+		HashSet<Node> tagsNodes = new HashSet<Node>();
+		int ways = 0;
+		for (Node way : getOSMDataset("map.osm").getAllWayNodes()) {
+			ways++;
+			assertEquals(expected.get(way.getProperty("way_osm_id")), getTags(way));
+			Relationship tagsRel = way.getSingleRelationship(OSMRelation.TAGS, Direction.OUTGOING);
+			if (tagsRel != null) {
+				tagsNodes.add(tagsRel.getEndNode());
+				Node geomNode = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+				assertEquals(tagsRel.getEndNode().getProperty("highway", null), layer.getGeometryEncoder().getAttribute(
+						geomNode, "highway"));
+			}
+		}
+		assertEquals(expected.size(), ways);
+		HashSet<Map<String, Object>> tagSets = new HashSet<Map<String, Object>>();
+		for (Node tagsNode : tagsNodes) {
+			tagSets.add(getProperties(tagsNode));
+		}
+		assertEquals("Each tag set should be stored once", tagSets.size(), tagsNodes.size());
+		assertTrue("Ways should share tags nodes", tagsNodes.size() < ways);
+		assertEquals("Shared tags should match the same ways", residential, layer.addSimpleDynamicLayer("highway",
+				"residential").getIndex().count());
+		updateStorePrefix();
+		reActivateDatabase(false, false, false);
+
+		// changes replace the tags of the modified ways, and delete the unused tags nodes
+		osmPath = checkOSMFile("two-street.osm");
+		importer = new OSMImporter("two-street.osm");
+		importer.setSharedTags(true);
+		importer.importFile(graphDb(), osmPath, false, 5000);
+		importer.reIndex(graphDb(), 1000, false, false);
+		layer = getOSMLayer("two-street.osm");
+		for (Node way : getOSMDataset("two-street.osm").getAllWayNodes()) {
+			Node geomNode = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+			layer.getGeometryEncoder().getAttribute(geomNode, "name");
+		}
+		long deletedTags = OSMGeometryCache.forDatabase(graphDb()).getDeletedTags();
+		importer.applyChanges(graphDb(), "two-street.osc");
+		assertTrue("Deleted tags nodes should be forgotten by the encoders", OSMGeometryCache.forDatabase(graphDb())
+				.getDeletedTags() > deletedTags);
+		HashSet<Object> names = new HashSet<Object>();
+		for (Node way : getOSMDataset("two-street.osm").getAllWayNodes()) {
+			Node tagsNode = way.getSingleRelationship(OSMRelation.TAGS, Direction.OUTGOING).getEndNode();
+			names.add(tagsNode.getProperty("name"));
+			Node geomNode = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+			assertEquals(tagsNode.getProperty("name"), layer.getGeometryEncoder().getAttribute(geomNode, "name"));
+		}
+		assertEquals(new HashSet<Object>(Arrays.asList("Lilla Storgatan", "Testgatan")), names);
+		for (Node node : graphDb().getAllNodes()) {
+			if (node.hasRelationship()) {
+				continue;
+			}
+			assertFalse("Unused tags node should be deleted: " + getProperties(node), node.hasProperty("highway"));
+		}
+	}
+
+	private OSMLayer getOSMLayer(String name) {
+		return (OSMLayer) new SpatialDatabaseService(graphDb()).getLayer(name);
+	}
+
+	private OSMDataset getOSMDataset(String name) {
+		return (OSMDataset) getOSMLayer(name).getDataset();
+	}
+
+	private static Map<String, Object> getTags(Node node) {
+		Relationship tagsRel = node.getSingleRelationship(OSMRelation.TAGS, Direction.OUTGOING);
+		return tagsRel == null ? null : getProperties(tagsRel.getEndNode());
+	}
+
+	private static Map<String, Object> getProperties(Node node) {
+		HashMap<String, Object> properties = new HashMap<String, Object>();
+		for (String key : node.getPropertyKeys()) {
+			properties.put(key, node.getProperty(key));
+		}
+		return properties;
+	}
+
 	protected void runImport(String osm, boolean includePoints, boolean useBatchInserter) throws Exception {
+		runImport(osm, includePoints, useBatchInserter, false, false);
+	}
+
+	protected void runImport(String osm, boolean includePoints, boolean useBatchInserter, boolean useIdMaps,
+			boolean usePipeline) throws Exception {
 		// TODO: Consider merits of using dependency data in target/osm,
 		// downloaded by maven, as done in TestSpatial, versus the test data
 		// commited to source code as done here
@@ -116,11 +691,51 @@ public class TestOSMImport extends Neo4jTestCase {
 			return;
 		}
 		printDatabaseStats();
-		loadTestOsmData(osm, osmPath, includePoints, useBatchInserter, 1000);
+		loadTestOsmData(osm, osmPath, includePoints, useBatchInserter, useIdMaps, usePipeline, 1000);
 		checkOSMLayer(osm);
 		printDatabaseStats();
 	}
 
+	/**
+	 * Import the same data in another format, and check that it gives the
+	 * same ways and way nodes as the OSM XML.
+	 */
+	protected void runEquivalentImport(String other, String osm, boolean useBatchInserter) throws Exception {
+		String osmPath = checkOSMFile(osm);
+		if (osmPath == null || checkOSMFile(other) == null) {
+			return;
+		}
+		loadTestOsmData(osm, osmPath, false, useBatchInserter, false, false, 1000);
+		int[] expected = countWaysAndWayNodes(osm);
+		updateStorePrefix();
+		reActivateDatabase(false, false, false);
+		runImport(other, false, useBatchInserter);
+		int[] found = countWaysAndWayNodes(other);
+		assertEquals(other + " should have the ways of the XML", expected[0], found[0]);
+		assertEquals(other + " should have the way nodes of the XML", expected[1], found[1]);
+	}
+
+	private static List<Node> toList(Iterable<Node> nodes) {
+		ArrayList<Node> list = new ArrayList<Node>();
+		for (Node node : nodes) {
+			list.add(node);
+		}
+		return list;
+	}
+
+	private int[] countWaysAndWayNodes(String layerName) {
+		SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+		OSMDataset dataset = (OSMDataset) spatialService.getLayer(layerName).getDataset();
+		int[] counts = new int[] { 0, 0 };
+		for (Node way : dataset.getAllWayNodes()) {
+			counts[0]++;
+			for (@SuppressWarnings("unused") Node node : dataset.getWayNodes(way)) {
+				counts[1]++;
+			}
+		}
+		return counts;
+	}
+
 	private String checkOSMFile(String osm) {
 		File osmFile = new File(osm);
 		if (!osmFile.exists()) {
@@ -133,7 +748,7 @@ public class TestOSMImport extends Neo4jTestCase {
 	}
 
 	private void loadTestOsmData(String layerName, String osmPath, boolean includePoints, boolean useBatchInserter,
-			int commitInterval) throws Exception {
+			boolean useIdMaps, boolean usePipeline, int commitInterval) throws Exception {
 		System.out.println("\n=== Loading layer " + layerName + " from " + osmPath + ", includePoints=" + includePoints
 				+ ", useBatchInserter=" + useBatchInserter + " ===");
 		if (useBatchInserter) {
@@ -142,6 +757,8 @@ public class TestOSMImport extends Neo4jTestCase {
 		long start = System.currentTimeMillis();
 		// START SNIPPET: importOsm
 		OSMImporter importer = new OSMImporter(layerName);
+		importer.setUseIdMaps(useIdMaps);
+		importer.setUsePipeline(usePipeline);
 		if (useBatchInserter) {
 			importer.importFile(getBatchInserter(), osmPath, false);
 			reActivateDatabase(false, false, false);
@@ -149,6 +766,7 @@ public class TestOSMImport extends Neo4jTestCase {
 			importer.importFile(graphDb(), osmPath, false, 5000);
 		}
 		// END SNIPPET: importOsm
+		assertEquals("Should have read the whole file", new File(osmPath).length(), importer.getInputBytesRead());
 		// Weird hack to force GC on large loads
 		if (System.currentTimeMillis() - start > 300000) {
 			for (int i = 0; i < 3; i++) {
@@ -169,9 +787,40 @@ public class TestOSMImport extends Neo4jTestCase {
 		// ((RTreeIndex)layer.getIndex()).debugIndexTree();
 		checkIndexAndFeatureCount(layer);
 		checkChangesetsAndUsers(layer);
+		checkOSMIndexes(layer);
+		checkWayGeometries(layer);
 		checkOSMSearch(layer);
 	}
 
+	private void checkWayGeometries(OSMLayer layer) {
+		OSMDataset dataset = (OSMDataset) layer.getDataset();
+		int count = 0;
+		for (Node way : dataset.getAllWayNodes()) {
+			Envelope expected = new Envelope();
+			for (Node node : dataset.getWayNodes(way)) {
+				expected.expandToInclude((Double) node.getProperty("lon"), (Double) node.getProperty("lat"));
+			}
+			Node geomNode = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+			double[] bbox = (double[]) geomNode.getProperty("bbox");
+			assertEquals(expected, new Envelope(bbox[0], bbox[1], bbox[2], bbox[3]));
+			if (count++ > 10)
+				break;
+		}
+	}
+
+	private void checkOSMIndexes(OSMLayer layer) {
+		OSMDataset dataset = (OSMDataset) layer.getDataset();
+		int count = 0;
+		for (Node way : dataset.getAllWayNodes()) {
+			assertEquals(way, graphDb().index().forNodes("node").get("way_osm_id", way.getProperty("way_osm_id")).getSingle());
+			for (Node node : dataset.getWayNodes(way)) {
+				assertEquals(node, graphDb().index().forNodes("node").get("node_osm_id", node.getProperty("node_osm_id")).getSingle());
+			}
+			if (count++ > 10)
+				break;
+		}
+	}
+
 	/**
 	 * This class returns true for all index nodes, forcing the search to be
 	 * exhaustive. We use it for performance testing of the RTree.